@@ -0,0 +1,260 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.*;
+
+/*
+ * A pipelined writer for the _bulk API.
+ *
+ * Actions are accumulated in a batch until it reaches the batch size (in bytes), then the batch
+ * is sent on the executor while the next one is filled, with up to concurrency batches in flight.
+ * Items rejected because the cluster is overloaded (429, 503) are retried with an exponential
+ * backoff, other item failures are counted (and the first error kept).
+ */
+public class BulkWriter
+{
+    public static final long DEFAULT_BATCH_BYTES = 5L * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 2;
+    public static final int DEFAULT_RETRIES = 3;
+
+    static final String NDJSON = "application/x-ndjson";
+    static final long BACKOFF = 100; // milliseconds, doubled at every retry
+
+    private final Transport transport;
+    private final String path;
+    private final ExecutorService executor;
+    private Stats stats = null;
+    private long batchBytes = DEFAULT_BATCH_BYTES;
+    private int retries = DEFAULT_RETRIES;
+    private Semaphore inFlight = new Semaphore(DEFAULT_CONCURRENCY);
+
+    private List<String> batch = new ArrayList<String>();
+    private long bytes = 0;
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+    private final long start = System.nanoTime();
+    private long elapsed = 0;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private volatile String firstError = null;
+
+    /*
+     * Write to path (_bulk or index/_bulk) through transport, sending the batches on executor
+     */
+    public BulkWriter(Transport transport, String path, ExecutorService executor) {
+        this.transport = transport;
+        this.path = path;
+        this.executor = executor;
+    }
+
+    public BulkWriter setStats(Stats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    public BulkWriter setBatchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+        return this;
+    }
+
+    public BulkWriter setConcurrency(int concurrency) {
+        this.inFlight = new Semaphore(concurrency);
+        return this;
+    }
+
+    public BulkWriter setRetries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    /*
+     * Add an action (index, create, update or delete) with its source (null for delete)
+     */
+    public void add(JsonObject action, JsonElement source) throws Exception {
+        String entry = source == null
+            ? action + "\n"
+            : action + "\n" + source + "\n";
+
+        batch.add(entry);
+        bytes += Util.utf8Length(entry);
+
+        if (bytes >= batchBytes)
+            flush();
+    }
+
+    /*
+     * Send the current batch (waits if there are already too many batches in flight)
+     */
+    public void flush() throws Exception {
+        if (batch.isEmpty())
+            return;
+
+        final List<String> entries = batch;
+        batch = new ArrayList<String>();
+        bytes = 0;
+
+        inFlight.acquire();
+
+        try {
+            pending.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        send(entries);
+                    } finally {
+                        inFlight.release();
+                    }
+
+                    return null;
+                }
+            }));
+        } catch(RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+
+        // report errors of completed batches early
+        for (Iterator<Future<?>> it = pending.iterator(); it.hasNext(); ) {
+            Future<?> f = it.next();
+
+            if (f.isDone()) {
+                it.remove();
+                ElseSearch.get(f);
+            }
+        }
+    }
+
+    /*
+     * Send the last batch and wait for all the batches to complete
+     */
+    public void close() throws Exception {
+        try {
+            flush();
+
+            for (Future<?> f : pending)
+                ElseSearch.get(f);
+        } finally {
+            for (Future<?> f : pending)
+                f.cancel(true);
+
+            pending.clear();
+            elapsed = System.nanoTime() - start;
+        }
+    }
+
+    /*
+     * Send a batch, retrying the rejected items
+     */
+    void send(List<String> entries) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            StringBuilder body = new StringBuilder();
+            for (String entry : entries)
+                body.append(entry);
+
+            String data = body.toString();
+            long begin = System.nanoTime();
+
+            String response = transport.request(Util.POST, path, data, NDJSON, false);
+
+            if (stats != null) {
+                stats.since(Stats.Phase.REQUEST, begin);
+                stats.recordBytes(Util.utf8Length(data), Util.utf8Length(response));
+            }
+
+            batches.incrementAndGet();
+            sent.addAndGet(Util.utf8Length(data));
+
+            Util.Json result = Util.parse_json(response);
+            List<String> rejected = new ArrayList<String>();
+
+            if (!result.has("items")) { // the whole request failed
+                int status = result.has("status") ? result.getInt("status") : 0;
+
+                if (stats != null)
+                    stats.countQuery(false, true);
+
+                if (!isRejected(status))
+                    throw new IOException("bulk request failed: " + (result.has("error") ? result.get("error") : result));
+
+                rejected = entries;
+            } else {
+                if (stats != null)
+                    stats.countQuery(false, result.getBoolean("errors"));
+
+                Util.Json items = result.get("items");
+
+                for (int i=0; i < items.size(); i++) {
+                    Map.Entry<String, JsonElement> item = items.element(i).getAsJsonObject().entrySet().iterator().next();
+                    JsonObject status = item.getValue().getAsJsonObject();
+                    int code = status.get("status").getAsInt();
+
+                    if (isRejected(code))
+                        rejected.add(entries.get(i));
+
+                    else if (code < 300 || (code == 404 && item.getKey().equals("delete")))
+                        succeeded.incrementAndGet(); // deleting a missing document is not an error
+
+                    else {
+                        failed.incrementAndGet();
+
+                        if (firstError == null)
+                            firstError = String.valueOf(status.get("error"));
+                    }
+                }
+            }
+
+            if (rejected.isEmpty())
+                return;
+
+            if (attempt >= retries) {
+                failed.addAndGet(rejected.size());
+
+                if (firstError == null)
+                    firstError = "rejected after " + retries + " retries";
+                return;
+            }
+
+            retried.addAndGet(rejected.size());
+            Thread.sleep(BACKOFF << attempt);
+            entries = rejected;
+        }
+    }
+
+    static boolean isRejected(int status) {
+        return status == 429 || status == 503;
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public String getFirstError() {
+        return firstError;
+    }
+
+    /*
+     * Throughput summary (valid after close)
+     */
+    public String toString() {
+        double seconds = elapsed / 1e9;
+
+        return "took: " + elapsed / 1000000
+            + ", written: " + succeeded.get()
+            + ", failed: " + failed.get()
+            + ", retried: " + retried.get()
+            + ", batches: " + batches.get()
+            + String.format(", docs/s: %.1f", seconds > 0 ? succeeded.get() / seconds : 0.0)
+            + String.format(", MB/s: %.2f", seconds > 0 ? sent.get() / seconds / (1024 * 1024) : 0.0);
+    }
+}
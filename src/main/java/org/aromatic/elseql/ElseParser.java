@@ -3,7 +3,20 @@ package org.aromatic.elseql;
 import java.io.*;
 import java.util.*;
 
+import com.google.gson.JsonArray;
+
 /* SELECT a,b,c FACETS d,e,f FROM t WHERE expr FILTER expr ORDER BY g,h,i LIMIT n,m */
+/* SELECT * EXCEPT (a,b) FROM t ... */
+/* SELECT COUNT(*) FROM t WHERE expr FILTER expr */
+/* SELECT EXISTS(*) FROM t WHERE expr FILTER expr */
+/* SELECT ... FROM t1, t2, cluster:t3 ... */
+/* SELECT a, t2.b FROM t1 JOIN t2 ON t1field = t2field WHERE ... */
+/* SELECT ... FROM t WHERE expr SAMPLE n APPROX m */
+/* INSERT INTO t */
+/* UPDATE t SET a = v, b = w WHERE expr FILTER expr */
+/* DELETE FROM t WHERE expr FILTER expr */
+/* EXPLAIN SELECT ... */
+/* PROFILE SELECT ... */
 
 public class ElseParser
 {
@@ -12,15 +25,27 @@ public class ElseParser
     public static final char ID_SEPARATOR = '.';
     public static final char LIST_SEPARATOR = ',';
     public static final char ALL_FIELDS = '*';
+    public static final char LIST_START = '(';
+    public static final char LIST_END = ')';
+    public static final char INDEX_START = '[';
+    public static final char INDEX_END = ']';
+    public static final char CLUSTER_SEPARATOR = ':';
+
+    public static final int DEFAULT_APPROX = 10000; // documents per shard for APPROX without a value
 
         /*
-         * reserved keywords
+         * keywords (see CONTEXTUAL for the ones that are not reserved)
          */
     private enum Keyword {
         SELECT,
+        EXCEPT,
+        COUNT,
+        EXISTS,
         FACETS,
         SCRIPT,
         FROM,
+        JOIN,
+        ON,
         WHERE,
         FILTER,
         EXIST,
@@ -28,6 +53,15 @@ public class ElseParser
         ORDER,
         BY,
         LIMIT,
+        SAMPLE,
+        APPROX,
+        INSERT,
+        INTO,
+        UPDATE,
+        SET,
+        DELETE,
+        EXPLAIN,
+        PROFILE,
         ASC,
         DESC,
         AND,
@@ -47,19 +81,41 @@ public class ElseParser
         }
     };
 
+        /*
+         * Statement types
+         */
+    public enum Command {
+        SELECT,
+        INSERT,     // documents are read from the input (CSV or NDJSON)
+        UPDATE,
+        DELETE
+    }
+
         /*
          * This is the output of a parsed statement
          */
-    public static class Query {
+    public static class Query implements Cloneable {
+        public Command command = Command.SELECT;
         public List<String> selectList = null;
+        public List<String> excludeList = null;
+        public boolean countOnly = false;
+        public boolean existsOnly = false;
         public List<String> facetList = null;
         public Util.NameValue script = null;
-        public String index = null;
+        public String index = null;         // comma separated list of indices
+        public List<String> indexList = null;   // [cluster:]index
+        public String joinIndex = null;
+        public Util.NameValue joinOn = null;    // left field = right field
         public Expression whereExpr = null;
         public Expression filterExpr = null;
         public List<Util.NameValue> orderList = null;
         public int from = 0;
         public int size = 10;
+        public int sample = 0;  // SAMPLE n: n random hits
+        public int approx = 0;  // APPROX m: stop after m documents per shard
+        public List<Util.NameValue> setList = null; // UPDATE: field = value (String, Long, Double or Boolean)
+        public boolean explain = false; // EXPLAIN: show the request, don't run it
+        public boolean profile = false; // PROFILE: run the request with the ES profiler
 
         public String toQueryString(Expression expr) {
             if (expr == null)
@@ -68,16 +124,38 @@ public class ElseParser
             return expr.toQueryString();
         }
 
+        /*
+         * A copy of this query on other indices (parsed queries are shared, see ElseSearch.parse)
+         */
+        public Query withIndexList(List<String> indexList) {
+            try {
+                Query query = (Query) clone();
+                query.indexList = indexList;
+                query.index = Util.join(String.valueOf(LIST_SEPARATOR), indexList);
+                return query;
+            } catch(CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
         public String toString() {
             return 
-                "select " + selectList
+                command.toString().toLowerCase()
+                + "\nselect " + (countOnly ? "count(*)" : existsOnly ? "exists(*)" : selectList)
+                + "\nexcept " + excludeList
                 + "\nfacet " + facetList
-                + "\nindex " + index
+                + "\nindex " + indexList
+                + "\njoin " + joinIndex + " on " + joinOn
                 + "\nwhere " + toQueryString(whereExpr)
                 + "\nfilter " + toQueryString(filterExpr)
                 + "\norder " + orderList
                 + "\nfrom " + from
                 + "\nsize " + size
+                + "\nsample " + sample
+                + "\napprox " + approx
+                + "\nset " + setList
+                + "\nexplain " + explain
+                + "\nprofile " + profile
                 ;
         }
     }
@@ -128,37 +206,127 @@ public class ElseParser
 
             if (op == Operator.EQ) {
                 Util.NameValue nv = (Util.NameValue) this.operands.get(0);
-                return nv.toString();
+                return nv.name + ":" + formatValue(nv.value);
             }
 
             if (op == Operator.NE) {
                 Util.NameValue nv = (Util.NameValue) this.operands.get(0);
-                return "NOT " + nv.toString();
+                return "NOT " + nv.name + ":" + formatValue(nv.value);
             }
 
             if (op == Operator.LT) {
                 Util.NameValue nv = (Util.NameValue) this.operands.get(0);
-                return nv.name + ":{* TO " + nv.value + "}";
+                return nv.name + ":{* TO " + formatValue(nv.value) + "}";
             }
 
             if (op == Operator.LTE) {
                 Util.NameValue nv = (Util.NameValue) this.operands.get(0);
-                return nv.name + ":[* TO " + nv.value + "]";
+                return nv.name + ":[* TO " + formatValue(nv.value) + "]";
             }
 
             if (op == Operator.GT) {
                 Util.NameValue nv = (Util.NameValue) this.operands.get(0);
-                return nv.name + ":{" + nv.value + " TO *}";
+                return nv.name + ":{" + formatValue(nv.value) + " TO *}";
             }
 
             if (op == Operator.GTE) {
                 Util.NameValue nv = (Util.NameValue) this.operands.get(0);
-                return nv.name + ":[" + nv.value + " TO *]";
+                return nv.name + ":[" + formatValue(nv.value) + " TO *]";
             }
 
             return this.toString();
         }
 
+        /*
+         * Numbers are parsed as doubles: integral values are written without the fraction (5, not 5.0)
+         */
+        static String formatValue(Object value) {
+            if (value instanceof Double) {
+                double d = (Double) value;
+
+                if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15)
+                    return String.valueOf((long) d);
+            }
+
+            return String.valueOf(value);
+        }
+
+        /*
+         * Return the query as ES query DSL, with values typed after the mapping (field name -> type):
+         * exact matches on text fields use the keyword sub-field when there is one.
+         * Lucene syntax strings are left to query_string.
+         */
+        public Util.Json toQuery(Map<String, String> fields) {
+            if (op == Operator.STRING_EXPR) {
+                return new Util.Json().put("query_string", new Util.Json()
+                    .put("query", this.operands.get(0).toString())
+                    .put("default_operator", "AND"));
+            }
+
+            if (op == Operator.AND || op == Operator.OR || op == Operator.NOT) {
+                Util.Json clauses = new Util.Json(new JsonArray());
+
+                for (Object operand : operands)
+                    clauses.add(((Expression) operand).toQuery(fields));
+
+                Util.Json bool = new Util.Json();
+
+                if (op == Operator.AND)
+                    bool.put("must", clauses);
+                else if (op == Operator.NOT)
+                    bool.put("must_not", clauses);
+                else
+                    bool.put("should", clauses).put("minimum_should_match", 1);
+
+                return new Util.Json().put("bool", bool);
+            }
+
+            Util.NameValue nv = (Util.NameValue) this.operands.get(0);
+            String type = fields.get(nv.name);
+            String field = nv.name;
+            Object value = Mappings.typedValue(type, nv.value);
+
+            if (op == Operator.EQ || op == Operator.NE) {
+                Util.Json match;
+
+                if (Mappings.isText(type) && fields.containsKey(nv.name + ".keyword")) {
+                    match = new Util.Json().put("term", new Util.Json().put(nv.name + ".keyword", formatValue(value)));
+                } else if (Mappings.isText(type) || type == null) { // analyzed, or unknown
+                    match = new Util.Json().put("match", new Util.Json().put(field, new Util.Json()
+                        .put("query", formatValue(value))
+                        .put("operator", "and")));
+                } else
+                    match = new Util.Json().put("term", Mappings.putValue(new Util.Json(), field, value));
+
+                if (op == Operator.EQ)
+                    return match;
+
+                return new Util.Json().put("bool", new Util.Json().put("must_not", match));
+            }
+
+            if (Mappings.isText(type) && fields.containsKey(nv.name + ".keyword"))
+                field = nv.name + ".keyword"; // ranges on the terms, not on the analyzed tokens
+
+            String bound = op == Operator.LT ? "lt" : op == Operator.LTE ? "lte" : op == Operator.GT ? "gt" : "gte";
+
+            return new Util.Json().put("range", new Util.Json()
+                .put(field, Mappings.putValue(new Util.Json(), bound, value)));
+        }
+
+        /*
+         * Add the names of the fields used in the expression to names
+         */
+        public void collectFields(Collection<String> names) {
+            for (Object operand : operands) {
+                if (operand instanceof Expression)
+                    ((Expression) operand).collectFields(names);
+                else if (operand instanceof Util.NameValue)
+                    names.add(((Util.NameValue) operand).name);
+                else if (op == Operator.EXISTS_EXPR || op == Operator.MISSING_EXPR)
+                    names.add((String) operand);
+            }
+        }
+
         public boolean isExistsExpression() {
             return op == Operator.EXISTS_EXPR;
         }
@@ -167,6 +335,41 @@ public class ElseParser
             return op == Operator.MISSING_EXPR;
         }
 
+        /*
+         * The comparison of a field with a value (eq, ne, lt, lte, gt or gte), or null
+         */
+        public String getComparison() {
+            switch(op)
+            {
+            case EQ: return "eq";
+            case NE: return "ne";
+            case LT: return "lt";
+            case LTE: return "lte";
+            case GT: return "gt";
+            case GTE: return "gte";
+            default: return null;
+            }
+        }
+
+        public boolean isRangeExpression() {
+            return op == Operator.LT || op == Operator.LTE || op == Operator.GT || op == Operator.GTE;
+        }
+
+        /*
+         * The terms of a top-level AND (or this expression)
+         */
+        public List<Expression> conjuncts() {
+            List<Expression> result = new ArrayList<Expression>();
+
+            if (op == Operator.AND) {
+                for (Object operand : operands)
+                    result.addAll(((Expression) operand).conjuncts());
+            } else
+                result.add(this);
+
+            return result;
+        }
+
         public String join(String sep) {
             Expression expr = (Expression) this.operands.get(0);
 
@@ -208,10 +411,73 @@ public class ElseParser
         }
     }
 
-    private static final Map<String, Keyword> KEYWORDS = new HashMap<String, Keyword>();
+        /*
+         * Case-insensitive lookup tables for keywords and operators.
+         *
+         * Open addressing on a hash of the upper-cased word, computed on the fly:
+         * recognizing (or rejecting) a word doesn't allocate or throw.
+         */
+    private static final int TABLE_SIZE = 64; // power of 2, at least twice the number of entries
+    private static final int MAX_KEYWORD_LENGTH = 16;
+
+    private static final Keyword KEYWORDS[] = new Keyword[TABLE_SIZE];
     static {
         for (Keyword k : Keyword.values())
-            KEYWORDS.put(k.toString(), k);
+            addToTable(KEYWORDS, k);
+    }
+
+    private static final Operator OPERATORS[] = new Operator[TABLE_SIZE];
+    static {
+        for (Operator op : Operator.values())
+            addToTable(OPERATORS, op);
+    }
+
+    private static int hashIgnoreCase(String word) {
+        int h = 0;
+
+        for (int i=0; i < word.length(); i++) {
+            char c = word.charAt(i);
+
+            if (c >= 'a' && c <= 'z')
+                c -= 'a' - 'A';
+
+            h = 31*h + c;
+        }
+
+        return h ^ (h >>> 16);
+    }
+
+    private static <E extends Enum<E>> void addToTable(E table[], E value) {
+        int i = hashIgnoreCase(value.name()) & (TABLE_SIZE - 1);
+
+        while (table[i] != null)
+            i = (i + 1) & (TABLE_SIZE - 1);
+
+        table[i] = value;
+    }
+
+    private static <E extends Enum<E>> E lookup(E table[], String word) {
+        if (word == null || word.length() > MAX_KEYWORD_LENGTH)
+            return null;
+
+        int i = hashIgnoreCase(word) & (TABLE_SIZE - 1);
+
+        for (E value; (value = table[i]) != null; i = (i + 1) & (TABLE_SIZE - 1)) {
+            String name = value.name();
+
+            if (name.length() == word.length() && name.regionMatches(true, 0, word, 0, word.length()))
+                return value;
+        }
+
+        return null;
+    }
+
+    static Keyword lookupKeyword(String word) {
+        return lookup(KEYWORDS, word);
+    }
+
+    static Operator lookupOperator(String word) {
+        return lookup(OPERATORS, word);
     }
 
     private static final Set<Keyword> ORDERKEYS = new HashSet<Keyword>();
@@ -220,6 +486,23 @@ public class ElseParser
             ORDERKEYS.add(Keyword.DESC);
     }
 
+    /*
+     * Keywords only recognized where the grammar expects them (a statement start, COUNT(, after FROM...),
+     * that can also be used as field or index names
+     */
+    private static final Set<Keyword> CONTEXTUAL = EnumSet.of(
+            Keyword.EXCEPT, Keyword.COUNT, Keyword.EXISTS, Keyword.JOIN, Keyword.ON,
+            Keyword.SAMPLE, Keyword.APPROX, Keyword.INSERT, Keyword.INTO, Keyword.UPDATE,
+            Keyword.SET, Keyword.DELETE, Keyword.EXPLAIN, Keyword.PROFILE);
+
+    /*
+     * A keyword that can't be a field or index name
+     */
+    static boolean isReserved(String word) {
+        Keyword k = lookupKeyword(word);
+        return k != null && !CONTEXTUAL.contains(k);
+    }
+
     private static final Set<Operator> BOOLEANS = new HashSet<Operator>();
     static {
             BOOLEANS.add(Operator.AND);
@@ -230,6 +513,7 @@ public class ElseParser
     private final StreamTokenizer m_tokenizer;
     private final ElseParser.Query m_query;
     private boolean m_parsed;
+    private String m_word; // a word read ahead by parseFunction, returned by the next parseId
 
     ElseParser(final String queryString)
     {
@@ -245,6 +529,7 @@ public class ElseParser
         m_tokenizer.wordChars('a', 'z');
         m_tokenizer.wordChars(0xA0, 0xFF);
         m_tokenizer.wordChars('_', '_');
+        m_tokenizer.wordChars('@', '@'); // @timestamp
         m_tokenizer.wordChars('.', '.');
         m_tokenizer.quoteChar('\'');
         m_tokenizer.quoteChar('"');
@@ -274,7 +559,7 @@ public class ElseParser
     private boolean parseKeyword(Keyword k, boolean optional) throws Exception {
         int token = m_tokenizer.nextToken();
 
-        if (token == StreamTokenizer.TT_WORD && k.toString().equalsIgnoreCase(m_tokenizer.sval)) {
+        if (token == StreamTokenizer.TT_WORD && lookupKeyword(m_tokenizer.sval) == k) {
             if (DEBUG)
                 System.out.println("got keyword " + k);
 
@@ -297,13 +582,8 @@ public class ElseParser
         int token = m_tokenizer.nextToken();
         Keyword k = null;
 
-        if (token == StreamTokenizer.TT_WORD) {
-
-            try {
-                k = Keyword.valueOf(m_tokenizer.sval.toUpperCase());
-            } catch(IllegalArgumentException e) {
-            }
-        }
+        if (token == StreamTokenizer.TT_WORD)
+            k = lookupKeyword(m_tokenizer.sval);
 
         if (k != null && kset.contains(k))
             return k;
@@ -317,14 +597,8 @@ public class ElseParser
         int token = m_tokenizer.nextToken();
         Operator op = null;
 
-        if (token == StreamTokenizer.TT_WORD) {
-
-            try {
-                op = Operator.valueOf(m_tokenizer.sval.toUpperCase());
-            } catch(IllegalArgumentException e) {
-                ; // nothing to do
-            }
-        }
+        if (token == StreamTokenizer.TT_WORD)
+            op = lookupOperator(m_tokenizer.sval);
 
         if (op != null && oset.contains(op))
             return op;
@@ -356,6 +630,12 @@ public class ElseParser
      * Parse ID
      */
     private String parseId() throws Exception {
+        if (m_word != null) {
+            String word = m_word;
+            m_word = null;
+            return word;
+        }
+
         int token = m_tokenizer.nextToken();
         if (token == StreamTokenizer.TT_WORD) {
             String word = m_tokenizer.sval;
@@ -363,7 +643,7 @@ public class ElseParser
             if (DEBUG)
                 System.out.println("got " + word);
 
-            if (!KEYWORDS.containsKey(word.toUpperCase()))
+            if (!isReserved(word))
                     return word;
         }
 
@@ -371,6 +651,47 @@ public class ElseParser
         return null;
     }
 
+    /*
+     * Parse COUNT( or EXISTS( (anything else is left for parseId)
+     */
+    private Keyword parseFunction() throws Exception {
+        int token = m_tokenizer.nextToken();
+
+        if (token == StreamTokenizer.TT_WORD) {
+            String word = m_tokenizer.sval;
+            Keyword k = lookupKeyword(word);
+
+            if (k == Keyword.COUNT || k == Keyword.EXISTS) {
+                if (m_tokenizer.nextToken() == LIST_START) {
+                    if (DEBUG)
+                        System.out.println("got keyword " + k);
+
+                    return k;
+                }
+
+                m_word = word;
+            }
+        }
+
+        m_tokenizer.pushBack();
+        return null;
+    }
+
+    /*
+     * Parse the rest of a path after an array index ( .id.id... )
+     */
+    private String parsePathSuffix() throws Exception {
+        int token = m_tokenizer.nextToken();
+
+        if (token == StreamTokenizer.TT_WORD
+                && m_tokenizer.sval.length() > 1
+                && m_tokenizer.sval.charAt(0) == ID_SEPARATOR)
+            return m_tokenizer.sval;
+
+        m_tokenizer.pushBack();
+        return null;
+    }
+
     /*
      * Parse IDENTIFIER ( id.id... )
      */
@@ -402,6 +723,19 @@ public class ElseParser
             // expecting SEPARATOR
             //
             if (state == 1) {
+                if (parseToken(INDEX_START, true)) {
+                    int index = parseInteger();
+                    parseToken(INDEX_END, false);
+
+                    sb.append(INDEX_START).append(index).append(INDEX_END);
+
+                    String rest = parsePathSuffix();
+                    if (rest != null)
+                        sb.append(rest);
+
+                    continue;
+                }
+
                 if (parseToken(ID_SEPARATOR, true)) {
                     sb.append(ID_SEPARATOR);
                     state = 0;
@@ -444,6 +778,63 @@ public class ElseParser
         return result;
     }
 
+    /*
+     * Parse index name ( [cluster:]name, where name can contain - and * as in logs-2013.* )
+     */
+    private String parseIndex() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        boolean word = false;
+        boolean cluster = false;
+
+        for (;;) {
+            int token = m_tokenizer.nextToken();
+
+            if (token == StreamTokenizer.TT_WORD && !word && !isReserved(m_tokenizer.sval)) {
+                sb.append(m_tokenizer.sval);
+                word = true;
+                continue;
+            }
+
+            if (token == '-' || token == ALL_FIELDS) {
+                sb.append((char) token);
+                word = false;
+                continue;
+            }
+
+            if (token == CLUSTER_SEPARATOR && !cluster && sb.length() > 0) {
+                sb.append((char) token);
+                word = false;
+                cluster = true;
+                continue;
+            }
+
+            m_tokenizer.pushBack();
+            break;
+        }
+
+        if (sb.length() == 0 || sb.charAt(sb.length()-1) == CLUSTER_SEPARATOR)
+            throw parseError("index");
+
+        return sb.toString();
+    }
+
+    /*
+     * Parse (comma separated) list of indices
+     */
+    private List<String> parseIndices() throws Exception {
+
+        List<String> result = new ArrayList<String>();
+
+        for (;;) {
+            result.add(parseIndex());
+
+            if (parseToken(LIST_SEPARATOR, true)==false)
+                break;
+        }
+
+        return result;
+    }
+
     /*
      * Parse (comma separated) list of IDENTIFIERS (for sort/order by)
      */
@@ -708,11 +1099,53 @@ public class ElseParser
         if (m_parsed)
             return;
 
+        if (parseKeyword(Keyword.EXPLAIN, true)) {
+            m_query.explain = true;
+            parseSelect();
+        } else if (parseKeyword(Keyword.PROFILE, true)) {
+            m_query.profile = true;
+            parseSelect();
+        } else if (parseKeyword(Keyword.INSERT, true))
+            parseInsert();
+        else if (parseKeyword(Keyword.UPDATE, true))
+            parseUpdate();
+        else if (parseKeyword(Keyword.DELETE, true))
+            parseDelete();
+        else
+            parseSelect();
+
+        parseEnd();
+    }
+
+    /*
+     * SELECT ...
+     */
+    private void parseSelect()
+        throws Exception
+    {
         parseKeyword(Keyword.SELECT);
 
-        if (parseToken(ALL_FIELDS, true))
+        Keyword function = parseFunction();
+
+        if (function == Keyword.COUNT) {
+            parseToken(ALL_FIELDS, false);
+            parseToken(LIST_END, false);
+
+            m_query.countOnly = true;
+        } else if (function == Keyword.EXISTS) {
+            parseToken(ALL_FIELDS, true);
+            parseToken(LIST_END, false);
+
+            m_query.existsOnly = true;
+        } else if (m_word == null && parseToken(ALL_FIELDS, true)) {
             m_query.selectList = null;  // all fields
-        else
+
+            if (parseKeyword(Keyword.EXCEPT, true)) {
+                parseToken(LIST_START, false);
+                m_query.excludeList = parseIdentifiers();
+                parseToken(LIST_END, false);
+            }
+        } else
             m_query.selectList = parseIdentifiers();
 
         if (parseKeyword(Keyword.FACETS, true))
@@ -722,7 +1155,19 @@ public class ElseParser
             m_query.script = parseScript();
 
         parseKeyword(Keyword.FROM);
-        m_query.index = parseIdentifier();
+        m_query.indexList = parseIndices();
+        m_query.index = Util.join(String.valueOf(LIST_SEPARATOR), m_query.indexList);
+
+        if (parseKeyword(Keyword.JOIN, true)) {
+            m_query.joinIndex = parseIndex();
+            parseKeyword(Keyword.ON);
+
+            String left = parseIdentifier();
+            if (parseOperator() != Operator.EQ)
+                throw new ElseParser.ParseException("Expected '=' in JOIN condition");
+
+            m_query.joinOn = new Util.NameValue(left, parseIdentifier());
+        }
 
         if (parseKeyword(Keyword.WHERE, true))
             m_query.whereExpr = parseExpression();
@@ -745,9 +1190,125 @@ public class ElseParser
             }
 
             m_query.size = (int) v;
+        } else if (parseKeyword(Keyword.SAMPLE, true)) {
+            if (m_query.orderList != null)
+                throw new ElseParser.ParseException("SAMPLE cannot be used with ORDER BY");
+            if (m_query.countOnly || m_query.existsOnly)
+                throw new ElseParser.ParseException("SAMPLE cannot be used with COUNT(*) or EXISTS(*)");
+
+            m_query.sample = m_query.size = parseInteger();
         }
 
-        parseEnd();
+        if (parseKeyword(Keyword.APPROX, true)) {
+            int token = m_tokenizer.nextToken();
+            m_tokenizer.pushBack();
+
+            m_query.approx = token == StreamTokenizer.TT_EOF ? DEFAULT_APPROX : parseInteger();
+        }
+    }
+
+    /*
+     * INSERT INTO index
+     */
+    private void parseInsert()
+        throws Exception
+    {
+        m_query.command = Command.INSERT;
+
+        parseKeyword(Keyword.INTO);
+        parseTarget();
+    }
+
+    /*
+     * UPDATE index SET field = value, ... [WHERE expr] [FILTER expr]
+     */
+    private void parseUpdate()
+        throws Exception
+    {
+        m_query.command = Command.UPDATE;
+
+        parseTarget();
+        parseKeyword(Keyword.SET);
+
+        m_query.setList = new ArrayList<Util.NameValue>();
+
+        do {
+            String name = parseIdentifier();
+            if (parseOperator() != Operator.EQ)
+                throw new ElseParser.ParseException("Expected '=' in SET");
+
+            m_query.setList.add(new Util.NameValue(name, parseSetValue()));
+        } while (parseToken(LIST_SEPARATOR, true));
+
+        parseConditions();
+    }
+
+    /*
+     * DELETE FROM index WHERE expr [FILTER expr] (a condition is required)
+     */
+    private void parseDelete()
+        throws Exception
+    {
+        m_query.command = Command.DELETE;
+
+        parseKeyword(Keyword.FROM);
+        parseTarget();
+        parseConditions();
+
+        if (m_query.whereExpr == null && m_query.filterExpr == null)
+            throw new ElseParser.ParseException("DELETE requires a WHERE or FILTER condition");
+    }
+
+    /*
+     * The (single) index written by INSERT, UPDATE or DELETE
+     */
+    private void parseTarget() throws Exception {
+        m_query.index = parseIndex();
+        m_query.indexList = new ArrayList<String>();
+        m_query.indexList.add(m_query.index);
+    }
+
+    private void parseConditions() throws Exception {
+        if (parseKeyword(Keyword.WHERE, true))
+            m_query.whereExpr = parseExpression();
+
+        if (parseKeyword(Keyword.FILTER, true))
+            m_query.filterExpr = parseFilter();
+    }
+
+    /*
+     * Parse a SET value: a quoted string, a (possibly negative) number or true/false
+     */
+    private Object parseSetValue() throws Exception {
+        int token = m_tokenizer.nextToken();
+        boolean negative = token == '-';
+
+        if (negative)
+            token = m_tokenizer.nextToken();
+
+        else if (token == '"' || token == '\'')
+            return m_tokenizer.sval;
+
+        if (token == StreamTokenizer.TT_WORD) {
+            String word = negative ? "-" + m_tokenizer.sval : m_tokenizer.sval;
+
+            if (word.equalsIgnoreCase("true") || word.equalsIgnoreCase("false"))
+                return Boolean.valueOf(word);
+
+            try {
+                return Long.valueOf(word);
+            } catch(NumberFormatException e) {
+                ; // follow through
+            }
+
+            try {
+                return Double.valueOf(word);
+            } catch(NumberFormatException e) {
+                ; // follow through
+            }
+        }
+
+        throw parseError("value");
     }
 
     public static void main(String args[]) throws Exception {
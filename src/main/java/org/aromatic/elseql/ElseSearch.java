@@ -1,193 +1,2845 @@
 package org.aromatic.elseql;
 
+import java.io.*;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.gson.*;
 
 public class ElseSearch
 {
     String endpoint;
+    ResultCache cache = null;
+    Stats stats = new Stats();
+
+    boolean keyset = false;
+    String tiebreaker = DEFAULT_TIEBREAKER;
+    String cursor = null;
+
+    Map<String, String> clusters = new LinkedHashMap<String, String>();
+    ExecutorService executor = null;
+
+    long bulkBytes = BulkWriter.DEFAULT_BATCH_BYTES;
+    int bulkConcurrency = BulkWriter.DEFAULT_CONCURRENCY;
+    int bulkRetries = BulkWriter.DEFAULT_RETRIES;
+    String bulkType = null;
+    boolean byQuery = false;
+    BufferedReader input = null;
+
+    Transport.Balance balance = Transport.Balance.ROUND_ROBIN;
+    int retries = Transport.DEFAULT_RETRIES;
+    boolean hedge = false;
+    int connectTimeout = Transport.DEFAULT_CONNECT_TIMEOUT;
+    int readTimeout = Transport.DEFAULT_READ_TIMEOUT;
+    Map<String, Transport> transports = new LinkedHashMap<String, Transport>();
+
+    PageSizer pageSizing = new PageSizer();
+    Map<String, PageSizer> pageSizers = new HashMap<String, PageSizer>();
+
+    Mappings mappings = new Mappings();
+    boolean typed = false;
+
+    Partitions partitions = new Partitions();
+    Map<String, ElseParser.Query> queries = null; // parsed query cache
+
+    long spillBudget = SpillBuffer.DEFAULT_BUDGET;
+    File spillDirectory = null;
+
+    /*
+     * The largest page requested at once (the default index.max_result_window)
+     */
+    public static final int MAX_PAGE = 10000;
+
+    public static final String DEFAULT_TIEBREAKER = "_id";
+
+    public static final String SEARCH = "_search";
+    public static final String COUNT = "_count";
+
+    public static final String SCROLL_TIMEOUT = "1m";
+
+    /*
+     * The largest number of join keys pushed to the probe side as a terms filter
+     */
+    public static final int MAX_TERMS = 10000;
+
+    /*
+     * Constant parts of requests, encoded once (see JsonEncoder.constant)
+     */
+    static final JsonElement MATCH_ALL = JsonEncoder.constant(new Util.Json().put("match_all", new Util.Json()).element());
+    static final JsonElement EMPTY_OBJECT = JsonEncoder.constant(new JsonObject());
+
+    static final int MAX_FACET_LISTS = 100;
+
+    /* facet definitions by facet list, least recently used first */
+    static final Map<List<String>, JsonElement> facetDefinitions = new LinkedHashMap<List<String>, JsonElement>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<List<String>, JsonElement> eldest) {
+            if (size() <= MAX_FACET_LISTS)
+                return false;
+
+            JsonEncoder.release(eldest.getValue());
+            return true;
+        }
+    };
+
+    public ElseSearch(String url) {
+        this.endpoint = url;
+    }
+
+    /*
+     * Enable (or disable, with null) the client-side result cache
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /*
+     * Use search_after (keyset) pagination for sorted queries, with the given tiebreaker field
+     */
+    public void setKeyset(boolean keyset, String tiebreaker) {
+        this.keyset = keyset;
+        this.tiebreaker = tiebreaker == null ? DEFAULT_TIEBREAKER : tiebreaker;
+    }
+
+    /*
+     * Resume keyset pagination from a cursor returned by a previous query
+     */
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+        if (cursor != null)
+            this.keyset = true;
+    }
+
+    /*
+     * Set the bounds and targets (page size in bytes, latency in milliseconds) for paginated requests
+     */
+    public void setPageSizing(int min, int max, long targetBytes, long targetMillis) {
+        this.pageSizing = new PageSizer(min, max, targetBytes, targetMillis);
+        this.pageSizers.clear();
+    }
+
+    /*
+     * A page sizer for a paginated request on endpoint/index, starting from where the last one left off
+     */
+    synchronized PageSizer pageSizer(String endpoint, String index) {
+        String key = endpoint + "/" + index;
+        PageSizer previous = pageSizers.get(key);
+
+        PageSizer sizer = new PageSizer(previous == null ? pageSizing : previous);
+        pageSizers.put(key, sizer);
+        return sizer;
+    }
+
+    /*
+     * Set how requests are sent to the nodes of a cluster (see Transport)
+     */
+    public void setTransport(Transport.Balance balance, int retries, boolean hedge, int connectTimeout, int readTimeout) {
+        this.balance = balance;
+        this.retries = retries;
+        this.hedge = hedge;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.transports.clear();
+    }
+
+    /*
+     * The transport for an endpoint (a node URL, or a comma separated list of node URLs)
+     */
+    synchronized Transport transport(String endpoint) {
+        Transport transport = transports.get(endpoint);
+
+        if (transport == null) {
+            transport = new Transport(endpoint)
+                .setBalance(balance)
+                .setRetries(retries)
+                .setHedge(hedge)
+                .setTimeouts(connectTimeout, readTimeout);
+
+            if (hedge)
+                transport.setExecutor(executor());
+
+            transports.put(endpoint, transport);
+        }
+
+        return transport;
+    }
+
+    /*
+     * Transport statistics, one line per cluster
+     */
+    public synchronized String getTransportStats() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Transport transport : transports.values())
+            sb.append(transport).append('\n');
+
+        return sb.toString();
+    }
+
+    /*
+     * Set the batch size (in bytes), the number of batches in flight and the retries of rejected
+     * documents for INSERT, UPDATE and DELETE
+     */
+    public void setBulk(long batchBytes, int concurrency, int retries) {
+        this.bulkBytes = batchBytes;
+        this.bulkConcurrency = concurrency;
+        this.bulkRetries = retries;
+    }
+
+    /*
+     * Heap budget (in bytes) for the hits merged across clusters and the outputs buffered by a parallel
+     * batch, past which they are written to temporary files in directory (the default temporary directory if null)
+     */
+    public void setSpill(long budget, File directory) {
+        this.spillBudget = budget;
+        this.spillDirectory = directory;
+    }
+
+    /*
+     * Set the document type for INSERT (required before ES 7)
+     */
+    public void setBulkType(String type) {
+        this.bulkType = type;
+    }
+
+    /*
+     * Run UPDATE and DELETE with _update_by_query and _delete_by_query (ES 5+)
+     */
+    public void setByQuery(boolean byQuery) {
+        this.byQuery = byQuery;
+    }
+
+    /*
+     * Where INSERT reads the documents from
+     */
+    public void setInput(BufferedReader input) {
+        this.input = input;
+    }
+
+    /*
+     * Keep up to size parsed statements (0 to disable), for sessions that run the same statements again
+     */
+    public void setQueryCache(final int size) {
+        this.queries = size <= 0 ? null : new LinkedHashMap<String, ElseParser.Query>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, ElseParser.Query> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /*
+     * Parse a statement, going through the parsed query cache if enabled (parsed queries are not modified)
+     */
+    ElseParser.Query parse(String queryString) throws Exception {
+        if (queries == null)
+            return new ElseParser(queryString).getQuery();
+
+        synchronized(queries) {
+            ElseParser.Query query = queries.get(queryString);
+            if (query != null)
+                return query;
+        }
+
+        ElseParser.Query query = new ElseParser(queryString).getQuery();
+
+        synchronized(queries) {
+            queries.put(queryString, query);
+        }
+
+        return query;
+    }
+
+    /*
+     * The fields (and their type) of an index on the default cluster, from the mapping cache
+     */
+    public Map<String, String> getFields(String index) throws Exception {
+        return mappings.get(endpoint, transport(endpoint), index);
+    }
+
+    public Mappings getMappings() {
+        return mappings;
+    }
+
+    /*
+     * Compile WHERE and FILTER with the index mapping (refreshed every mappingTtl milliseconds):
+     * values are sent with the type of their field, exact matches on text fields use the
+     * keyword sub-field and fields that are not in the mapping are reported
+     */
+    public void setTyped(boolean typed, long mappingTtl) {
+        this.typed = typed;
+        this.mappings.setTtl(mappingTtl);
+    }
+
+    /*
+     * The fields of the FROM indices for typed queries, or null (typed queries disabled, indices on
+     * other clusters or mapping not available)
+     */
+    Map<String, String> typedFields(ElseParser.Query query) {
+        if (!typed)
+            return null;
+
+        for (String index : query.indexList) {
+            if (index.indexOf(ElseParser.CLUSTER_SEPARATOR) > 0)
+                return null;
+        }
+
+        try {
+            return getFields(query.index);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    /*
+     * Warn about the fields used by the query that are not in the mapping (typed queries only)
+     */
+    void checkFields(ElseParser.Query query) {
+        Map<String, String> fields = typedFields(query);
+
+        if (fields == null) {
+            if (typed)
+                System.err.println("warning: no mapping for " + query.index + ", values are not typed");
+            return;
+        }
+
+        Set<String> names = new LinkedHashSet<String>();
+
+        if (query.whereExpr != null)
+            query.whereExpr.collectFields(names);
+
+        if (query.filterExpr != null)
+            query.filterExpr.collectFields(names);
+
+        if (query.orderList != null) {
+            for (Util.NameValue nv : query.orderList)
+                names.add(nv.name);
+        }
+
+        if (query.facetList != null)
+            names.addAll(query.facetList);
+
+        if (query.selectList != null) {
+            for (String name : query.selectList) {
+                if (query.script != null && name.equals(query.script.name))
+                    continue;
+
+                if (query.joinIndex != null && name.startsWith(query.joinIndex + ElseParser.ID_SEPARATOR))
+                    continue; // checked against the join index by ES
+
+                names.add(Util.Path.compile(name).getSourcePath());
+            }
+        }
+
+        for (String name : names) {
+            if (!name.startsWith("_") && name.indexOf('*') < 0 && !fields.containsKey(name))
+                System.err.println("warning: unknown field " + name + " in " + query.index);
+        }
+    }
+
+    /*
+     * Add a time-partitioned index scheme, as logs-{yyyy.MM.dd}=@timestamp (see Partitions)
+     */
+    public void addPartitions(String scheme) {
+        partitions.add(scheme);
+    }
+
+    /*
+     * Whether a date range without an upper bound ends now when pruning partitions
+     */
+    public void setPartitionsUntilNow(boolean untilNow) {
+        partitions.setUntilNow(untilNow);
+    }
+
+    /*
+     * Register a named cluster, to be queried as FROM name:index
+     */
+    public void addCluster(String name, String url) {
+        clusters.put(name, url);
+    }
+
+    /*
+     * Group the FROM indices by cluster (endpoint -> comma separated indices)
+     */
+    Map<String, String> targets(ElseParser.Query query) {
+        Map<String, String> targets = new LinkedHashMap<String, String>();
+
+        for (String index : query.indexList) {
+            String url = endpoint;
+            int sep = index.indexOf(ElseParser.CLUSTER_SEPARATOR);
+
+            if (sep > 0) {
+                String name = index.substring(0, sep);
+
+                url = clusters.get(name);
+                if (url == null)
+                    throw new IllegalArgumentException("unknown cluster: " + name);
+
+                index = index.substring(sep+1);
+            }
+
+            String indices = targets.get(url);
+            targets.put(url, indices == null ? index : indices + ElseParser.LIST_SEPARATOR + index);
+        }
+
+        return targets;
+    }
+
+    /*
+     * The executor for concurrent requests and queries
+     */
+    synchronized ExecutorService executor() {
+        if (executor == null)
+            executor = newExecutor();
+
+        return executor;
+    }
+
+    /*
+     * A thread per task: virtual threads when available (Java 21+), so that blocking requests
+     * are cheap, otherwise a cached pool of (daemon) platform threads
+     */
+    static ExecutorService newExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch(Exception e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "elseql-request");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /*
+     * Where query results are written: System.out, unless the query runs with its own output
+     * (see submit)
+     */
+    static final ThreadLocal<PrintStream> output = new ThreadLocal<PrintStream>();
+
+    static PrintStream out() {
+        PrintStream out = output.get();
+        return out == null ? System.out : out;
+    }
+
+    /*
+     * Where the summary and the facets of NDJSON results are written, to keep the output
+     * one document per line: System.err, unless the query runs with its own (see submit)
+     */
+    static final ThreadLocal<PrintStream> errors = new ThreadLocal<PrintStream>();
+
+    static PrintStream err() {
+        PrintStream err = errors.get();
+        return err == null ? System.err : err;
+    }
+
+    /*
+     * Where query rows are collected instead of printed (see query)
+     */
+    static final ThreadLocal<ResultSet> collector = new ThreadLocal<ResultSet>();
+
+    /*
+     * A printer for the hits of query, or a collector if the rows go to a ResultSet
+     */
+    static Printer printer(ElseParser.Query query, Util.Format format, boolean streaming) {
+        ResultSet rows = collector.get();
+        return rows == null ? new Printer(query, format, streaming) : new Collector(query, rows);
+    }
+
+    /*
+     * Run a query on the executor, writing its results to out
+     */
+    public Future<?> submit(String queryString, Util.Format format, boolean streaming, boolean debug, PrintStream out) {
+        return submit(queryString, format, streaming, debug, out, System.err);
+    }
+
+    /*
+     * As submit, writing the NDJSON summary and facets to err
+     */
+    public Future<?> submit(final String queryString, final Util.Format format, final boolean streaming, final boolean debug, final PrintStream out, final PrintStream err) {
+        return executor().submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                output.set(out);
+                errors.set(err);
+
+                try {
+                    search(queryString, format, streaming, debug);
+                } finally {
+                    out.flush();
+                    err.flush();
+                    output.remove();
+                    errors.remove();
+                }
+
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Execute the same request on all the targets concurrently, return the responses in target order
+     */
+    List<Util.Json> executeAll(Map<String, String> targets, final String api, final byte body[]) throws Exception {
+        List<Future<Util.Json>> futures = new ArrayList<Future<Util.Json>>();
+
+        for (final Map.Entry<String, String> target : targets.entrySet()) {
+            futures.add(executor().submit(new Callable<Util.Json>() {
+                public Util.Json call() throws Exception {
+                    return execute(target.getKey(), target.getValue(), api, body, null);
+                }
+            }));
+        }
+
+        List<Util.Json> results = new ArrayList<Util.Json>();
+
+        try {
+            for (Future<Util.Json> f : futures)
+                results.add(get(f));
+        } finally {
+            for (Future<Util.Json> f : futures)
+                f.cancel(true);
+        }
+
+        return results;
+    }
+
+    /*
+     * Future.get, unwrapping the actual exception
+     */
+    static <T> T get(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch(ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+
+            throw e;
+        }
+    }
+
+    /*
+     * Return the collected per-phase statistics
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    /*
+     * Execute a search request, going through the result cache if enabled
+     */
+    Util.Json execute(String index, String body) throws Exception {
+        return execute(index, SEARCH, body);
+    }
+
+    Util.Json execute(String index, String api, String body) throws Exception {
+        return execute(endpoint, index, api, body);
+    }
+
+    Util.Json execute(String endpoint, String index, String api, String body) throws Exception {
+        return execute(endpoint, index, api, body, null);
+    }
+
+    /*
+     * As above, also returning the size of the response (in bytes) in received[0]
+     */
+    Util.Json execute(String endpoint, String index, String api, String body, long received[]) throws Exception {
+        return execute(endpoint, index, api, body.getBytes(Util.UTF8), received);
+    }
+
+    /*
+     * As above, with the request UTF-8 encoded (see JsonEncoder)
+     */
+    Util.Json execute(String endpoint, String index, String api, byte body[], long received[]) throws Exception {
+        byte response[] = executeRaw(endpoint, index, api, body, received);
+
+        long start = System.nanoTime();
+
+        Util.Json result = Util.parse_json(response);
+        stats.since(Stats.Phase.DECODE, start);
+
+        return result;
+    }
+
+    /*
+     * As above, returning the response as it was received (UTF-8 encoded)
+     */
+    byte[] executeRaw(String endpoint, String index, String api, byte data[], long received[]) throws Exception {
+        long start = System.nanoTime();
+
+        boolean cacheable = api.equals(SEARCH) || api.equals(COUNT); // no scrolls
+        String key = cache == null || !cacheable ? null : (SEARCH.equals(api) ? "" : api + " ") + new String(data, Util.UTF8);
+        String cachedResponse = key == null ? null : cache.get(endpoint, index, key);
+        boolean cached = cachedResponse != null;
+        byte response[];
+
+        if (cached)
+            response = cachedResponse.getBytes(Util.UTF8);
+        else {
+            // searches and counts can be retried and hedged, scrolls can't
+            response = transport(endpoint).requestBytes(Util.GET, index + "/" + api, data, null, cacheable);
+            stats.recordBytes(data.length, response.length);
+        }
+
+        if (received != null)
+            received[0] = response.length;
+
+        stats.since(Stats.Phase.REQUEST, start);
+
+        RawJson result = new RawJson(response);
+        boolean error = result.has("status") || result.has("error");
+        stats.countQuery(cached, error);
+
+        if (key != null && !cached && !error)
+            cache.put(endpoint, index, key, new String(response, Util.UTF8));
+
+        return response;
+    }
+
+    /*
+     * Build the query part of the request (the WHERE clause)
+     */
+    Util.Json buildQuery(ElseParser.Query query) {
+        Map<String, String> fields = query.whereExpr == null ? null : typedFields(query);
+
+        if (fields != null) {
+            return query.whereExpr.toQuery(fields);
+        } else if (query.whereExpr != null) {
+            return new Util.Json()
+                .put("query_string", new Util.Json()
+                .put("query", query.whereExpr.toQueryString())
+                .put("default_operator", "AND"));
+        } else {
+            return new Util.Json(MATCH_ALL);
+        }
+    }
+
+    /*
+     * Build the filter part of the request (the FILTER clause), or null
+     */
+    Util.Json buildFilter(ElseParser.Query query) {
+        if (query.filterExpr == null)
+            return null;
+
+        Util.Json filter = new Util.Json();
+
+        if (query.filterExpr.isExistsExpression())
+            filter.put("exists", new Util.Json()
+                  .put("field", (String) query.filterExpr.getOperand()));
+
+        else if (query.filterExpr.isMissingExpression())
+            filter.put("missing", new Util.Json()
+                  .put("field", (String) query.filterExpr.getOperand()));
+
+        else {
+            Map<String, String> fields = typedFields(query);
+
+            filter.put("query", fields != null
+                ? query.filterExpr.toQuery(fields)
+                : new Util.Json()
+                  .put("query_string", new Util.Json()
+                    .put("query", query.filterExpr.toQueryString())
+                    .put("default_operator", "AND")));
+        }
+
+        return filter;
+    }
+
+    /*
+     * Build the request for COUNT(*) (_count API) or EXISTS(*) (a search that stops at the first match)
+     */
+    Util.Json buildCountRequest(ElseParser.Query query) {
+        Util.Json q = buildQuery(query);
+        Util.Json filter = buildFilter(query);
+
+        if (filter != null) // _count only takes a query
+            q = new Util.Json().put("filtered", new Util.Json()
+                .put("query", q)
+                .put("filter", filter));
+
+        Util.Json data = new Util.Json().put("query", q);
+
+        if (query.existsOnly) {
+            data.put("size", 0);
+            data.put("terminate_after", 1);
+        } else if (query.approx > 0)
+            data.put("terminate_after", query.approx);
+
+        return data;
+    }
+
+    /*
+     * SAMPLE n: score the matching documents randomly, so that the first n are a random sample
+     */
+    Util.Json buildSample(Util.Json q) {
+        return new Util.Json().put("function_score", new Util.Json()
+            .put("query", q)
+            .put("random_score", new Util.Json(EMPTY_OBJECT))
+            .put("boost_mode", "replace"));
+    }
+
+    /*
+     * Results are approximate if sampled, or if the search stopped early (APPROX)
+     */
+    static boolean isApproximate(ElseParser.Query query, Util.Json result) {
+        return query.sample > 0 || (result.has("terminated_early") && result.getBoolean("terminated_early"));
+    }
+
+    /*
+     * The facet definitions of a facet list (a constant, shared by the queries with the same list)
+     */
+    static Util.Json buildFacets(List<String> facetList) {
+        synchronized(facetDefinitions) {
+            JsonElement facets = facetDefinitions.get(facetList);
+
+            if (facets == null) {
+                Util.Json definitions = new Util.Json();
+
+                for (String f : facetList)
+                    definitions.put(f, new Util.Json().put("terms", new Util.Json().put("field", f)));
+
+                facets = JsonEncoder.constant(definitions.element());
+                facetDefinitions.put(new ArrayList<String>(facetList), facets);
+            }
+
+            return new Util.Json(facets);
+        }
+    }
+
+    /*
+     * Build the ES search request for a parsed query
+     */
+    Util.Json buildRequest(ElseParser.Query query) {
+        Util.Json data = new Util.Json();
+
+        data.put("query", query.sample > 0 ? buildSample(buildQuery(query)) : buildQuery(query));
+
+        Util.Json filter = buildFilter(query);
+        if (filter != null)
+            data.put("filter", filter);
+
+        if (query.facetList != null)
+            data.put("facets", buildFacets(query.facetList));
+
+        if (query.script != null) {
+            data.put("script_fields", new Util.Json()
+                .put(query.script.name, new Util.Json()
+                .put("script", (String) query.script.value)));
+        }
+
+        //
+        // only ask for the fields we are going to use (script fields are returned separately)
+        //
+        if (query.selectList != null) {
+            Set<String> includes = new LinkedHashSet<String>();
+
+            for (String name : query.selectList) {
+                if (query.script == null || !name.equals(query.script.name))
+                    includes.add(Util.Path.compile(name).getSourcePath());
+            }
+
+            if (includes.isEmpty())
+                data.put("_source", false);
+            else
+                data.put("_source", new Util.Json().put("include", new ArrayList<String>(includes)));
+        } else if (query.excludeList != null) {
+            data.put("_source", new Util.Json().put("exclude", query.excludeList));
+        }
+
+        if (query.orderList != null) {
+            data.putNVList("sort", query.orderList);
+        }
+
+        data.put("from", query.from);
+        data.put("size", query.size);
+
+        if (query.approx > 0)
+            data.put("terminate_after", query.approx);
+
+        return data;
+    }
+
+    public void search(String queryString, Util.Format format, boolean streaming, boolean debug) throws Exception {
+
+        long begin = System.nanoTime();
+
+        ElseParser.Query query = null;
+
+        try {
+            query = parse(queryString);
+        } catch(ElseParser.ParseException e) {
+            out().println("syntax error: " + e.getMessage());
+            return;
+        }
+
+        search(query, format, streaming, debug, begin);
+    }
+
+    /*
+     * Run a SELECT and return its rows in a ResultSet (columns outside of the heap) instead of
+     * printing them, for programs that hold and scan large results in-process.
+     * Column types come from the mapping for typed queries (see setTyped), otherwise from the
+     * values. Facets are not returned. More than MAX_PAGE rows need keyset pagination (see
+     * setKeyset) and ORDER BY.
+     */
+    public ResultSet query(String queryString) throws Exception {
+        long begin = System.nanoTime();
+        ElseParser.Query query = parse(queryString);
+
+        if (query.command != ElseParser.Command.SELECT || query.countOnly || query.existsOnly || query.explain || query.profile)
+            throw new IllegalArgumentException("only SELECT returns rows: " + queryString);
+
+        ResultSet rows = new ResultSet(typedFields(query), query.from + query.size);
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        PrintStream previous = output.get();
+
+        collector.set(rows);
+        output.set(new PrintStream(messages, true, "UTF-8")); // errors, facets
+
+        try {
+            search(query, Util.Format.JSON, false, false, begin);
+        } finally {
+            collector.remove();
+
+            if (previous == null)
+                output.remove();
+            else
+                output.set(previous);
+        }
+
+        if (rows.getError() != null) { // the rows of the pages before a failed one are not a result
+            rows.close();
+            throw new IOException(rows.getError());
+        }
+
+        if (!rows.hasColumns()) {
+            String error = messages.toString("UTF-8").trim();
+
+            if (error.length() > 0) // no hits, the search failed
+                throw new IOException(error);
+
+            rows.setColumns(query.selectList == null ? new String[0] : query.selectList.toArray(new String[0]));
+        }
+
+        return rows;
+    }
+
+    /*
+     * Run a parsed statement (parsing started at begin)
+     */
+    void search(ElseParser.Query query, Util.Format format, boolean streaming, boolean debug, long begin) throws Exception {
+
+        long start = stats.since(Stats.Phase.PARSE, begin);
+
+        if (typed)
+            checkFields(query);
+
+        if (!partitions.isEmpty()) {
+            query = partitions.prune(query);
+
+            if (debug)
+                out().println("FROM: " + query.index);
+        }
+
+        Map<String, String> targets = targets(query);
+        boolean local = targets.size() == 1 && targets.containsKey(endpoint);
+
+        if (query.command != ElseParser.Command.SELECT) {
+            try {
+                write(query, targets, format, streaming, debug);
+            } finally {
+                stats.since(Stats.Phase.TOTAL, begin);
+            }
+            return;
+        }
+
+        if (query.explain) {
+            explain(query, targets, local);
+            return;
+        }
+
+        if (query.profile) {
+            if (!local || query.joinIndex != null || query.countOnly || query.existsOnly)
+                throw new IllegalArgumentException("PROFILE is only supported for searches on the default cluster");
+
+            try {
+                profile(query, debug, begin, start);
+            } finally {
+                stats.since(Stats.Phase.TOTAL, begin);
+            }
+            return;
+        }
+
+        if (query.countOnly || query.existsOnly) {
+            try {
+                searchCount(query, targets, format, debug);
+            } finally {
+                stats.since(Stats.Phase.TOTAL, begin);
+            }
+            return;
+        }
+
+        if (query.joinIndex != null) {
+            if (!local)
+                throw new IllegalArgumentException("JOIN is only supported on the default cluster");
+
+            try {
+                searchJoin(query, format, streaming, debug);
+            } finally {
+                stats.since(Stats.Phase.TOTAL, begin);
+            }
+            return;
+        }
+
+        if (!local) {
+            try {
+                searchFanOut(query, targets, format, streaming, debug);
+            } finally {
+                stats.since(Stats.Phase.TOTAL, begin);
+            }
+            return;
+        }
+
+        // keyset pagination changes the tree for every page
+        Util.Json data = buildRequest(query);
+        byte body[] = keyset && query.orderList != null ? null : JsonEncoder.encode(data);
+
+        stats.since(Stats.Phase.BUILD, start);
+
+        String url = endpoint + "/" + query.index + "/_search";
+
+        if (debug) {
+           out().println("REQUEST: " + url);
+           out().println(data.toPrettyString());
+           out().println();
+        }
+
+        if (keyset && query.orderList != null) {
+            try {
+                searchKeyset(query, data, format, streaming, debug);
+            } finally {
+                stats.since(Stats.Phase.TOTAL, begin);
+            }
+            return;
+        }
+
+        if (!debug && (format == Util.Format.NATIVE || format == Util.Format.NDJSON)) {
+            byte response[] = executeRaw(endpoint, query.index, SEARCH, body, null);
+
+            start = System.nanoTime();
+
+            try {
+                printRaw(query, response, format);
+            } finally {
+                stats.since(Stats.Phase.OUTPUT, start);
+                stats.since(Stats.Phase.TOTAL, begin);
+            }
+            return;
+        }
+
+        Util.Json result = execute(endpoint, query.index, SEARCH, body, null);
+
+        start = System.nanoTime();
+
+        try {
+            print(query, result, format, streaming, debug);
+        } finally {
+            stats.since(Stats.Phase.OUTPUT, start);
+            stats.since(Stats.Phase.TOTAL, begin);
+        }
+    }
+
+    /*
+     * Fast paths for SELECT COUNT(*) and SELECT EXISTS(*): no hits are retrieved, a single value is printed
+     */
+    void searchCount(ElseParser.Query query, Map<String, String> targets, Util.Format format, boolean debug) throws Exception {
+
+        long start = System.nanoTime();
+
+        Util.Json data = buildCountRequest(query);
+        String api = query.countOnly ? COUNT : SEARCH;
+        byte body[] = JsonEncoder.encode(data);
+
+        stats.since(Stats.Phase.BUILD, start);
+
+        if (debug) {
+           for (Map.Entry<String, String> target : targets.entrySet())
+               out().println("REQUEST: " + target.getKey() + "/" + target.getValue() + "/" + api);
+           out().println(data.toPrettyString());
+           out().println();
+        }
+
+        List<Util.Json> results = executeAll(targets, api, body);
+
+        start = System.nanoTime();
+        long count = 0;
+        boolean approximate = false;
+
+        for (Util.Json result : results) {
+            if (format == Util.Format.NATIVE || debug || result.has("status") || result.has("error")) {
+                print(query, result, format, false, debug);
+                count = -1;
+            }
+
+            else if (count >= 0) {
+                count += query.countOnly ? result.getLong("count") : totalHits(result.get("hits"));
+                approximate |= query.countOnly && isApproximate(query, result);
+            }
+        }
+
+        if (count >= 0)
+            out().println(query.countOnly ? count + (approximate ? " (approximate)" : "") : String.valueOf(count > 0));
+
+        stats.since(Stats.Phase.OUTPUT, start);
+    }
+
+    /*
+     * EXPLAIN: print the request a query compiles to and how each clause is executed, without running it
+     */
+    void explain(ElseParser.Query query, Map<String, String> targets, boolean local) {
+        PrintStream out = out();
+        Util.Json data = query.countOnly || query.existsOnly ? buildCountRequest(query) : buildRequest(query);
+        String api = query.countOnly ? COUNT : SEARCH;
+        String plan;
+
+        if (query.countOnly)
+            plan = "count (_count API, no hits are retrieved)";
+        else if (query.existsOnly)
+            plan = "exists (stops at the first match, no hits are retrieved)";
+        else if (query.joinIndex != null)
+            plan = "hash join: " + query.joinIndex + " is scrolled into a table (build), " + query.index + " is scrolled and probed";
+        else if (!local)
+            plan = "fan-out to " + targets.size() + " clusters, merged on the client";
+        else if (keyset && query.orderList != null)
+            plan = "keyset pagination (search_after, adaptive page size)";
+        else
+            plan = "single search";
+
+        out.println("plan: " + plan);
+
+        for (Map.Entry<String, String> target : targets.entrySet())
+            out.println("REQUEST: " + target.getKey() + "/" + target.getValue() + "/" + api);
+
+        out.println(data.toPrettyString());
+        out.println();
+
+        List<String[]> notes = new ArrayList<String[]>();
+
+        String scored = query.countOnly || query.existsOnly ? "query (hits are only counted)" : "query (scored)";
+
+        if (query.whereExpr != null) {
+            for (ElseParser.Expression e : query.whereExpr.conjuncts()) {
+                notes.add(new String[] { "WHERE " + e.toQueryString(), e.isRangeExpression()
+                    ? scored + ": a range, in FILTER it could be cached"
+                    : scored });
+            }
+        } else
+            notes.add(new String[] { "(no WHERE)", "match_all (constant score)" });
+
+        if (query.filterExpr != null) {
+            for (ElseParser.Expression e : query.filterExpr.conjuncts())
+                notes.add(new String[] { "FILTER " + e.toQueryString(), "filter (not scored, cached)" });
+        }
+
+        if (query.sample > 0)
+            notes.add(new String[] { "SAMPLE " + query.sample, "random_score: every matching document is scored" });
+
+        if (query.approx > 0)
+            notes.add(new String[] { "APPROX " + query.approx, "terminate_after: each shard stops after " + query.approx + " documents" });
+
+        if (query.orderList != null)
+            notes.add(new String[] { "ORDER BY " + query.orderList, "sort on doc values" });
+
+        if (query.facetList != null)
+            notes.add(new String[] { "FACETS " + query.facetList, "terms facets over all the matching documents" });
+
+        if (query.selectList != null)
+            notes.add(new String[] { "SELECT " + query.selectList, "only the selected _source fields are returned" });
+
+        if (!query.countOnly && !query.existsOnly && query.joinIndex == null) {
+            long depth = (long) query.from + query.size;
+
+            if (keyset && query.orderList != null && local)
+                notes.add(new String[] { "LIMIT " + query.from + "," + query.size, "skipped rows only return their sort values" });
+            else
+                notes.add(new String[] { "LIMIT " + query.from + "," + query.size, "every shard returns " + depth + " hits"
+                    + (depth > MAX_PAGE ? ", more than index.max_result_window (use --keyset with ORDER BY)" : "") });
+        }
+
+        int width = 0;
+        for (String note[] : notes)
+            width = Math.max(width, note[0].length());
+
+        for (String note[] : notes)
+            out.println(String.format("  %-" + width + "s  %s", note[0], note[1]));
+
+        out.println();
+    }
+
+    /*
+     * PROFILE: run the search with the ES profiler, print the time spent on every shard
+     * (query, rewrite, collectors, aggregations), the query tree of the slowest shard and the
+     * client side phases.
+     */
+    void profile(ElseParser.Query query, boolean debug, long begin, long parsed) throws Exception {
+        long start = System.nanoTime();
+
+        Util.Json data = buildRequest(query).put("profile", true);
+        byte body[] = JsonEncoder.encode(data);
+
+        long built = System.nanoTime();
+
+        if (debug) {
+           out().println("REQUEST: " + endpoint + "/" + query.index + "/" + SEARCH);
+           out().println(data.toPrettyString());
+           out().println();
+        }
+
+        // not cached: the profile is only meaningful for a request that ran
+        byte response[] = transport(endpoint).requestBytes(Util.GET, query.index + "/" + SEARCH, body, null, true);
+        stats.recordBytes(body.length, response.length);
+
+        long received = System.nanoTime();
+
+        Util.Json result = Util.parse_json(response);
+        boolean error = result.has("status") || result.has("error");
+        stats.countQuery(false, error);
+
+        long decoded = System.nanoTime();
+
+        stats.record(Stats.Phase.BUILD, built - start);
+        stats.record(Stats.Phase.REQUEST, received - built);
+        stats.record(Stats.Phase.DECODE, decoded - received);
+
+        if (debug || error || !result.has("profile")) {
+            print(query, result, Util.Format.NATIVE, false, debug);
+            return;
+        }
+
+        PrintStream out = out();
+
+        out.println("took: " + result.get("took")
+            + ", timed_out: " + result.get("timed_out")
+            + ", total: " + result.get("hits").get("total")
+            + ", retrieved: " + result.get("hits").get("hits").size());
+        out.println();
+
+        out.println(String.format("%-32s %12s %12s %12s %12s", "shard", "query(ms)", "rewrite(ms)", "collect(ms)", "aggs(ms)"));
+
+        Util.Json shards = result.get("profile").get("shards");
+        Util.Json slowest = null;
+        long slowestNanos = -1;
+
+        for (int i=0; i < shards.size(); i++) {
+            Util.Json shard = shards.get(i);
+            long queryNanos = 0, rewriteNanos = 0, collectNanos = 0, aggsNanos = 0;
+
+            Util.Json searches = shard.has("searches") ? shard.get("searches") : new Util.Json(new JsonArray());
+            for (int s=0; s < searches.size(); s++) {
+                Util.Json search = searches.get(s);
+
+                queryNanos += profileNanos(search, "query");
+                collectNanos += profileNanos(search, "collector");
+
+                if (search.has("rewrite_time"))
+                    rewriteNanos += search.getLong("rewrite_time");
+            }
+
+            aggsNanos = profileNanos(shard, "aggregations");
+
+            long total = queryNanos + rewriteNanos + collectNanos + aggsNanos;
+            if (total > slowestNanos) {
+                slowest = shard;
+                slowestNanos = total;
+            }
+
+            out.println(String.format("%-32s %12.3f %12.3f %12.3f %12.3f", shard.getString("id"),
+                queryNanos / 1e6, rewriteNanos / 1e6, collectNanos / 1e6, aggsNanos / 1e6));
+        }
+
+        if (slowest != null && slowest.has("searches")) { // no query tree if only aggregations were profiled
+            out.println();
+            out.println("query tree (" + slowest.getString("id") + "):");
+
+            Util.Json searches = slowest.get("searches");
+            for (int s=0; s < searches.size(); s++)
+                printProfileTree(out, searches.get(s), "query", 1);
+        }
+
+        long end = System.nanoTime();
+
+        out.println();
+        out.println(String.format("client: parse %.3fms, build %.3fms, request %.3fms (took %sms on the cluster), decode %.3fms, total %.3fms",
+            (parsed - begin) / 1e6, (built - start) / 1e6, (received - built) / 1e6, result.get("took"),
+            (decoded - received) / 1e6, (end - begin) / 1e6));
+        out.println();
+
+        stats.record(Stats.Phase.OUTPUT, end - decoded);
+    }
+
+    /*
+     * Total time of the profile nodes in parent.name (time_in_nanos, or "time" in milliseconds before ES 5)
+     */
+    static long profileNanos(Util.Json parent, String name) {
+        if (!parent.has(name))
+            return 0;
+
+        Util.Json nodes = parent.get(name);
+        long nanos = 0;
+
+        for (int i=0; i < nodes.size(); i++)
+            nanos += profileNanos(nodes.get(i));
+
+        return nanos;
+    }
+
+    static long profileNanos(Util.Json node) {
+        if (node.has("time_in_nanos"))
+            return node.getLong("time_in_nanos");
+
+        if (node.has("time"))
+            return (long) (Double.parseDouble(node.getString("time").replace("ms", "")) * 1e6);
+
+        return 0;
+    }
+
+    static void printProfileTree(PrintStream out, Util.Json parent, String name, int depth) {
+        if (!parent.has(name))
+            return;
+
+        Util.Json nodes = parent.get(name);
+
+        for (int i=0; i < nodes.size(); i++) {
+            Util.Json node = nodes.get(i);
+
+            StringBuilder type = new StringBuilder();
+            for (int d=0; d < depth; d++)
+                type.append("  ");
+            type.append(node.getString("type"));
+
+            String description = node.has("description") ? node.getString("description") : "";
+            if (description.length() > 60)
+                description = description.substring(0, 57) + "...";
+
+            out.println(String.format("%-40s %10.3fms  %s", type, profileNanos(node) / 1e6, description));
+
+            printProfileTree(out, node, "children", depth + 1);
+        }
+    }
+
+    /*
+     * "total" is a number, or an object with a "value" since ES 7
+     */
+    static long totalHits(Util.Json hits) {
+        Util.Json total = hits.get("total");
+        return total.isObject() ? total.getLong("value") : total.asLong();
+    }
+
+    /*
+     * Query several clusters in parallel and merge the results.
+     *
+     * Every cluster returns its first start+count hits and LIMIT is applied on the merged results.
+     * With ORDER BY the (sorted) hits are merged in order, otherwise the responses are used
+     * as they arrive and the slower requests are cancelled once there are enough hits
+     * (unless there are facets, which are merged across all the clusters).
+     *
+     * The hits of each cluster are moved to a SpillBuffer as its response arrives (see spillHits),
+     * so that the merged hits are not all held in the heap, and are decoded one at a time as they are merged.
+     */
+    void searchFanOut(ElseParser.Query query, Map<String, String> targets, Util.Format format, boolean streaming, boolean debug) throws Exception {
+
+        long start = System.nanoTime();
+
+        Util.Json data = buildRequest(query).put("from", 0).put("size", query.from + query.size);
+        final byte body[] = JsonEncoder.encode(data);
+
+        stats.since(Stats.Phase.BUILD, start);
+
+        if (debug) {
+           for (Map.Entry<String, String> target : targets.entrySet())
+               out().println("REQUEST: " + target.getKey() + "/" + target.getValue() + "/" + SEARCH);
+           out().println(data.toPrettyString());
+           out().println();
+        }
+
+        final boolean whole = format == Util.Format.NATIVE || debug; // the responses are printed as they are
+        CompletionService<Util.Json> completion = new ExecutorCompletionService<Util.Json>(executor());
+        Map<Future<Util.Json>, String> futures = new HashMap<Future<Util.Json>, String>();
+        Map<Future<Util.Json>, SpillBuffer> buffers = new HashMap<Future<Util.Json>, SpillBuffer>();
+
+        for (final Map.Entry<String, String> target : targets.entrySet()) {
+            final SpillBuffer buffer = new SpillBuffer(spillBudget / targets.size(), null).setDirectory(spillDirectory);
+
+            Future<Util.Json> f = completion.submit(new Callable<Util.Json>() {
+                public Util.Json call() throws Exception {
+                    if (whole)
+                        return execute(target.getKey(), target.getValue(), SEARCH, body, null);
+
+                    return spillHits(executeRaw(target.getKey(), target.getValue(), SEARCH, body, null), buffer);
+                }
+            });
+
+            futures.put(f, target.getKey());
+            buffers.put(f, buffer);
+        }
+
+        try {
+            mergeFanOut(query, targets, format, streaming, debug, completion, futures, buffers);
+        } finally {
+            for (SpillBuffer buffer : buffers.values())
+                buffer.close();
+        }
+    }
+
+    /*
+     * Collect the responses of searchFanOut as they complete, and print the merged hits
+     */
+    private void mergeFanOut(ElseParser.Query query, Map<String, String> targets, Util.Format format, boolean streaming, boolean debug,
+            CompletionService<Util.Json> completion, Map<Future<Util.Json>, String> futures, Map<Future<Util.Json>, SpillBuffer> buffers) throws Exception {
+
+        List<Util.Json> results = new ArrayList<Util.Json>();
+        List<SpillBuffer> hitLists = new ArrayList<SpillBuffer>();
+        int needed = query.from + query.size;
+        long available = 0;
+
+        try {
+            for (int i=0; i < targets.size(); i++) {
+                Future<Util.Json> f = completion.take();
+                Util.Json result;
+
+                try {
+                    result = get(f);
+                } catch(Exception e) {
+                    out().println("ERROR " + futures.get(f) + ": " + e);
+                    continue;
+                }
+
+                if (format == Util.Format.NATIVE || debug || !result.has("hits")) {
+                    print(query, result, format, streaming, debug);
+                    continue;
+                }
+
+                results.add(result);
+                hitLists.add(buffers.get(f));
+                available += buffers.get(f).size();
+
+                if (query.orderList == null && query.facetList == null && available >= needed)
+                    break;
+            }
+        } finally {
+            for (Future<Util.Json> f : futures.keySet())
+                f.cancel(true);
+        }
+
+        if (results.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+
+        List<Iterator<JsonElement>> sources = new ArrayList<Iterator<JsonElement>>();
+        Util.Json first = null;
+        long took = 0;
+        long total = 0;
+        boolean timedOut = false;
+        boolean approximate = false;
+
+        for (Util.Json result : results) {
+            Util.Json hits = result.get("hits");
+            approximate |= isApproximate(query, result);
+
+            if (first == null || first.size() == 0)
+                first = hits.get("hits");
+
+            took = Math.max(took, result.getLong("took"));
+            timedOut |= result.getBoolean("timed_out");
+            total += totalHits(hits);
+        }
+
+        for (SpillBuffer hitList : hitLists)
+            sources.add(decodeHits(hitList.iterator()));
+
+        Iterator<JsonElement> merged = query.orderList == null
+            ? Iterators.concat(sources)
+            : Iterators.merge(sources, hitOrder(query.orderList));
+
+        for (int i=0; i < query.from && merged.hasNext(); i++)
+            merged.next();
+
+        Printer printer = printer(query, format, streaming);
+        printer.start(first);
+
+        int retrieved = 0;
+
+        for (; retrieved < query.size && merged.hasNext(); retrieved++)
+            printer.print(merged.next());
+
+        printer.end("took: " + took
+            + ", timed_out: " + timedOut
+            + ", total: " + total
+            + ", retrieved: " + retrieved
+            + (approximate ? ", approximate: true" : "")
+            + ", clusters: " + results.size() + "/" + targets.size());
+
+        printFacets(mergeFacets(results), format);
+
+        stats.since(Stats.Phase.OUTPUT, start);
+    }
+
+    /*
+     * Move the hits of a search response to buffer (as one-value rows with the encoded hit) and return
+     * the rest of the response, with only the first hit (the columns are taken from it). Errors
+     * are returned as they are.
+     */
+    Util.Json spillHits(byte response[], SpillBuffer buffer) throws IOException {
+        long start = System.nanoTime();
+
+        RawJson result = new RawJson(response);
+        RawJson hits = result.get("hits");
+
+        if (hits == null || result.has("status")) {
+            Util.Json error = Util.parse_json(response);
+            stats.since(Stats.Phase.DECODE, start);
+            return error;
+        }
+
+        Util.Json summary = new Util.Json();
+
+        for (String name : new String[] { "took", "timed_out", "terminated_early", "facets" }) {
+            if (result.has(name))
+                summary.put(name, new Util.Json(result.get(name).parse()));
+        }
+
+        JsonArray first = new JsonArray();
+
+        for (RawJson hit : hits.get("hits").elements()) {
+            if (first.size() == 0)
+                first.add(hit.parse());
+
+            buffer.add(new String[] { hit.toString() });
+        }
+
+        summary.put("hits", new Util.Json()
+            .put("total", new Util.Json(hits.get("total").parse()))
+            .put("hits", new Util.Json(first)));
+
+        stats.since(Stats.Phase.DECODE, start);
+        return summary;
+    }
+
+    /*
+     * Decode the hits read from a SpillBuffer, one at a time
+     */
+    static Iterator<JsonElement> decodeHits(final Iterator<String[]> rows) {
+        return new Iterator<JsonElement>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public JsonElement next() {
+                return new JsonParser().parse(rows.next()[0]);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+        /*
+         * Iterate over all the hits of a search with the scroll API, a page at a time
+         */
+    class Scroll {
+        final String endpoint;
+        final String index;
+        final byte body[];
+        String scrollId = null;
+        Util.Json first = null;
+        Util.Json error = null;
+        boolean done = false;
+        long took = 0;
+        int pages = 0;
+        long hits = 0;
+
+        final PageSizer sizer;
+        final int size;
+        final long received[] = new long[1];
+
+        /*
+         * The scroll page size is set by the first request, from the estimates of the
+         * previous scrolls on the same index
+         */
+        Scroll(String endpoint, String index, Util.Json data) {
+            this.endpoint = endpoint;
+            this.index = index;
+            this.sizer = pageSizer(endpoint, index);
+            this.size = sizer.next();
+            this.body = JsonEncoder.encode(data.put("size", size));
+        }
+
+        /*
+         * Return the next page of hits, or null at the end (or if an error occurred)
+         */
+        Util.Json next() throws Exception {
+            if (done)
+                return null;
+
+            Util.Json page;
+            long start = System.nanoTime();
+
+            if (scrollId == null)
+                page = execute(endpoint, index, SEARCH + "?scroll=" + SCROLL_TIMEOUT, body, received);
+            else
+                page = execute(endpoint, SEARCH, "scroll", JsonEncoder.encode(new Util.Json()
+                    .put("scroll", SCROLL_TIMEOUT)
+                    .put("scroll_id", scrollId)), received);
+
+            long elapsed = System.nanoTime() - start;
+            pages++;
+
+            if (!page.has("hits")) {
+                error = page;
+                close();
+                return null;
+            }
+
+            if (first == null)
+                first = page;
+
+            took += page.getLong("took");
+
+            if (page.has("_scroll_id"))
+                scrollId = page.getString("_scroll_id");
+
+            Util.Json result = page.get("hits").get("hits");
+            hits += result.size();
+            sizer.observe(size, result.size(), received[0], elapsed);
+
+            if (result.size() == 0) {
+                close();
+                return null;
+            }
+
+            return result;
+        }
+
+        /*
+         * Release the scroll context on the server (best effort)
+         */
+        void close() {
+            done = true;
+
+            if (scrollId == null)
+                return;
+
+            try {
+                transport(endpoint).request(Util.DELETE, SEARCH + "/scroll",
+                    "{\"scroll_id\":[" + new JsonPrimitive(scrollId) + "]}", null, false);
+            } catch(Exception e) {
+                ; // the context will expire anyway
+            }
+
+            scrollId = null;
+        }
+    }
+
+    /*
+     * Client-side (inner) hash join: SELECT ... FROM left JOIN right ON lfield = rfield ...
+     *
+     * The right index is the build side: it's fully scrolled into a JoinTable (that spills to disk
+     * if too large). The left query is the probe side: it's streamed with a scroll, restricted
+     * to the build keys with a terms filter when there aren't too many of them (semi-join reduction).
+     * Joined rows have the fields of the left document, and the right document as a field
+     * named after the right index, so SELECT a, right.b works as for any nested field.
+     * WHERE, FILTER and ORDER BY apply to the left index, LIMIT to the joined rows.
+     */
+    void searchJoin(ElseParser.Query query, Util.Format format, boolean streaming, boolean debug) throws Exception {
+
+        long start = System.nanoTime();
+
+        String right = query.joinIndex;
+        Util.Path lpath = Util.Path.compile(query.joinOn.name);
+        Util.Path rpath = Util.Path.compile((String) query.joinOn.value);
+
+        //
+        // selected fields prefixed by the right index name come from the build side
+        //
+        Set<String> leftFields = null;
+        Set<String> rightFields = null;
+
+        if (query.selectList != null) {
+            String prefix = right + ElseParser.ID_SEPARATOR;
+
+            leftFields = new LinkedHashSet<String>();
+            rightFields = new LinkedHashSet<String>();
+
+            for (String name : query.selectList) {
+                String path = Util.Path.compile(name).getSourcePath();
+
+                if (path.startsWith(prefix))
+                    rightFields.add(path.substring(prefix.length()));
+                else if (query.script == null || !name.equals(query.script.name))
+                    leftFields.add(path);
+            }
+
+            leftFields.add(lpath.getSourcePath());
+            rightFields.add(rpath.getSourcePath());
+        }
+
+        Util.Json buildData = new Util.Json()
+            .put("query", new Util.Json().put("match_all", new Util.Json()));
+
+        if (rightFields != null)
+            buildData.put("_source", new Util.Json().put("include", new ArrayList<String>(rightFields)));
+
+        stats.since(Stats.Phase.BUILD, start);
+
+        if (debug) {
+           out().println("BUILD: " + endpoint + "/" + right + "/" + SEARCH);
+           out().println(buildData.toPrettyString());
+           out().println();
+        }
+
+        JoinTable table = new JoinTable();
+
+        try {
+            //
+            // build
+            //
+            Scroll build = new Scroll(endpoint, right, buildData);
+
+            for (Util.Json hits; (hits = build.next()) != null; ) {
+                for (int i=0; i < hits.size(); i++) {
+                    JsonElement source = hits.element(i).getAsJsonObject().get("_source");
+
+                    for (String key : joinKeys(rpath.resolve(source)))
+                        table.add(key, source.toString());
+                }
+            }
+
+            if (build.error != null) {
+                print(query, build.error, format, streaming, debug);
+                return;
+            }
+
+            //
+            // probe
+            //
+            start = System.nanoTime();
+
+            Util.Json data = buildRequest(query)
+                .remove("from");
+
+            if (leftFields != null)
+                data.put("_source", new Util.Json().put("include", new ArrayList<String>(leftFields)));
+
+            boolean semiJoin = table.distinctKeys() <= MAX_TERMS;
+
+            if (semiJoin) {
+                JsonArray terms = new JsonArray();
+
+                for (String key : table.keys()) {
+                    Long v = JoinTable.integerKey(key);
+                    terms.add(v != null ? new JsonPrimitive(v) : new JsonPrimitive(key));
+                }
+
+                Util.Json termsFilter = new Util.Json().put("terms", new Util.Json()
+                    .put(lpath.getSourcePath(), new Util.Json(terms)));
+
+                Util.Json filter = buildFilter(query);
+
+                if (filter == null)
+                    data.put("filter", termsFilter);
+                else
+                    data.put("filter", new Util.Json().put("bool", new Util.Json()
+                        .put("must", new Util.Json(new JsonArray())
+                            .add(filter)
+                            .add(termsFilter))));
+            }
+
+            stats.since(Stats.Phase.BUILD, start);
+
+            if (debug) {
+               out().println("PROBE: " + endpoint + "/" + query.index + "/" + SEARCH);
+               out().println(data.toPrettyString());
+               out().println();
+            }
+
+            Scroll probe = new Scroll(endpoint, query.index, data);
+            Printer printer = null;
+            int skipped = 0;
+            int retrieved = 0;
+
+            try {
+                probing:
+                for (Util.Json hits; (hits = probe.next()) != null; ) {
+                    for (int i=0; i < hits.size(); i++) {
+                        JsonObject hit = hits.element(i).getAsJsonObject();
+                        JsonObject source = hit.getAsJsonObject("_source");
+
+                        for (String key : joinKeys(lpath.resolve(source))) {
+                            for (String match : table.get(key)) {
+                                if (skipped < query.from) {
+                                    skipped++;
+                                    continue;
+                                }
+
+                                JsonObject joined = new JsonObject();
+
+                                if (source != null) {
+                                    for (Map.Entry<String, JsonElement> e : source.entrySet())
+                                        joined.add(e.getKey(), e.getValue());
+                                }
+
+                                joined.add(right, Util.parse(match).element());
+
+                                JsonObject row = new JsonObject();
+                                row.add("_source", joined);
+                                if (hit.has("fields"))
+                                    row.add("fields", hit.get("fields"));
+
+                                if (printer == null) {
+                                    printer = printer(query, format, streaming);
+                                    printer.start(row);
+                                }
+
+                                printer.print(row);
+
+                                if (++retrieved >= query.size)
+                                    break probing;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                probe.close();
+            }
+
+            String info = "took: " + (build.took + probe.took)
+                + ", build rows: " + table.size()
+                + (table.isSpilled() ? " (spilled)" : "")
+                + ", probe hits: " + probe.hits
+                + ", semi-join: " + semiJoin
+                + ", retrieved: " + retrieved
+                + ", page size: " + build.sizer + "/" + probe.sizer;
+
+            if (probe.error != null) {
+                if (printer != null) // the rows joined before the failed page
+                    printer.end(info + ", incomplete: true");
+
+                print(query, probe.error, format, streaming, debug);
+                return;
+            }
+
+            if (printer == null) {
+                printer = printer(query, format, streaming);
+                printer.start((JsonElement) null);
+            }
+
+            printer.end(info);
+        } finally {
+            table.close();
+        }
+    }
+
+    /*
+     * The join keys of a value (arrays have a key per element)
+     */
+    static List<String> joinKeys(JsonElement value) {
+        if (value == null || value.isJsonNull())
+            return Collections.emptyList();
+
+        if (value.isJsonArray()) {
+            List<String> keys = new ArrayList<String>();
+
+            for (JsonElement e : value.getAsJsonArray())
+                keys.addAll(joinKeys(e));
+
+            return keys;
+        }
+
+        if (!value.isJsonPrimitive())
+            return Collections.emptyList();
+
+        JsonPrimitive p = value.getAsJsonPrimitive();
+
+        if (p.isNumber()) {
+            double d = p.getAsDouble();
+
+            // integers have the same key, whatever their representation ( 5, 5.0 )
+            if (d == Math.rint(d) && Math.abs(d) < 1e18)
+                return Collections.singletonList(String.valueOf((long) d));
+        }
+
+        return Collections.singletonList(p.getAsString());
+    }
+
+    /*
+     * Compare hits by their sort values (nulls last)
+     */
+    static Comparator<JsonElement> hitOrder(final List<Util.NameValue> orderList) {
+        return new Comparator<JsonElement>() {
+            public int compare(JsonElement a, JsonElement b) {
+                JsonArray sa = a.getAsJsonObject().getAsJsonArray("sort");
+                JsonArray sb = b.getAsJsonObject().getAsJsonArray("sort");
+
+                for (int i=0; i < orderList.size(); i++) {
+                    int c = compareValues(
+                        sa == null || i >= sa.size() ? null : sa.get(i),
+                        sb == null || i >= sb.size() ? null : sb.get(i));
+
+                    if (c != 0)
+                        return "desc".equals(orderList.get(i).value) ? -c : c;
+                }
+
+                return 0;
+            }
+        };
+    }
+
+    static int compareValues(JsonElement a, JsonElement b) {
+        boolean anull = a == null || a.isJsonNull();
+        boolean bnull = b == null || b.isJsonNull();
+
+        if (anull || bnull)
+            return anull == bnull ? 0 : anull ? 1 : -1;
+
+        if (a.isJsonPrimitive() && b.isJsonPrimitive()
+                && a.getAsJsonPrimitive().isNumber() && b.getAsJsonPrimitive().isNumber())
+            return Double.compare(a.getAsDouble(), b.getAsDouble());
+
+        return a.getAsString().compareTo(b.getAsString());
+    }
+
+    /*
+     * INSERT, UPDATE and DELETE
+     */
+    void write(ElseParser.Query query, Map<String, String> targets, Util.Format format, boolean streaming, boolean debug) throws Exception {
+        Map.Entry<String, String> target = targets.entrySet().iterator().next();
+
+        if (query.command == ElseParser.Command.INSERT)
+            insert(target.getKey(), target.getValue());
+        else if (byQuery)
+            writeByQuery(query, target.getKey(), target.getValue(), format, streaming, debug);
+        else
+            writeByScroll(query, target.getKey(), target.getValue(), format, streaming, debug);
+    }
+
+    BulkWriter bulkWriter(String endpoint, String path) {
+        return new BulkWriter(transport(endpoint), path, executor())
+            .setStats(stats)
+            .setBatchBytes(bulkBytes)
+            .setConcurrency(bulkConcurrency)
+            .setRetries(bulkRetries);
+    }
+
+    void printBulk(BulkWriter writer) {
+        out().println(writer);
+
+        if (writer.getFirstError() != null)
+            out().println("error: " + writer.getFirstError());
+    }
+
+    /*
+     * INSERT INTO index: index the documents read from the input, as NDJSON (one object per line)
+     * or CSV (with a header line). An _id field or column is used as the document id.
+     * CSV records end at the first empty line: what follows in --csv output is the summary.
+     */
+    void insert(String endpoint, String index) throws Exception {
+        if (input == null)
+            throw new IllegalStateException("INSERT reads the documents from the standard input (not available in batch mode)");
+
+        BulkWriter writer = bulkWriter(endpoint, index + (bulkType == null ? "" : "/" + bulkType) + "/_bulk");
+
+        Boolean ndjson = null;
+        List<JsonElement> columns = null;
+        JsonParser parser = new JsonParser();
+        String line;
+
+        try {
+            while ((line = input.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    if (ndjson != null && !ndjson)
+                        break;
+
+                    continue;
+                }
+
+                if (ndjson == null)
+                    ndjson = line.trim().startsWith("{");
+
+                JsonObject doc;
+
+                if (ndjson)
+                    doc = parser.parse(line).getAsJsonObject();
+
+                else if (columns == null) {
+                    columns = parseCSV(line, input);
+                    continue;
+                }
+
+                else {
+                    List<JsonElement> values = parseCSV(line, input);
+                    doc = new JsonObject();
+
+                    for (int i=0; i < columns.size() && i < values.size(); i++) {
+                        if (values.get(i) != null)
+                            doc.add(columns.get(i).getAsString(), values.get(i));
+                    }
+                }
+
+                JsonObject meta = new JsonObject();
+
+                if (doc.has("_id"))
+                    meta.add("_id", doc.remove("_id"));
+
+                JsonObject action = new JsonObject();
+                action.add("index", meta);
+
+                writer.add(action, doc);
+            }
+        } finally {
+            writer.close();
+        }
+
+        printBulk(writer);
+    }
+
+    /*
+     * Parse a CSV record (as written by --csv): quoted values are strings (or JSON objects and arrays),
+     * unquoted values are numbers or booleans, empty values are null. A quoted value can span lines.
+     */
+    static List<JsonElement> parseCSV(String line, BufferedReader input) throws IOException {
+        List<JsonElement> values = new ArrayList<JsonElement>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        boolean inQuotes = false;
+        int i = 0;
+
+        while (true) {
+            if (i == line.length()) {
+                if (inQuotes) { // the value continues on the next line
+                    String next = input.readLine();
+
+                    if (next != null) {
+                        value.append('\n');
+                        line = next;
+                        i = 0;
+                        continue;
+                    }
+                }
+
+                values.add(csvValue(value.toString(), quoted));
+                return values;
+            }
+
+            char c = line.charAt(i++);
+
+            if (inQuotes) {
+                if (c != '"')
+                    value.append(c);
+                else if (i < line.length() && line.charAt(i) == '"') {
+                    value.append('"');
+                    i++;
+                } else
+                    inQuotes = false;
+            }
+
+            else if (c == '"') {
+                inQuotes = quoted = true;
+            }
+
+            else if (c == ElseParser.LIST_SEPARATOR) {
+                values.add(csvValue(value.toString(), quoted));
+                value.setLength(0);
+                quoted = false;
+            }
+
+            else
+                value.append(c);
+        }
+    }
+
+    static JsonElement csvValue(String value, boolean quoted) {
+        if (quoted) {
+            if (value.startsWith("{") || value.startsWith("[")) {
+                try {
+                    return new JsonParser().parse(value);
+                } catch(JsonParseException e) {
+                    ; // just a string
+                }
+            }
+
+            return new JsonPrimitive(value);
+        }
+
+        value = value.trim();
+
+        if (value.length() == 0 || value.equals("null"))
+            return null;
+
+        if (value.equals("true") || value.equals("false"))
+            return new JsonPrimitive(Boolean.valueOf(value));
+
+        try {
+            return new JsonPrimitive(Long.valueOf(value));
+        } catch(NumberFormatException e) {
+            ; // follow through
+        }
+
+        try {
+            return new JsonPrimitive(Double.valueOf(value));
+        } catch(NumberFormatException e) {
+            return new JsonPrimitive(value);
+        }
+    }
+
+    /*
+     * The SET list as a (partial) document, dotted names become nested objects
+     */
+    static JsonObject setDocument(List<Util.NameValue> setList) {
+        JsonObject doc = new JsonObject();
+
+        for (Util.NameValue nv : setList) {
+            String path[] = nv.name.split("\\.");
+            JsonObject parent = doc;
+
+            for (int i=0; i < path.length - 1; i++) {
+                JsonElement child = parent.get(path[i]);
+
+                if (child == null || !child.isJsonObject()) {
+                    child = new JsonObject();
+                    parent.add(path[i], child);
+                }
+
+                parent = child.getAsJsonObject();
+            }
+
+            parent.add(path[path.length - 1], setValue(nv.value));
+        }
+
+        return doc;
+    }
+
+    static JsonPrimitive setValue(Object value) {
+        if (value instanceof Number)
+            return new JsonPrimitive((Number) value);
+
+        if (value instanceof Boolean)
+            return new JsonPrimitive((Boolean) value);
+
+        return new JsonPrimitive(String.valueOf(value));
+    }
+
+    /*
+     * UPDATE and DELETE on the client: scroll the ids of the matching documents and
+     * send an update (or delete) action for each one through the bulk writer.
+     * This works with any ES version.
+     */
+    void writeByScroll(ElseParser.Query query, String endpoint, String index, Util.Format format, boolean streaming, boolean debug) throws Exception {
+
+        long start = System.nanoTime();
+        boolean update = query.command == ElseParser.Command.UPDATE;
+
+        Util.Json data = buildRequest(query)
+            .remove("from")
+            .put("_source", false);
+
+        JsonObject doc = null;
+
+        if (update) {
+            doc = new JsonObject();
+            doc.add("doc", setDocument(query.setList));
+        }
+
+        stats.since(Stats.Phase.BUILD, start);
+
+        if (debug) {
+           out().println("SCROLL: " + endpoint + "/" + index + "/" + SEARCH);
+           out().println(data.toPrettyString());
+           out().println();
+        }
+
+        BulkWriter writer = bulkWriter(endpoint, "_bulk");
+        Scroll scroll = new Scroll(endpoint, index, data);
+
+        try {
+            for (Util.Json hits; (hits = scroll.next()) != null; ) {
+                for (int i=0; i < hits.size(); i++) {
+                    JsonObject hit = hits.element(i).getAsJsonObject();
+                    JsonObject meta = new JsonObject();
+
+                    meta.add("_index", hit.get("_index"));
+                    if (hit.has("_type"))
+                        meta.add("_type", hit.get("_type"));
+                    meta.add("_id", hit.get("_id"));
+
+                    JsonObject action = new JsonObject();
+                    action.add(update ? "update" : "delete", meta);
+
+                    writer.add(action, doc);
+                }
+            }
+        } finally {
+            scroll.close();
+            writer.close();
+        }
+
+        if (scroll.error != null) {
+            print(query, scroll.error, format, streaming, debug);
+            return;
+        }
+
+        printBulk(writer);
+    }
+
+    /*
+     * UPDATE and DELETE on the server, with _update_by_query and _delete_by_query (ES 5+)
+     */
+    void writeByQuery(ElseParser.Query query, String endpoint, String index, Util.Format format, boolean streaming, boolean debug) throws Exception {
+
+        long start = System.nanoTime();
+        boolean update = query.command == ElseParser.Command.UPDATE;
+
+        Util.Json q = buildQuery(query);
+
+        if (query.filterExpr != null) {
+            Util.Json filter;
+            String field = String.valueOf(query.filterExpr.getOperand());
+
+            if (query.filterExpr.isExistsExpression())
+                filter = new Util.Json().put("exists", new Util.Json().put("field", field));
+
+            else if (query.filterExpr.isMissingExpression())
+                filter = new Util.Json().put("bool", new Util.Json()
+                    .put("must_not", new Util.Json().put("exists", new Util.Json().put("field", field))));
+
+            else
+                filter = new Util.Json().put("query_string", new Util.Json()
+                    .put("query", query.filterExpr.toQueryString())
+                    .put("default_operator", "AND"));
+
+            q = new Util.Json().put("bool", new Util.Json()
+                .put("must", q)
+                .put("filter", filter));
+        }
+
+        Util.Json data = new Util.Json().put("query", q);
+
+        if (update) {
+            StringBuilder script = new StringBuilder();
+            Util.Json params = new Util.Json();
+
+            for (int i=0; i < query.setList.size(); i++) {
+                Util.NameValue nv = query.setList.get(i);
+
+                String names[] = nv.name.split("\\.");
+                StringBuilder path = new StringBuilder("ctx._source");
+
+                // create the missing objects along the path, as a partial update does
+                for (int j=0; j < names.length - 1; j++) {
+                    path.append("['").append(names[j]).append("']");
+                    script.append("if (").append(path).append(" == null) ").append(path).append(" = [:]; ");
+                }
+
+                path.append("['").append(names[names.length - 1]).append("']");
+                script.append(path).append(" = params.v").append(i).append("; ");
+
+                params.element().getAsJsonObject().add("v" + i, setValue(nv.value));
+            }
+
+            data.put("script", new Util.Json()
+                .put("source", script.toString().trim())
+                .put("lang", "painless")
+                .put("params", params));
+        }
+
+        String path = index + "/" + (update ? "_update_by_query" : "_delete_by_query");
+        byte body[] = JsonEncoder.encode(data);
+
+        start = stats.since(Stats.Phase.BUILD, start);
+
+        if (debug) {
+           out().println("REQUEST: " + endpoint + "/" + path);
+           out().println(data.toPrettyString());
+           out().println();
+        }
+
+        byte response[] = transport(endpoint).requestBytes(Util.POST, path, body, null, false);
+        stats.recordBytes(body.length, response.length);
+        start = stats.since(Stats.Phase.REQUEST, start);
+
+        Util.Json result = Util.parse_json(response);
+        boolean error = result.has("status") || result.has("error");
+        stats.countQuery(false, error);
+
+        if (format == Util.Format.NATIVE || debug || error) {
+            print(query, result, format, streaming, debug);
+            return;
+        }
+
+        out().println("took: " + result.get("took")
+            + ", timed_out: " + result.get("timed_out")
+            + ", " + (update ? "updated: " + result.get("updated") : "deleted: " + result.get("deleted"))
+            + ", version_conflicts: " + result.get("version_conflicts")
+            + ", failures: " + result.get("failures").size());
+
+        stats.since(Stats.Phase.OUTPUT, start);
+    }
+
+    /*
+     * Keyset pagination: walk a sorted query with search_after, so that every page costs
+     * the same to the cluster as the first one, no matter how deep.
+     *
+     * A tiebreaker field is appended to the sort to make the order total. The LIMIT start rows
+     * are skipped by only fetching their sort values and the remaining rows are fetched in pages.
+     * The sort values of the last hit are returned as an opaque cursor, to resume later.
+     */
+    void searchKeyset(ElseParser.Query query, Util.Json data, Util.Format format, boolean streaming, boolean debug) throws Exception {
+
+        List<Util.NameValue> sort = new ArrayList<Util.NameValue>(query.orderList);
+        boolean hasTiebreaker = false;
+
+        for (Util.NameValue nv : sort) {
+            if (nv.name.equals(tiebreaker))
+                hasTiebreaker = true;
+        }
+
+        if (!hasTiebreaker)
+            sort.add(new Util.NameValue(tiebreaker, "asc"));
+
+        data.putNVList("sort", sort);
+        data.put("from", 0);
+
+        Util.Json after = cursor == null ? null : decodeCursor(cursor);
+        long took = 0;
+        int pages = 0;
+
+        PageSizer sizer = pageSizer(endpoint, query.index);
+        long received[] = new long[1];
+
+        //
+        // skip the first rows, only retrieving their sort values
+        //
+        int skip = query.from;
+        boolean exhausted = false;
+
+        if (skip > 0) {
+            Util.Json skipData = buildRequest(query)
+                .remove("facets")
+                .remove("script_fields")
+                .put("_source", false)
+                .putNVList("sort", sort)
+                .put("from", 0);
+
+            while (skip > 0) {
+                int n = Math.min(skip, MAX_PAGE);
+
+                skipData.put("size", n);
+                if (after != null)
+                    skipData.put("search_after", after);
+
+                Util.Json page = execute(endpoint, query.index, SEARCH, JsonEncoder.encode(skipData), null);
+                pages++;
+
+                if (!page.has("hits")) {
+                    print(query, page, format, streaming, debug);
+                    return;
+                }
+
+                took += page.getLong("took");
+
+                Util.Json hits = page.get("hits").get("hits");
+                if (hits.size() > 0)
+                    after = hits.get(hits.size()-1).get("sort");
+
+                skip -= hits.size();
+
+                if (hits.size() < n) {
+                    exhausted = true;
+                    break;
+                }
+            }
+        }
+
+        //
+        // fetch the requested rows
+        //
+        long start = System.nanoTime();
+        long output = 0;
+
+        Printer printer = null;
+        Util.Json first = null;
+        int remaining = exhausted ? 0 : query.size;
+        int retrieved = 0;
+
+        do {
+            int n = Math.min(remaining, Math.min(sizer.next(), MAX_PAGE));
+
+            data.put("size", n);
+            if (after != null)
+                data.put("search_after", after);
+
+            start = System.nanoTime();
+            Util.Json page = execute(endpoint, query.index, SEARCH, JsonEncoder.encode(data), received);
+            long elapsed = System.nanoTime() - start;
+            pages++;
+
+            start = System.nanoTime();
+
+            if (!page.has("hits")) {
+                if (printer != null && format != Util.Format.NATIVE && !debug) // the rows of the previous pages
+                    printer.end(keysetInfo(query, first, took, retrieved, pages, sizer, after) + ", incomplete: true");
+
+                print(query, page, format, streaming, debug);
+                return;
+            }
+
+            if (format == Util.Format.NATIVE || debug)
+                print(query, page, format, streaming, debug);
+
+            Util.Json hits = page.get("hits").get("hits");
+            took += page.getLong("took");
+
+            if (first == null) {
+                first = page;
+                data.remove("facets"); // facets only need to be computed once
+
+                printer = printer(query, format, streaming);
+                if (format != Util.Format.NATIVE && !debug)
+                    printer.start(hits);
+            }
+
+            if (format != Util.Format.NATIVE && !debug) {
+                for (int i=0; i < hits.size(); i++)
+                    printer.print(hits.element(i));
+            }
+
+            output += System.nanoTime() - start;
+
+            if (hits.size() > 0)
+                after = hits.get(hits.size()-1).get("sort");
 
-    public ElseSearch(String url) {
-        this.endpoint = url;
+            retrieved += hits.size();
+            remaining -= hits.size();
+
+            sizer.observe(n, hits.size(), received[0], elapsed);
+
+            if (hits.size() < n)
+                break;
+        } while (remaining > 0);
+
+        start = System.nanoTime();
+
+        if (format != Util.Format.NATIVE && !debug) {
+            printer.end(keysetInfo(query, first, took, retrieved, pages, sizer, after));
+            printFacets(first, format);
+        } else if (after != null)
+            out().println("cursor: " + encodeCursor(after));
+
+        stats.record(Stats.Phase.OUTPUT, output + System.nanoTime() - start);
     }
 
-    public void search(String queryString, Util.Format format, boolean streaming, boolean debug) throws Exception {
+    /*
+     * The summary line of a keyset search (the cursor resumes after the last row retrieved)
+     */
+    static String keysetInfo(ElseParser.Query query, Util.Json first, long took, int retrieved, int pages, PageSizer sizer, Util.Json after) throws Exception {
+        StringBuilder info = new StringBuilder();
 
-        ElseParser parser = new ElseParser(queryString);
-        ElseParser.Query query = null;
+        info.append("took: " + took);
+        info.append(", timed_out: " + first.get("timed_out"));
+        info.append(", total: " + first.get("hits").get("total"));
+        info.append(", retrieved: " + retrieved);
+        info.append(", pages: " + pages);
+        info.append(", page size: " + sizer);
 
-        try {
-            query = parser.getQuery();
-        } catch(ElseParser.ParseException e) {
-            System.out.println("syntax error: " + e.getMessage());
+        if (isApproximate(query, first))
+            info.append(", approximate: true");
+
+        if (after != null)
+            info.append(", cursor: " + encodeCursor(after));
+
+        return info.toString();
+    }
+
+    /*
+     * A cursor is the (URL-safe) base64 encoding of the sort values of the last hit
+     */
+    static String encodeCursor(Util.Json sortValues) throws Exception {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sortValues.toString().getBytes("UTF-8"));
+    }
+
+    static Util.Json decodeCursor(String cursor) throws Exception {
+        return Util.parse(new String(Base64.getUrlDecoder().decode(cursor), "UTF-8"));
+    }
+
+    /*
+     * Print search results in the requested format
+     */
+    void print(ElseParser.Query query, Util.Json result, Util.Format format, boolean streaming, boolean debug) throws IOException {
+
+        StringBuilder info = new StringBuilder();
+
+        if (format == Util.Format.NATIVE || debug) {
+            out().println(result.toPrettyString());
             return;
         }
 
-        Util.Json data = new Util.Json();
+        if (result.has("status")) { // some error has occurred
+            out().println("status: " + result.get("status"));
+            out().println("error: " + result.get("error"));
 
-        if (query.whereExpr != null) {
-            data.put("query", new Util.Json()
-                .put("query_string", new Util.Json()
-                .put("query", query.whereExpr.toQueryString())
-                .put("default_operator", "AND")));
+            if (collector.get() != null)
+                collector.get().setError("status: " + result.get("status") + "\nerror: " + result.get("error"));
         } else {
-            data.put("query", new Util.Json().put("match_all", new Util.Json()));
+            info.append("took: " + result.get("took"));
+            info.append(", timed_out: " + result.get("timed_out"));
         }
 
-        if (query.filterExpr != null) {
-            Util.Json filter = new Util.Json();
+        if (result.has("hits")) {
+            Util.Json hits = result.get("hits");
 
-            if (query.filterExpr.isExistsExpression())
-                filter.put("exists", new Util.Json()
-                      .put("field", (String) query.filterExpr.getOperand()));
+            info.append(", total: " + hits.get("total"));
 
-            else if (query.filterExpr.isMissingExpression())
-                filter.put("missing", new Util.Json()
-                      .put("field", (String) query.filterExpr.getOperand()));
+            hits = hits.get("hits");
+            info.append(", retrieved: " + hits.size());
 
-            else
-                filter.put("query", new Util.Json()
-                      .put("query_string", new Util.Json()
-                        .put("query", query.filterExpr.toQueryString())
-                        .put("default_operator", "AND")));
+            if (isApproximate(query, result))
+                info.append(", approximate: true");
 
-            data.put("filter", filter);
+            Printer printer = printer(query, format, streaming);
+            printer.start(hits);
+
+            for (int i=0; i < hits.size(); i++)
+                printer.print(hits.element(i));
+
+            printer.end(info.toString());
         }
 
-        if (query.facetList != null) {
-            Util.Json facets = new Util.Json();
+        printFacets(result, format);
+    }
 
-            for (String f : query.facetList) {
-                facets.put(f, new Util.Json().put("terms", new Util.Json().put("field", f)));
-            }
+    /*
+     * Print a response without decoding it: --native copies it as-is, NDJSON copies the _source
+     * of every hit. Only the hits with script fields (to merge them), the facets and the summary
+     * are decoded.
+     */
+    void printRaw(ElseParser.Query query, byte response[], Util.Format format) throws IOException {
+        PrintStream out = out();
+
+        if (format == Util.Format.NATIVE) {
+            out.write(response);
+
+            if (response.length == 0 || response[response.length - 1] != '\n')
+                out.write('\n');
 
-            data.put("facets", facets);
+            out.flush();
+            return;
         }
 
-        if (query.script != null) {
-            data.put("script_fields", new Util.Json()
-                .put(query.script.name, new Util.Json()
-                .put("script", (String) query.script.value)));
+        RawJson result = new RawJson(response);
+        RawJson hits = result.get("hits");
+
+        if (hits == null || result.has("status")) { // an error, or not a search response
+            print(query, Util.parse_json(response), format, false, false);
+            return;
         }
 
-        if (query.selectList != null) {
-            data.put("fields", query.selectList);
+        List<RawJson> list = hits.get("hits").elements();
+
+        Util.Json summary = new Util.Json()
+            .put("took", new Util.Json(result.get("took").parse()))
+            .put("timed_out", new Util.Json(result.get("timed_out").parse()));
+
+        if (result.has("terminated_early"))
+            summary.put("terminated_early", new Util.Json(result.get("terminated_early").parse()));
+
+        OutputStream buffered = new BufferedOutputStream(out, 65536);
+
+        for (RawJson hit : list) {
+            RawJson source = hit.get("_source");
+            RawJson fields = hit.get("fields");
+
+            if (source != null && fields == null)
+                source.writeTo(buffered);
+
+            else if (source != null || fields != null) { // script fields
+                Util.Json values = source == null ? new Util.Json(fields.parse()) : new Util.Json(source.parse());
+
+                if (source != null)
+                    values = values.merge(new Util.Json(fields.parse()));
+
+                buffered.write(values.toString().getBytes(Util.UTF8));
+            }
+
+            else
+                hit.writeTo(buffered);
+
+            buffered.write('\n');
         }
 
-        if (query.orderList != null) {
-            data.putNVList("sort", query.orderList);
+        buffered.flush();
+
+        String info = "took: " + summary.get("took")
+            + ", timed_out: " + summary.get("timed_out")
+            + ", total: " + hits.get("total")
+            + ", retrieved: " + list.size()
+            + (isApproximate(query, summary) ? ", approximate: true" : "");
+
+        err().println(info); // keep the output one document per line
+
+        if (result.has("facets"))
+            printFacets(new Util.Json().put("facets", new Util.Json(result.get("facets").parse())), format);
+    }
+
+    /*
+     * Print the facets of a response as rows (facet, term, count) in the output format, followed
+     * by a summary line per facet. The term entries of the response are used as they are,
+     * the row object is reused.
+     */
+    void printFacets(Util.Json result, Util.Format format) throws IOException {
+        if (!result.has("facets"))
+            return;
+
+        Printer printer = new Printer(FACET_COLUMNS, format);
+        StringBuilder info = new StringBuilder();
+        JsonObject row = new JsonObject();
+
+        printer.start((JsonElement) null);
+
+        for (Map.Entry<String, JsonElement> e : result.element("facets").getAsJsonObject().entrySet()) {
+            JsonObject facet = e.getValue().getAsJsonObject();
+            JsonElement terms = facet.get("terms");
+
+            row.addProperty("facet", e.getKey());
+
+            if (terms != null && terms.isJsonArray()) {
+                for (JsonElement term : terms.getAsJsonArray()) {
+                    JsonObject t = term.getAsJsonObject();
+
+                    row.add("term", t.get("term"));
+                    row.add("count", t.get("count"));
+                    printer.printRow(row);
+                }
+            }
+
+            if (info.length() > 0)
+                info.append('\n');
+
+            info.append("facet " + e.getKey()
+                + ": total: " + facet.get("total")
+                + ", other: " + facet.get("other")
+                + ", missing: " + facet.get("missing"));
         }
 
-        data.put("from", query.from);
-        data.put("size", query.size);
+        printer.end(info.toString());
+    }
 
-        String url = endpoint + "/" + query.index + "/_search";
+    static final String FACET_COLUMNS[] = { "facet", "term", "count" };
 
-        if (debug) {
-           System.out.println("REQUEST: " + url);
-           System.out.println(data.toPrettyString());
-           System.out.println();
+    /*
+     * Merge the facets of several responses (one per cluster): the counts of a term and the totals
+     * are added, and the terms sorted by count again. Each cluster only returns its top terms, so
+     * the count of a term that is missing from the top of a cluster is a lower bound (that cluster
+     * counted it in other). The merged facet keeps as many terms as the longest list, the counts of
+     * the terms past it go to other.
+     */
+    static Util.Json mergeFacets(List<Util.Json> results) {
+        Map<String, Map<JsonElement, long[]>> terms = new LinkedHashMap<String, Map<JsonElement, long[]>>();
+        Map<String, long[]> totals = new HashMap<String, long[]>(); // total, other, missing, terms size
+
+        for (Util.Json result : results) {
+            if (!result.has("facets"))
+                continue;
+
+            for (Map.Entry<String, JsonElement> e : result.element("facets").getAsJsonObject().entrySet()) {
+                JsonObject facet = e.getValue().getAsJsonObject();
+                Map<JsonElement, long[]> counts = terms.get(e.getKey());
+                long sums[] = totals.get(e.getKey());
+
+                if (counts == null) {
+                    terms.put(e.getKey(), counts = new LinkedHashMap<JsonElement, long[]>());
+                    totals.put(e.getKey(), sums = new long[4]);
+                }
+
+                sums[0] += facet.has("total") ? facet.get("total").getAsLong() : 0;
+                sums[1] += facet.has("other") ? facet.get("other").getAsLong() : 0;
+                sums[2] += facet.has("missing") ? facet.get("missing").getAsLong() : 0;
+
+                JsonElement list = facet.get("terms");
+                if (list == null || !list.isJsonArray())
+                    continue;
+
+                sums[3] = Math.max(sums[3], list.getAsJsonArray().size());
+
+                for (JsonElement term : list.getAsJsonArray()) {
+                    JsonObject t = term.getAsJsonObject();
+                    long count[] = counts.get(t.get("term"));
+
+                    if (count == null)
+                        counts.put(t.get("term"), count = new long[1]);
+
+                    count[0] += t.get("count").getAsLong();
+                }
+            }
         }
 
-        Util.Json result = Util.get_json(url, data.toString());
+        if (terms.isEmpty())
+            return new Util.Json();
 
-        StringBuilder info = new StringBuilder();
+        JsonObject facets = new JsonObject();
 
-        if (format == Util.Format.NATIVE || debug) {
-            System.out.println(result.toPrettyString());
-            return;
+        for (Map.Entry<String, Map<JsonElement, long[]>> e : terms.entrySet()) {
+            List<Map.Entry<JsonElement, long[]>> sorted = new ArrayList<Map.Entry<JsonElement, long[]>>(e.getValue().entrySet());
+            long sums[] = totals.get(e.getKey());
+            JsonArray list = new JsonArray();
+
+            Collections.sort(sorted, new Comparator<Map.Entry<JsonElement, long[]>>() {
+                public int compare(Map.Entry<JsonElement, long[]> a, Map.Entry<JsonElement, long[]> b) {
+                    long x = a.getValue()[0], y = b.getValue()[0];
+                    return x > y ? -1 : x < y ? 1 : 0;
+                }
+            });
+
+            for (int i=0; i < sorted.size(); i++) {
+                long count = sorted.get(i).getValue()[0];
+
+                if (i >= sums[3]) {
+                    sums[1] += count;
+                    continue;
+                }
+
+                JsonObject t = new JsonObject();
+                t.add("term", sorted.get(i).getKey());
+                t.addProperty("count", count);
+                list.add(t);
+            }
+
+            JsonObject facet = new JsonObject();
+            facet.addProperty("total", sums[0]);
+            facet.addProperty("other", sums[1]);
+            facet.addProperty("missing", sums[2]);
+            facet.add("terms", list);
+
+            facets.add(e.getKey(), facet);
         }
 
-        if (result.has("status")) { // some error has occurred
-            System.out.println("status: " + result.get("status"));
-            System.out.println("error: " + result.get("error"));
-        } else {
-            info.append("took: " + result.get("took"));
-            info.append(", timed_out: " + result.get("timed_out"));
+        return new Util.Json().put("facets", new Util.Json(facets));
+    }
+
+        /*
+         * Print hits in the requested format, possibly across several pages of results.
+         *
+         * Column paths are compiled once per query and rows are built in a reused buffer,
+         * working on the parsed elements directly.
+         */
+    static class Printer {
+        final ElseParser.Query query;
+        final Util.Format format;
+        final boolean streaming;
+        final Writer out;
+        final StringBuilder row = new StringBuilder();
+        char buffer[] = new char[256];
+        String field_names[] = null;
+        Util.Path paths[] = null;
+        int count = 0;
+
+        Printer(ElseParser.Query query, Util.Format format, boolean streaming) {
+            this(query, format, streaming, writer(out()));
         }
 
-        if (result.has("hits")) {
-            Util.Json hits = result.get("hits");
+        /*
+         * A printer writing to out (null for a Collector, that doesn't print)
+         */
+        Printer(ElseParser.Query query, Util.Format format, boolean streaming, Writer out) {
+            this.query = query;
+            this.format = format;
+            this.streaming = streaming;
+            this.out = out;
+        }
 
-            info.append(", total: " + hits.get("total"));
+        /*
+         * A printer for rows with the given columns (see printRow). With NDJSON the rows
+         * go to err(), with the summary.
+         */
+        Printer(String columns[], Util.Format format) {
+            // no query: start doesn't look at it
+            this((ElseParser.Query) null, format, false, writer(format == Util.Format.NDJSON ? err() : out()));
+            this.field_names = columns;
+        }
 
-            hits = hits.get("hits");
-            info.append(", retrieved: " + hits.size());
+        static Writer writer(PrintStream stream) {
+            return new BufferedWriter(new OutputStreamWriter(stream, Util.UTF8), 65536);
+        }
 
-            String field_names[] = null;
+        /*
+         * Print the header (column names are taken from the first hit, if not selected)
+         */
+        void start(Util.Json hits) throws IOException {
+            start(hits.size() > 0 ? hits.element(0) : null);
+        }
 
-            if (query.selectList != null)
-                field_names = query.selectList.toArray(new String[0]);
-            else if (hits.size() > 0)
-                field_names = hits.get(0).get("_source").keySet().toArray(new String[0]);
+        void start(JsonElement first) throws IOException {
+            setColumns(first);
 
             if (format == Util.Format.CSV) {
-                System.out.println(Util.join(",", field_names));
+                println(Util.join(",", field_names));
             }
 
             if (!streaming) {
                 String listMarker = Util.startList(format);
                 if (listMarker != null)
-                    System.out.println(listMarker);
+                    println(listMarker);
+            }
+        }
+
+        /*
+         * The columns are the selected fields, or the fields of the first hit
+         */
+        void setColumns(JsonElement first) {
+            if (field_names == null) { // not fixed columns
+                if (query.selectList != null)
+                    field_names = query.selectList.toArray(new String[0]);
+                else if (first != null)
+                    field_names = Util.Json.keySet(first.getAsJsonObject().get("_source")).toArray(new String[0]);
+                else
+                    field_names = new String[0];
             }
 
-            int size = hits.size();
+            paths = Util.Path.compile(field_names);
+        }
 
-            for (int i=0; i < size; i++) {
-                Util.Json r = hits.get(i);
+        void print(JsonElement hit) throws IOException {
+            JsonObject r = hit.getAsJsonObject();
+            JsonElement source = r.get("_source");
+            JsonElement fields = r.get("fields");
 
-                Util.Json fields = null;
+            if (source != null || fields != null) {
+                if (format == Util.Format.CSV) {
+                    row.setLength(0);
+                    Util.Json.appendCSV(row, source, fields, paths);
+                    println(row);
+                }
 
-                if (r.has("fields"))
-                    fields = r.get("fields");
-                else if (r.has("_source"))
-                    fields = r.get("_source");
+                else {
+                    Util.Json values = source == null ? new Util.Json(fields) : new Util.Json(source);
 
-                if (fields != null) {
-                    if (format == Util.Format.CSV) {
-                        System.out.println(fields.toCSV(field_names));
-                    }
+                    if (source != null && fields != null) // script fields
+                        values = values.merge(new Util.Json(fields));
 
-                    else if (format == Util.Format.JSON) {
-                        System.out.print(fields);
-                        System.out.println((i+1) < size ? "," : "");
-                    }
+                    printValues(values.element(), query.from + count);
+                }
+            } else
+                println(r.toString());
 
-                    else {
-                        System.out.println(fields.toXML(query.from + i));
-                    }
-                } else
-                    System.out.println(r);
+            count++;
+        }
+
+        /*
+         * Print a row of values (an object with the columns as properties)
+         */
+        void printRow(JsonElement values) throws IOException {
+            if (format == Util.Format.CSV) {
+                row.setLength(0);
+                Util.Json.appendCSV(row, values, null, paths);
+                println(row);
+            } else
+                printValues(values, count);
+
+            count++;
+        }
+
+        void printValues(JsonElement values, int index) throws IOException {
+            if (format == Util.Format.JSON) {
+                // the separator is printed before the next row, since we don't know which one is the last
+                if (count > 0)
+                    println(",");
+                out.write(values.toString());
+            }
+
+            else if (format == Util.Format.NDJSON) {
+                println(values.toString());
+            }
+
+            else {
+                println("<item index=\"" + index + "\">" + Util.Json.elementToXML(values) + "</item>");
+            }
+        }
+
+        void end(String info) throws IOException {
+            if (format == Util.Format.JSON && count > 0)
+                println("");
+
+            if (format == Util.Format.NDJSON) {
+                out.flush();
+                err().println(info); // keep the output one document per line
+                return;
             }
 
             if (!streaming) {
                 String listMarker = Util.endList(format);
                 if (listMarker != null)
-                    System.out.println(listMarker);
+                    println(listMarker);
             }
 
-            System.out.println();
-            System.out.println(info.toString());
-            System.out.println();
+            println("");
+            println(info);
+            println("");
+
+            out.flush();
         }
 
-        if (result.has("facets")) {
-            Util.Json facets = result.get("facets");
+        /*
+         * Rows built in a StringBuilder are copied through the reused buffer, without a String
+         */
+        void println(CharSequence s) throws IOException {
+            if (s instanceof StringBuilder) {
+                int len = s.length();
 
-            for (String f : facets.keySet()) {
-                Util.Json facet = facets.get(f);
+                if (buffer.length < len)
+                    buffer = new char[Math.max(len, buffer.length * 2)];
 
-                System.out.println("facet " + f);
-                System.out.println("  total: " + facet.get("total"));
-                System.out.println("  other: " + facet.get("other"));
-                System.out.println("  missing: " + facet.get("missing"));
-                System.out.println("  terms:");
+                ((StringBuilder) s).getChars(0, len, buffer, 0);
+                out.write(buffer, 0, len);
+            } else
+                out.write(s.toString());
 
-                Util.Json terms = facet.get("terms");
-                for (int i=0; i < terms.size(); i++)
-                    System.out.println("    " + terms.get(i));
-            }
+            out.write('\n');
+        }
+    }
+
+        /*
+         * Collects the rows in a ResultSet instead of printing them (see query)
+         */
+    static class Collector extends Printer {
+        final ResultSet rows;
+
+        Collector(ElseParser.Query query, ResultSet rows) {
+            super(query, Util.Format.JSON, false, null); // prints nothing
+            this.rows = rows;
+        }
+
+        void start(JsonElement first) {
+            setColumns(first);
+            rows.setColumns(field_names);
+        }
+
+        void print(JsonElement hit) {
+            JsonObject r = hit.getAsJsonObject();
+            JsonElement source = r.get("_source");
+            JsonElement fields = r.get("fields");
+
+            Util.Json values = source == null ? new Util.Json(fields) : new Util.Json(source);
 
-            System.out.println();
+            if (source != null && fields != null) // script fields
+                values = values.merge(new Util.Json(fields));
+
+            rows.add(values.element());
+            count++;
+        }
+
+        void end(String info) {
+            rows.setInfo(info);
         }
     }
 
@@ -196,17 +2848,132 @@ public class ElseSearch
         if (error != null)
             System.out.println(error);
 
-        System.out.println("usage: elseql [--host=host:port] [--csv|--json|--xml|--native] \"query\"");
+        System.out.println("usage: elseql [--host=host:port] [--cluster=name=url] [--csv|--json|--xml|--ndjson|--native] [--cache] [--cache-ttl=[index:]seconds] [--cache-dir=dir] [--cache-dir-size=bytes] [--spill-budget=bytes] [--spill-dir=dir] [--stats] [--stats-interval=seconds] [--keyset] [--tiebreaker=field] [--typed] [--mapping-ttl=seconds] [--partition=prefix{date-format}suffix=field] [--partition-until-now] [--cursor=cursor] [--page-size=min,max] [--page-target=bytes,millis] [--balance=round-robin|least-latency] [--retries=n] [--hedge] [--timeout=connect,read] [--bulk-size=bytes] [--bulk-concurrency=n] [--bulk-retries=n] [--bulk-type=type] [--by-query] [--repl | --batch [--parallel=n] | \"query\"]");
         System.exit(error==null ? 0 : 1);
     }
 
+    /*
+     * Run one query per line read from the input (empty lines and lines starting with # are skipped)
+     */
+    public void batch(BufferedReader input, Util.Format format, boolean streaming, boolean debug) throws Exception {
+        String line;
+
+        while (null != (line = input.readLine())) {
+            line = line.trim();
+
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+
+            try {
+                search(line, format, streaming, debug);
+            } catch(Exception e) {
+                System.out.println("ERROR " + e);
+            }
+        }
+    }
+
+    /*
+     * As batch, running up to parallel queries concurrently. The output (and the stderr summaries
+     * of NDJSON) of each query is buffered and printed in input order.
+     */
+    public void batch(BufferedReader input, Util.Format format, boolean streaming, boolean debug, int parallel) throws Exception {
+        if (parallel <= 1) {
+            batch(input, format, streaming, debug);
+            return;
+        }
+
+        // the outputs of the queries that are done before the ones above them spill to disk past the budget
+        long budget = spillBudget / parallel;
+        LinkedList<Future<?>> pending = new LinkedList<Future<?>>();
+        LinkedList<SpillBuffer.Output> outputs = new LinkedList<SpillBuffer.Output>();
+        LinkedList<SpillBuffer.Output> errs = new LinkedList<SpillBuffer.Output>();
+        String line;
+
+        while (true) {
+            line = input.readLine();
+
+            if (line != null) {
+                line = line.trim();
+
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+
+                SpillBuffer.Output buffer = new SpillBuffer.Output(budget, spillDirectory);
+                SpillBuffer.Output err = new SpillBuffer.Output(budget, spillDirectory);
+                pending.add(submit(line, format, streaming, debug, new PrintStream(buffer, false, "UTF-8"), new PrintStream(err, false, "UTF-8")));
+                outputs.add(buffer);
+                errs.add(err);
+
+                if (pending.size() < parallel)
+                    continue;
+            }
+
+            if (pending.isEmpty())
+                break;
+
+            // wait for the oldest query, so that at most parallel queries are in flight
+            try {
+                pending.removeFirst().get();
+            } catch(ExecutionException e) {
+                SpillBuffer.Output buffer = outputs.getFirst();
+                new PrintStream(buffer, true, "UTF-8").println("ERROR " + e.getCause());
+            }
+
+            SpillBuffer.Output buffer = outputs.removeFirst();
+            SpillBuffer.Output err = errs.removeFirst();
+
+            try {
+                buffer.writeTo(System.out);
+                System.out.flush();
+                err.writeTo(System.err);
+                System.err.flush();
+            } finally {
+                buffer.close();
+                err.close();
+            }
+        }
+    }
+
     public static void main(String args[]) throws Exception {
 
+        // results are written as UTF-8, whatever the platform encoding
+        System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536), true, "UTF-8"));
+
         String host = "http://localhost:9200";
         String query = null;
         Util.Format format = Util.Format.CSV;
         boolean debug = false;
         boolean streaming = false;
+        boolean batch = false;
+        boolean repl = false;
+        int parallel = 1;
+        long bulkBytes = BulkWriter.DEFAULT_BATCH_BYTES;
+        int bulkConcurrency = BulkWriter.DEFAULT_CONCURRENCY;
+        int bulkRetries = BulkWriter.DEFAULT_RETRIES;
+        String bulkType = null;
+        boolean byQuery = false;
+        Transport.Balance balance = Transport.Balance.ROUND_ROBIN;
+        int retries = Transport.DEFAULT_RETRIES;
+        boolean hedge = false;
+        int connectTimeout = Transport.DEFAULT_CONNECT_TIMEOUT;
+        int readTimeout = Transport.DEFAULT_READ_TIMEOUT;
+        ResultCache cache = null;
+        Map<String, String> clusters = new LinkedHashMap<String, String>();
+        List<String> partitions = new ArrayList<String>();
+        boolean partitionsUntilNow = false;
+        boolean printStats = false;
+        long statsInterval = 0;
+        boolean keyset = false;
+        boolean typed = false;
+        long mappingTtl = Mappings.DEFAULT_TTL;
+        String tiebreaker = null;
+        String cursor = null;
+        int pageMin = PageSizer.DEFAULT_MIN;
+        int pageMax = PageSizer.DEFAULT_MAX;
+        long pageBytes = PageSizer.DEFAULT_TARGET_BYTES;
+        long pageMillis = PageSizer.DEFAULT_TARGET_MILLIS;
+        long spillBudget = SpillBuffer.DEFAULT_BUDGET;
+        File spillDirectory = null;
 
         if (System.getenv().containsKey("ELSEQL_HOST"))
             host = System.getenv("ELSEQL_HOST");
@@ -221,6 +2988,15 @@ public class ElseSearch
                 host = args[argc].substring(7);
             }
 
+            else if (args[argc].startsWith("--cluster=")) {
+                // --cluster=name=url
+                String cluster[] = args[argc].substring(10).split("=", 2);
+                if (cluster.length != 2)
+                    usage("invalid cluster: " + args[argc].substring(10));
+
+                clusters.put(cluster[0], cluster[1]);
+            }
+
             else if (args[argc].equals("--native")) {
                 format = Util.Format.NATIVE;
             }
@@ -237,6 +3013,10 @@ public class ElseSearch
                 format = Util.Format.XML;
             }
 
+            else if (args[argc].equals("--ndjson")) {
+                format = Util.Format.NDJSON;
+            }
+
             else if (args[argc].equals("--stream")) {
                 streaming = true;
             }
@@ -245,6 +3025,206 @@ public class ElseSearch
                 debug = true;
             }
 
+            else if (args[argc].equals("--keyset")) {
+                keyset = true;
+            }
+
+            else if (args[argc].startsWith("--partition=")) {
+                partitions.add(args[argc].substring(12));
+            }
+
+            else if (args[argc].equals("--partition-until-now")) {
+                partitionsUntilNow = true;
+            }
+
+            else if (args[argc].equals("--typed")) {
+                typed = true;
+            }
+
+            else if (args[argc].startsWith("--mapping-ttl=")) {
+                try {
+                    mappingTtl = Long.parseLong(args[argc].substring(14)) * 1000;
+                } catch(NumberFormatException e) {
+                    usage("invalid mapping ttl: " + args[argc].substring(14));
+                }
+            }
+
+            else if (args[argc].startsWith("--tiebreaker=")) {
+                keyset = true;
+                tiebreaker = args[argc].substring(13);
+            }
+
+            else if (args[argc].startsWith("--cursor=")) {
+                cursor = args[argc].substring(9);
+            }
+
+            else if (args[argc].equals("--batch")) {
+                batch = true;
+            }
+
+            else if (args[argc].equals("--repl")) {
+                repl = true;
+            }
+
+            else if (args[argc].startsWith("--parallel=")) {
+                try {
+                    parallel = Integer.parseInt(args[argc].substring(11));
+                } catch(NumberFormatException e) {
+                    usage("invalid parallel: " + args[argc].substring(11));
+                }
+            }
+
+            else if (args[argc].equals("--stats")) {
+                printStats = true;
+            }
+
+            else if (args[argc].startsWith("--stats-interval=")) {
+                try {
+                    statsInterval = Long.parseLong(args[argc].substring(17)) * 1000;
+                } catch(NumberFormatException e) {
+                    usage("invalid stats interval: " + args[argc].substring(17));
+                }
+            }
+
+            else if (args[argc].equals("--cache")) {
+                if (cache == null)
+                    cache = new ResultCache();
+            }
+
+            else if (args[argc].startsWith("--cache-ttl=")) {
+                if (cache == null)
+                    cache = new ResultCache();
+
+                String ttl = args[argc].substring(12);
+                int sep = ttl.lastIndexOf(':');
+
+                try {
+                    if (sep < 0)
+                        cache.setTtl(Long.parseLong(ttl) * 1000);
+                    else
+                        cache.setTtl(ttl.substring(0, sep), Long.parseLong(ttl.substring(sep+1)) * 1000);
+                } catch(NumberFormatException e) {
+                    usage("invalid cache ttl: " + ttl);
+                }
+            }
+
+            else if (args[argc].startsWith("--bulk-")) {
+                String option[] = args[argc].substring(7).split("=", 2);
+
+                try {
+                    if (option[0].equals("size"))
+                        bulkBytes = Long.parseLong(option[1]);
+                    else if (option[0].equals("concurrency"))
+                        bulkConcurrency = Integer.parseInt(option[1]);
+                    else if (option[0].equals("retries"))
+                        bulkRetries = Integer.parseInt(option[1]);
+                    else if (option[0].equals("type"))
+                        bulkType = option[1];
+                    else
+                        usage("invalid option: " + args[argc]);
+                } catch(RuntimeException e) { // NumberFormatException, ArrayIndexOutOfBoundsException
+                    usage("invalid option: " + args[argc]);
+                }
+
+                if (bulkBytes < 1 || bulkConcurrency < 1 || bulkRetries < 0)
+                    usage("invalid option: " + args[argc]);
+            }
+
+            else if (args[argc].startsWith("--balance=")) {
+                try {
+                    balance = Transport.Balance.valueOf(args[argc].substring(10).toUpperCase().replace('-', '_'));
+                } catch(IllegalArgumentException e) {
+                    usage("invalid balance: " + args[argc].substring(10));
+                }
+            }
+
+            else if (args[argc].startsWith("--retries=")) {
+                try {
+                    retries = Integer.parseInt(args[argc].substring(10));
+                } catch(NumberFormatException e) {
+                    usage("invalid retries: " + args[argc].substring(10));
+                }
+            }
+
+            else if (args[argc].equals("--hedge")) {
+                hedge = true;
+            }
+
+            else if (args[argc].startsWith("--timeout=")) {
+                // --timeout=connect,read (milliseconds)
+                String timeouts[] = args[argc].substring(10).split(",");
+
+                try {
+                    connectTimeout = Integer.parseInt(timeouts[0]);
+                    if (timeouts.length > 1)
+                        readTimeout = Integer.parseInt(timeouts[1]);
+                } catch(NumberFormatException e) {
+                    usage("invalid timeout: " + args[argc].substring(10));
+                }
+            }
+
+            else if (args[argc].equals("--by-query")) {
+                byQuery = true;
+            }
+
+            else if (args[argc].startsWith("--page-size=")) {
+                // --page-size=min,max
+                String bounds[] = args[argc].substring(12).split(",");
+
+                try {
+                    pageMin = Integer.parseInt(bounds[0]);
+                    pageMax = bounds.length > 1 ? Integer.parseInt(bounds[1]) : pageMin;
+                } catch(NumberFormatException e) {
+                    usage("invalid page size: " + args[argc].substring(12));
+                }
+
+                if (pageMin < 1 || pageMax < pageMin || pageMax > MAX_PAGE)
+                    usage("invalid page size: " + args[argc].substring(12));
+            }
+
+            else if (args[argc].startsWith("--page-target=")) {
+                // --page-target=bytes,millis
+                String targets[] = args[argc].substring(14).split(",");
+
+                try {
+                    pageBytes = Long.parseLong(targets[0]);
+                    if (targets.length > 1)
+                        pageMillis = Long.parseLong(targets[1]);
+                } catch(NumberFormatException e) {
+                    usage("invalid page target: " + args[argc].substring(14));
+                }
+            }
+
+            else if (args[argc].startsWith("--spill-budget=")) {
+                try {
+                    spillBudget = Long.parseLong(args[argc].substring(15));
+                } catch(NumberFormatException e) {
+                    usage("invalid spill budget: " + args[argc].substring(15));
+                }
+            }
+
+            else if (args[argc].startsWith("--spill-dir=")) {
+                spillDirectory = new File(args[argc].substring(12));
+            }
+
+            else if (args[argc].startsWith("--cache-dir=")) {
+                if (cache == null)
+                    cache = new ResultCache();
+
+                cache.setDirectory(new File(args[argc].substring(12)));
+            }
+
+            else if (args[argc].startsWith("--cache-dir-size=")) {
+                if (cache == null)
+                    cache = new ResultCache();
+
+                try {
+                    cache.setDiskSize(Long.parseLong(args[argc].substring(17)));
+                } catch(NumberFormatException e) {
+                    usage("invalid cache directory size: " + args[argc].substring(17));
+                }
+            }
+
             else {
                 String message = args[argc].equals("--help") ? null : "invalid option: " + args[argc];
                 usage(message);
@@ -259,10 +3239,56 @@ public class ElseSearch
                 host = "http://localhost:" + port;
             }
 
-            query = Util.join(" ", args, argc);
+            final ElseSearch search = new ElseSearch(host);
+            search.setCache(cache);
+            search.setKeyset(keyset, tiebreaker);
+            search.setCursor(cursor);
+            search.setPageSizing(pageMin, pageMax, pageBytes, pageMillis);
+            search.setTransport(balance, retries, hedge, connectTimeout, readTimeout);
+            search.setBulk(bulkBytes, bulkConcurrency, bulkRetries);
+            search.setBulkType(bulkType);
+            search.setByQuery(byQuery);
+            search.setTyped(typed, mappingTtl);
+            search.setSpill(spillBudget, spillDirectory);
+
+            if (!batch && !repl) // the query is on the command line, documents to INSERT come from stdin
+                search.setInput(new BufferedReader(new InputStreamReader(System.in, "UTF-8")));
+
+            for (Map.Entry<String, String> cluster : clusters.entrySet())
+                search.addCluster(cluster.getKey(), cluster.getValue());
+
+            for (String scheme : partitions)
+                search.addPartitions(scheme);
+
+            search.setPartitionsUntilNow(partitionsUntilNow);
+
+            if (statsInterval > 0) {
+                Timer timer = new Timer("stats", true);
+                timer.schedule(new TimerTask() {
+                    public void run() {
+                        System.err.println(search.getStats());
+                    }
+                }, statsInterval, statsInterval);
+            }
+
+            if (repl) {
+                new Repl(search, format, streaming, debug)
+                    .setHistoryFile(new File(System.getProperty("user.home"), ".elseql_history"))
+                    .run(new BufferedReader(new InputStreamReader(System.in, "UTF-8")));
+            } else if (batch) {
+                search.batch(new BufferedReader(new InputStreamReader(System.in, "UTF-8")), format, streaming, debug, parallel);
+            } else {
+                query = Util.join(" ", args, argc);
+                search.search(query, format, streaming, debug);
+            }
+
+            if (cache != null && (batch || debug))
+                System.out.println(cache);
 
-            ElseSearch search = new ElseSearch(host);
-            search.search(query, format, streaming, debug);
+            if (printStats) {
+                System.out.println(search.getStats());
+                System.out.print(search.getTransportStats());
+            }
         } catch(Exception e) {
             System.out.println("ERROR " + e);
         } finally {
@@ -0,0 +1,97 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+
+/*
+ * Helpers to combine several sources, as the hits of several clusters (see searchFanOut)
+ * or the runs of a SpillBuffer
+ */
+public class Iterators
+{
+    /*
+     * Concatenate iterators
+     */
+    public static <T> Iterator<T> concat(final List<Iterator<T>> sources) {
+        return new Iterator<T>() {
+            int current = 0;
+
+            public boolean hasNext() {
+                while (current < sources.size()) {
+                    if (sources.get(current).hasNext())
+                        return true;
+
+                    current++;
+                }
+
+                return false;
+            }
+
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                return sources.get(current).next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /*
+     * K-way merge of sorted iterators (ties are returned in source order)
+     */
+    public static <T> Iterator<T> merge(List<Iterator<T>> sources, final Comparator<? super T> order) {
+
+        final PriorityQueue<Head<T>> heads = new PriorityQueue<Head<T>>(Math.max(1, sources.size()), new Comparator<Head<T>>() {
+            public int compare(Head<T> a, Head<T> b) {
+                int c = order.compare(a.value, b.value);
+                return c != 0 ? c : a.source - b.source;
+            }
+        });
+
+        for (int i=0; i < sources.size(); i++) {
+            Iterator<T> it = sources.get(i);
+            if (it.hasNext())
+                heads.add(new Head<T>(it.next(), it, i));
+        }
+
+        return new Iterator<T>() {
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            public T next() {
+                Head<T> head = heads.poll();
+                if (head == null)
+                    throw new NoSuchElementException();
+
+                T value = head.value;
+
+                if (head.it.hasNext()) {
+                    head.value = head.it.next();
+                    heads.add(head);
+                }
+
+                return value;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    static class Head<T> {
+        T value;
+        final Iterator<T> it;
+        final int source;
+
+        Head(T value, Iterator<T> it, int source) {
+            this.value = value;
+            this.it = it;
+            this.source = source;
+        }
+    }
+}
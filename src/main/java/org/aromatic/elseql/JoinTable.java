@@ -0,0 +1,323 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/*
+ * The build side of a hash join: rows (as UTF-8 payloads) indexed by join key.
+ *
+ * Keys are hashed to a long (integer keys are their own hash, other keys are hashed and kept
+ * for verification) in an open-addressing table of primitive arrays, rows with the same key
+ * are chained. Payloads are kept in a byte array until the heap budget is exceeded, then
+ * they are moved to a temporary file that is memory-mapped for probing.
+ */
+public class JoinTable
+{
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SEGMENT = 1 << 30; // size of a file mapping
+
+    private final long budget;
+
+    // key table (open addressing)
+    private long hashes[] = new long[64];
+    private int heads[] = new int[64];      // first row + 1 (0: empty slot)
+    private int distinct = 0;
+
+    // rows
+    private int next[] = new int[64];       // next row with the same hash + 1 (0: none)
+    private long offsets[] = new long[64];
+    private int lengths[] = new int[64];
+    private String keys[] = new String[64]; // non-integer keys, for verification
+    private int rows = 0;
+
+    // payloads
+    private byte memory[] = new byte[4096];
+    private long used = 0;
+    private File file = null;
+    private FileChannel channel = null;
+    private MappedByteBuffer segments[] = null;
+
+    public JoinTable() {
+        this(DEFAULT_BUDGET);
+    }
+
+    public JoinTable(long budget) {
+        this.budget = budget;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public int distinctKeys() {
+        return distinct;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /*
+     * Return the integer value of a key, or null if it's not an integer (in canonical form,
+     * in the range of a long)
+     */
+    static Long integerKey(String key) {
+        int len = key.length();
+        boolean negative = len > 0 && key.charAt(0) == '-';
+        int i = negative ? 1 : 0;
+
+        if (i == len || len - i > 19)
+            return null;
+
+        if (key.charAt(i) == '0' && (len > i + 1 || negative))
+            return null; // not canonical
+
+        long v = 0; // accumulated negatively, so that Long.MIN_VALUE fits
+
+        for (; i < len; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9')
+                return null;
+
+            int d = c - '0';
+            if (v < (Long.MIN_VALUE + d) / 10)
+                return null; // out of range
+
+            v = v * 10 - d;
+        }
+
+        if (negative)
+            return v;
+
+        return v == Long.MIN_VALUE ? null : -v;
+    }
+
+    static long hash(String key) {
+        Long v = integerKey(key);
+        if (v != null)
+            return v;
+
+        // 64-bit FNV-1a
+        long h = 0xcbf29ce484222325L;
+
+        for (int i=0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        return h;
+    }
+
+    private static int slot(long hash, int mask) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    /*
+     * Add a row to the table
+     */
+    public void add(String key, String payload) throws IOException {
+        long hash = hash(key);
+        byte bytes[] = payload.getBytes(UTF8);
+
+        if (rows == next.length) {
+            int n = rows * 2;
+            next = Arrays.copyOf(next, n);
+            offsets = Arrays.copyOf(offsets, n);
+            lengths = Arrays.copyOf(lengths, n);
+            keys = Arrays.copyOf(keys, n);
+        }
+
+        offsets[rows] = append(bytes);
+        lengths[rows] = bytes.length;
+        keys[rows] = integerKey(key) == null ? key : null;
+
+        if ((distinct + 1) * 2 > hashes.length)
+            rehash();
+
+        int mask = hashes.length - 1;
+        int i = slot(hash, mask);
+
+        while (heads[i] != 0 && hashes[i] != hash)
+            i = (i + 1) & mask;
+
+        if (heads[i] == 0) {
+            hashes[i] = hash;
+            distinct++;
+        }
+
+        next[rows] = heads[i];
+        heads[i] = rows + 1;
+        rows++;
+    }
+
+    private void rehash() {
+        long oldHashes[] = hashes;
+        int oldHeads[] = heads;
+
+        hashes = new long[oldHashes.length * 2];
+        heads = new int[oldHeads.length * 2];
+
+        int mask = hashes.length - 1;
+
+        for (int j=0; j < oldHeads.length; j++) {
+            if (oldHeads[j] == 0)
+                continue;
+
+            int i = slot(oldHashes[j], mask);
+            while (heads[i] != 0)
+                i = (i + 1) & mask;
+
+            hashes[i] = oldHashes[j];
+            heads[i] = oldHeads[j];
+        }
+    }
+
+    /*
+     * Store a payload, return its offset
+     */
+    private long append(byte bytes[]) throws IOException {
+        long offset = used;
+
+        if (file == null && used + bytes.length > budget) {
+            file = File.createTempFile("elseql-", ".join");
+            file.deleteOnExit();
+
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.write(ByteBuffer.wrap(memory, 0, (int) used), 0);
+            memory = null;
+        }
+
+        if (file != null) {
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            while (b.hasRemaining())
+                channel.write(b, offset + b.position());
+        } else {
+            if (used + bytes.length > memory.length)
+                memory = Arrays.copyOf(memory, (int) Math.max(used + bytes.length, Math.min(budget, memory.length * 2L)));
+
+            System.arraycopy(bytes, 0, memory, (int) used, bytes.length);
+        }
+
+        used += bytes.length;
+        return offset;
+    }
+
+    /*
+     * Return the payloads with the given key (empty list if none)
+     */
+    public List<String> get(String key) throws IOException {
+        long hash = hash(key);
+        int mask = hashes.length - 1;
+        int i = slot(hash, mask);
+
+        while (heads[i] != 0 && hashes[i] != hash)
+            i = (i + 1) & mask;
+
+        if (heads[i] == 0)
+            return Collections.emptyList();
+
+        List<String> result = new ArrayList<String>(1);
+        boolean integer = integerKey(key) != null;
+
+        for (int row = heads[i]; row != 0; row = next[row - 1]) {
+            String k = keys[row - 1];
+
+            if (integer ? k == null : key.equals(k))
+                result.add(payload(row - 1));
+        }
+
+        // rows are chained in reverse order
+        Collections.reverse(result);
+        return result;
+    }
+
+    /*
+     * Return all the (distinct) keys
+     */
+    public List<String> keys() {
+        List<String> result = new ArrayList<String>(distinct);
+
+        for (int i=0; i < heads.length; i++) {
+            if (heads[i] == 0)
+                continue;
+
+            Set<String> seen = null;
+
+            for (int row = heads[i]; row != 0; row = next[row - 1]) {
+                String k = keys[row - 1];
+
+                if (k == null)
+                    k = String.valueOf(hashes[i]);
+
+                if (seen == null)
+                    seen = new HashSet<String>();
+
+                if (seen.add(k))
+                    result.add(k);
+            }
+        }
+
+        return result;
+    }
+
+    private String payload(int row) throws IOException {
+        long offset = offsets[row];
+        int len = lengths[row];
+
+        if (file == null)
+            return new String(memory, (int) offset, len, UTF8);
+
+        if (segments == null) {
+            int n = (int) ((used + SEGMENT - 1) / SEGMENT);
+            segments = new MappedByteBuffer[n];
+
+            for (int i=0; i < n; i++) {
+                long start = (long) i * SEGMENT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, used - start));
+            }
+        }
+
+        byte bytes[] = new byte[len];
+
+        for (int copied = 0; copied < len; ) {
+            long pos = offset + copied;
+            ByteBuffer segment = segments[(int) (pos / SEGMENT)].duplicate();
+            segment.position((int) (pos % SEGMENT));
+
+            int n = Math.min(len - copied, segment.remaining());
+            segment.get(bytes, copied, n);
+            copied += n;
+        }
+
+        return new String(bytes, UTF8);
+    }
+
+    /*
+     * Release the table (and remove the spill file)
+     */
+    public void close() {
+        segments = null;
+        memory = null;
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch(IOException e) {
+                ; // nothing to do
+            }
+
+            channel = null;
+        }
+
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+
+import com.google.gson.*;
+
+/*
+ * Writes JSON directly as UTF-8 bytes, for request bodies: no String or Writer in between.
+ *
+ * The output is the same as JsonElement.toString (same escapes, numbers as Number.toString),
+ * so that a request has the same body (and result cache key) however it was built.
+ *
+ * Subtrees that are the same in many requests (match_all, facet definitions) can be registered
+ * as constants: they are encoded once, and their bytes are copied whenever the same instance
+ * is part of a tree. Constants are shared, so they must not be modified.
+ */
+public class JsonEncoder
+{
+    static final byte HEX[] = "0123456789abcdef".getBytes(Util.UTF8);
+
+    /* replaced (not modified) when a constant is added or released, so that lookups don't lock */
+    private static volatile Map<JsonElement, byte[]> constants = new IdentityHashMap<JsonElement, byte[]>();
+
+    private byte buf[];
+    private int count = 0;
+    private boolean comma = false; // a value was written, the next one needs a separator
+
+    public JsonEncoder() {
+        this(1024);
+    }
+
+    public JsonEncoder(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    /*
+     * Encode a JSON tree
+     */
+    public static byte[] encode(JsonElement e) {
+        return new JsonEncoder().value(e).toByteArray();
+    }
+
+    public static byte[] encode(Util.Json json) {
+        return encode(json.element());
+    }
+
+    /*
+     * Register a constant subtree, return it
+     */
+    public static JsonElement constant(JsonElement e) {
+        byte bytes[] = encode(e);
+
+        synchronized(JsonEncoder.class) {
+            Map<JsonElement, byte[]> copy = new IdentityHashMap<JsonElement, byte[]>(constants);
+            copy.put(e, bytes);
+            constants = copy;
+        }
+
+        return e;
+    }
+
+    /*
+     * Forget a constant (its trees are encoded again)
+     */
+    public static void release(JsonElement e) {
+        synchronized(JsonEncoder.class) {
+            Map<JsonElement, byte[]> copy = new IdentityHashMap<JsonElement, byte[]>(constants);
+            copy.remove(e);
+            constants = copy;
+        }
+    }
+
+    public JsonEncoder beginObject() {
+        separator();
+        write('{');
+        comma = false;
+        return this;
+    }
+
+    public JsonEncoder endObject() {
+        write('}');
+        comma = true;
+        return this;
+    }
+
+    public JsonEncoder beginArray() {
+        separator();
+        write('[');
+        comma = false;
+        return this;
+    }
+
+    public JsonEncoder endArray() {
+        write(']');
+        comma = true;
+        return this;
+    }
+
+    public JsonEncoder name(String name) {
+        separator();
+        string(name);
+        write(':');
+        comma = false;
+        return this;
+    }
+
+    public JsonEncoder value(String value) {
+        separator();
+
+        if (value == null)
+            ascii("null");
+        else
+            string(value);
+
+        comma = true;
+        return this;
+    }
+
+    public JsonEncoder value(Number value) {
+        separator();
+        ascii(value == null ? "null" : value.toString());
+        comma = true;
+        return this;
+    }
+
+    public JsonEncoder value(long value) {
+        return value(Long.valueOf(value));
+    }
+
+    public JsonEncoder value(boolean value) {
+        separator();
+        ascii(value ? "true" : "false");
+        comma = true;
+        return this;
+    }
+
+    public JsonEncoder value(JsonElement e) {
+        if (e == null || e.isJsonNull())
+            return value((String) null);
+
+        if (!e.isJsonPrimitive()) {
+            byte bytes[] = constants.get(e);
+
+            if (bytes != null) {
+                separator();
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, count, bytes.length);
+                count += bytes.length;
+                comma = true;
+                return this;
+            }
+        }
+
+        if (e.isJsonObject()) {
+            beginObject();
+
+            for (Map.Entry<String, JsonElement> member : e.getAsJsonObject().entrySet())
+                name(member.getKey()).value(member.getValue());
+
+            return endObject();
+        }
+
+        if (e.isJsonArray()) {
+            beginArray();
+
+            for (JsonElement element : e.getAsJsonArray())
+                value(element);
+
+            return endArray();
+        }
+
+        JsonPrimitive p = e.getAsJsonPrimitive();
+
+        if (p.isBoolean())
+            return value(p.getAsBoolean());
+
+        if (p.isNumber())
+            return value(p.getAsNumber());
+
+        return value(p.getAsString());
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    public String toString() {
+        return new String(buf, 0, count, Util.UTF8);
+    }
+
+    private void separator() {
+        if (comma)
+            write(',');
+    }
+
+    /*
+     * A quoted string, escaped as by gson (quote, backslash, control characters, U+2028 and U+2029)
+     */
+    private void string(String s) {
+        int len = s.length();
+
+        write('"');
+
+        for (int i=0; i < len; i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                ensure(1);
+                buf[count++] = (byte) c;
+            }
+
+            else if (c < 0x80) {
+                switch(c)
+                {
+                case '"':  ascii("\\\""); break;
+                case '\\': ascii("\\\\"); break;
+                case '\t': ascii("\\t"); break;
+                case '\b': ascii("\\b"); break;
+                case '\n': ascii("\\n"); break;
+                case '\r': ascii("\\r"); break;
+                case '\f': ascii("\\f"); break;
+                default:   unicode(c);
+                }
+            }
+
+            else if (c == '\u2028' || c == '\u2029')
+                unicode(c);
+
+            else if (c < 0x800) {
+                ensure(2);
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+
+                ensure(4);
+                buf[count++] = (byte) (0xf0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (cp & 0x3f));
+            }
+
+            else if (Character.isSurrogate(c))
+                write('?'); // unpaired, as String.getBytes
+
+            else {
+                ensure(3);
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        write('"');
+    }
+
+    private void unicode(char c) {
+        ensure(6);
+        buf[count++] = '\\';
+        buf[count++] = 'u';
+        buf[count++] = HEX[(c >> 12) & 0xf];
+        buf[count++] = HEX[(c >> 8) & 0xf];
+        buf[count++] = HEX[(c >> 4) & 0xf];
+        buf[count++] = HEX[c & 0xf];
+    }
+
+    private void ascii(String s) {
+        int len = s.length();
+
+        ensure(len);
+        for (int i=0; i < len; i++)
+            buf[count++] = (byte) s.charAt(i);
+    }
+
+    private void write(int b) {
+        ensure(1);
+        buf[count++] = (byte) b;
+    }
+
+    private void ensure(int n) {
+        if (count + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(count + n, buf.length * 2));
+    }
+}
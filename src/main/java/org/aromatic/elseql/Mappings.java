@@ -0,0 +1,173 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+
+import com.google.gson.*;
+
+/*
+ * A cache of index mappings: the fields of an index (dotted paths, including multi-fields
+ * like name.keyword) with their type.
+ *
+ * The mapping of an index is fetched (with _mapping) at most once per TTL, so that queries
+ * can be compiled with typed values, and a session can look up fields, without a round trip.
+ */
+public class Mappings
+{
+    public static final long DEFAULT_TTL = 300000; // milliseconds
+
+    private final Map<String, Map<String, String>> fields = new HashMap<String, Map<String, String>>();
+    private final Map<String, Long> loaded = new HashMap<String, Long>();
+    private long ttl = DEFAULT_TTL;
+
+    public Mappings setTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /*
+     * The fields of index (or of all the indices matching it) on the cluster reachable through transport
+     */
+    public Map<String, String> get(String endpoint, Transport transport, String index) throws Exception {
+        String key = endpoint + "/" + index;
+
+        synchronized(this) {
+            Map<String, String> cached = fields.get(key);
+            if (cached != null && System.currentTimeMillis() - loaded.get(key) < ttl)
+                return cached;
+        }
+
+        Util.Json response = Util.parse_json(transport.request(Util.GET, index + "/_mapping", null, null, true));
+
+        if (response.has("error"))
+            throw new IllegalArgumentException("cannot get the mapping of " + index + ": " + response.get("error"));
+
+        Map<String, String> result = new TreeMap<String, String>();
+
+        for (Map.Entry<String, JsonElement> e : response.element().getAsJsonObject().entrySet()) {
+            JsonObject mappings = e.getValue().getAsJsonObject().getAsJsonObject("mappings");
+
+            if (mappings == null)
+                continue;
+
+            if (mappings.has("properties"))
+                collect(mappings.getAsJsonObject("properties"), "", result);
+
+            else { // before ES 7 properties are grouped by document type
+                for (Map.Entry<String, JsonElement> type : mappings.entrySet()) {
+                    JsonElement properties = type.getValue().isJsonObject() ? type.getValue().getAsJsonObject().get("properties") : null;
+
+                    if (properties != null && properties.isJsonObject())
+                        collect(properties.getAsJsonObject(), "", result);
+                }
+            }
+        }
+
+        synchronized(this) {
+            fields.put(key, result);
+            loaded.put(key, System.currentTimeMillis());
+        }
+
+        return result;
+    }
+
+    static void collect(JsonObject properties, String prefix, Map<String, String> result) {
+        for (Map.Entry<String, JsonElement> e : properties.entrySet()) {
+            String name = prefix + e.getKey();
+            JsonObject field = e.getValue().getAsJsonObject();
+
+            result.put(name, field.has("type") ? field.get("type").getAsString() : "object");
+
+            if (field.has("properties")) // object or nested
+                collect(field.getAsJsonObject("properties"), name + ElseParser.ID_SEPARATOR, result);
+
+            if (field.has("fields")) // multi-fields
+                collect(field.getAsJsonObject("fields"), name + ElseParser.ID_SEPARATOR, result);
+        }
+    }
+
+    /*
+     * The fields of index starting with prefix
+     */
+    public List<String> complete(String endpoint, Transport transport, String index, String prefix) throws Exception {
+        List<String> result = new ArrayList<String>();
+
+        for (String name : get(endpoint, transport, index).keySet()) {
+            if (name.startsWith(prefix))
+                result.add(name);
+        }
+
+        return result;
+    }
+
+    public synchronized void clear() {
+        fields.clear();
+        loaded.clear();
+    }
+
+    static boolean isText(String type) {
+        return "text".equals(type) || "string".equals(type); // string: analyzed, before ES 5
+    }
+
+    static boolean isInteger(String type) {
+        return "long".equals(type) || "integer".equals(type) || "short".equals(type) || "byte".equals(type);
+    }
+
+    static boolean isNumber(String type) {
+        return isInteger(type) || "double".equals(type) || "float".equals(type)
+            || "half_float".equals(type) || "scaled_float".equals(type);
+    }
+
+    /*
+     * Convert a parsed value (a String or a Double) to the type of the field, so that ES
+     * doesn't have to coerce it: 5 for an integer field (not 5.0), true for a boolean field,
+     * epoch milliseconds for a date given as a number, strings otherwise.
+     * Values that don't fit the type are left as they are (ES reports the error).
+     */
+    static Object typedValue(String type, Object value) {
+        if (type == null)
+            return value;
+
+        if (value instanceof Double) {
+            double d = (Double) value;
+            boolean integral = d == Math.rint(d) && d >= -0x1p63 && d < 0x1p63; // and fits a long
+
+            if ((isInteger(type) || "date".equals(type)) && integral)
+                return (long) d;
+
+            if (isNumber(type))
+                return value;
+
+            return ElseParser.Expression.formatValue(value); // keyword, text, ip...
+        }
+
+        String s = String.valueOf(value);
+
+        try {
+            if (isInteger(type) && s.matches("-?[0-9]+"))
+                return Long.valueOf(s);
+
+            if (isNumber(type))
+                return typedValue(type, Double.valueOf(s)); // 5.0 is 5 for an integer field
+        } catch(NumberFormatException e) {
+            return value;
+        }
+
+        if ("boolean".equals(type) && (s.equalsIgnoreCase("true") || s.equalsIgnoreCase("false")))
+            return Boolean.valueOf(s);
+
+        return value;
+    }
+
+    static Util.Json putValue(Util.Json json, String name, Object value) {
+        if (value instanceof Long)
+            return json.put(name, (Long) value);
+
+        if (value instanceof Double)
+            return json.put(name, (Double) value);
+
+        if (value instanceof Boolean)
+            return json.put(name, (Boolean) value);
+
+        return json.put(name, String.valueOf(value));
+    }
+}
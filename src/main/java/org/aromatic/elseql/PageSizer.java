@@ -0,0 +1,105 @@
+package org.aromatic.elseql;
+
+/*
+ * Adaptive page size for paginated requests (search_after pages and scrolls).
+ *
+ * After each page the observed bytes per hit and latency are used to move the page size
+ * toward both the target page size in bytes and the target latency, within bounds and
+ * by at most a factor of 2 per page. A sizer can start from the estimates of a previous one,
+ * so that a query starts with the size that worked for the last one on the same index.
+ */
+public class PageSizer
+{
+    public static final int DEFAULT_MIN = 100;
+    public static final int DEFAULT_MAX = 10000;
+    public static final int DEFAULT_INITIAL = 1000;
+    public static final long DEFAULT_TARGET_BYTES = 4L * 1024 * 1024;
+    public static final long DEFAULT_TARGET_MILLIS = 500;
+
+    private static final double SMOOTHING = 0.5; // weight of the last observation
+
+    private final int min;
+    private final int max;
+    private final long targetBytes;
+    private final long targetNanos;
+
+    private int size;
+    private double bytesPerHit = 0;
+    private double nanosPerHit = 0;
+
+    private int pages = 0;
+    private int smallest = Integer.MAX_VALUE;
+    private int largest = 0;
+
+    public PageSizer() {
+        this(DEFAULT_MIN, DEFAULT_MAX, DEFAULT_TARGET_BYTES, DEFAULT_TARGET_MILLIS);
+    }
+
+    public PageSizer(int min, int max, long targetBytes, long targetMillis) {
+        this.min = min;
+        this.max = max;
+        this.targetBytes = targetBytes;
+        this.targetNanos = targetMillis * 1000000L;
+        this.size = Math.max(min, Math.min(max, DEFAULT_INITIAL));
+    }
+
+    /*
+     * A new sizer with the same bounds and targets, starting from the current estimates of previous
+     */
+    public PageSizer(PageSizer previous) {
+        this(previous.min, previous.max, previous.targetBytes, previous.targetNanos / 1000000L);
+
+        synchronized(previous) {
+            this.size = previous.size;
+            this.bytesPerHit = previous.bytesPerHit;
+            this.nanosPerHit = previous.nanosPerHit;
+        }
+    }
+
+    /*
+     * The size of the next page
+     */
+    public synchronized int next() {
+        return size;
+    }
+
+    /*
+     * Record a page of hits, with its size in bytes and latency
+     */
+    public synchronized void observe(int requested, int hits, long bytes, long nanos) {
+        pages++;
+        smallest = Math.min(smallest, requested);
+        largest = Math.max(largest, requested);
+
+        if (hits <= 0 || requested < size)
+            return; // pages cut short by a limit are dominated by the response overhead
+
+        bytesPerHit = bytesPerHit == 0 ? (double) bytes / hits
+            : SMOOTHING * bytes / hits + (1 - SMOOTHING) * bytesPerHit;
+
+        nanosPerHit = nanosPerHit == 0 ? (double) nanos / hits
+            : SMOOTHING * nanos / hits + (1 - SMOOTHING) * nanosPerHit;
+
+        double wanted = Math.min(targetBytes / Math.max(bytesPerHit, 1), targetNanos / Math.max(nanosPerHit, 1));
+        wanted = Math.max(size / 2.0, Math.min(size * 2.0, wanted));
+
+        size = (int) Math.max(min, Math.min(max, wanted));
+    }
+
+    public synchronized int getPages() {
+        return pages;
+    }
+
+    /*
+     * The page sizes used so far, for the summary line
+     */
+    public synchronized String toString() {
+        if (pages == 0)
+            return "-";
+
+        if (smallest == largest)
+            return String.valueOf(smallest);
+
+        return smallest + ".." + largest;
+    }
+}
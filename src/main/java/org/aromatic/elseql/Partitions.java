@@ -0,0 +1,314 @@
+package org.aromatic.elseql;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.regex.*;
+
+/*
+ * Time-partitioned indices: an index naming scheme with a date (logs-{yyyy.MM.dd}) and the
+ * date field the documents are partitioned on.
+ *
+ * FROM on the scheme pattern (the scheme with * for the date, as in logs-*) is rewritten to the
+ * partitions that overlap the range of the date field in WHERE and FILTER (top-level AND terms
+ * only), so that only their shards are searched. Partitions are named with a trailing *, so that
+ * missing ones (days without data) match nothing instead of failing the search.
+ *
+ * A range without an upper bound leaves FROM as is (documents can be dated in the future),
+ * unless untilNow is set: then it ends now.
+ */
+public class Partitions
+{
+    public static final int MAX_PARTITIONS = 100; // more would not fit in the request line
+
+    static final Pattern DATE_MATH = Pattern.compile("([+-][0-9]+|/)([yMwdhHms])");
+
+        /*
+         * An index naming scheme
+         */
+    static class Scheme {
+        final String pattern;   // as in FROM: logs-*
+        final String prefix;
+        final String suffix;
+        final String field;
+        final DateTimeFormatter format;
+        final ChronoUnit unit;  // partition size
+
+        Scheme(String prefix, String dateFormat, String suffix, String field) {
+            this.pattern = prefix + "*" + suffix;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.field = field;
+            this.format = DateTimeFormatter.ofPattern(dateFormat).withZone(ZoneOffset.UTC);
+
+            if (dateFormat.indexOf('H') >= 0 || dateFormat.indexOf('k') >= 0)
+                unit = ChronoUnit.HOURS;
+            else if (dateFormat.indexOf('d') >= 0 || dateFormat.indexOf('D') >= 0)
+                unit = ChronoUnit.DAYS;
+            else if (dateFormat.indexOf('M') >= 0)
+                unit = ChronoUnit.MONTHS;
+            else
+                unit = ChronoUnit.YEARS;
+        }
+
+        ZonedDateTime truncate(ZonedDateTime t) {
+            if (unit == ChronoUnit.MONTHS)
+                return t.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+
+            if (unit == ChronoUnit.YEARS)
+                return t.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+
+            return t.truncatedTo(unit);
+        }
+
+        public String toString() {
+            return pattern + " (" + field + ")";
+        }
+    }
+
+    private final List<Scheme> schemes = new ArrayList<Scheme>();
+    private boolean untilNow = false;
+
+    /*
+     * Add a scheme: prefix{date-format}suffix=field, as in logs-{yyyy.MM.dd}=@timestamp
+     */
+    public Partitions add(String spec) {
+        int eq = spec.lastIndexOf('=');
+        int open = spec.indexOf('{');
+        int close = spec.indexOf('}', open + 1);
+
+        if (eq < 0 || open < 0 || close < 0 || close > eq)
+            throw new IllegalArgumentException("invalid partition scheme: " + spec + " (expected prefix{date-format}suffix=field)");
+
+        schemes.add(new Scheme(spec.substring(0, open), spec.substring(open + 1, close), spec.substring(close + 1, eq), spec.substring(eq + 1)));
+        return this;
+    }
+
+    /*
+     * Whether a range without an upper bound ends now (no documents are dated in the future)
+     */
+    public Partitions setUntilNow(boolean untilNow) {
+        this.untilNow = untilNow;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return schemes.isEmpty();
+    }
+
+    /*
+     * Return query with the scheme patterns in FROM replaced by the partitions that overlap
+     * the date range in the query (the query itself if nothing can be pruned)
+     */
+    public ElseParser.Query prune(ElseParser.Query query) {
+        List<String> indexList = new ArrayList<String>();
+        boolean pruned = false;
+
+        for (String index : query.indexList) {
+            int sep = index.indexOf(ElseParser.CLUSTER_SEPARATOR);
+            String cluster = sep > 0 ? index.substring(0, sep + 1) : "";
+            String name = index.substring(cluster.length());
+
+            List<String> partitions = null;
+
+            for (Scheme scheme : schemes) {
+                if (scheme.pattern.equals(name)) {
+                    partitions = partitions(scheme, query);
+                    break;
+                }
+            }
+
+            if (partitions == null) {
+                indexList.add(index);
+                continue;
+            }
+
+            for (String partition : partitions)
+                indexList.add(cluster + partition);
+
+            pruned = true;
+        }
+
+        return pruned ? query.withIndexList(indexList) : query;
+    }
+
+    /*
+     * The partitions of scheme for the range of its field in the query, or null if the range
+     * has no lower bound (or no upper bound, unless untilNow) or covers too many partitions
+     */
+    List<String> partitions(Scheme scheme, ElseParser.Query query) {
+        return partitions(scheme, query, System.currentTimeMillis());
+    }
+
+    List<String> partitions(Scheme scheme, ElseParser.Query query, long now) {
+        List<ElseParser.Expression> terms = new ArrayList<ElseParser.Expression>();
+
+        if (query.whereExpr != null)
+            terms.addAll(query.whereExpr.conjuncts());
+
+        if (query.filterExpr != null)
+            terms.addAll(query.filterExpr.conjuncts());
+
+        Long lower = null;
+        Long upper = null;
+
+        for (ElseParser.Expression term : terms) {
+            String comparison = term.getComparison();
+            Util.NameValue nv = comparison == null ? null : (Util.NameValue) term.getOperand();
+
+            if (nv == null || !nv.name.equals(scheme.field))
+                continue;
+
+            // rounding as in ES: a term is the range [down, up], gt and lte round up, gte and lt down
+            if (comparison.equals("eq") || comparison.startsWith("g")) {
+                Long t = parseTime(nv.value, now, comparison.equals("gt"));
+
+                if (t != null && comparison.equals("gt"))
+                    t = t + 1;
+
+                if (t != null)
+                    lower = lower == null ? t : Math.max(lower, t);
+            }
+
+            if (comparison.equals("eq") || comparison.startsWith("l")) {
+                Long t = parseTime(nv.value, now, !comparison.equals("lt"));
+
+                if (t != null && comparison.equals("lt"))
+                    t = t - 1;
+
+                if (t != null)
+                    upper = upper == null ? t : Math.min(upper, t);
+            }
+        }
+
+        if (lower == null || (upper == null && !untilNow))
+            return null;
+
+        if (upper == null)
+            upper = now;
+
+        ZonedDateTime t = scheme.truncate(Instant.ofEpochMilli(lower).atZone(ZoneOffset.UTC));
+        ZonedDateTime end = Instant.ofEpochMilli(Math.max(lower, upper)).atZone(ZoneOffset.UTC);
+
+        List<String> partitions = new ArrayList<String>();
+
+        for (; !t.isAfter(end); t = t.plus(1, scheme.unit)) {
+            if (partitions.size() == MAX_PARTITIONS)
+                return null;
+
+            partitions.add(scheme.prefix + scheme.format.format(t) + scheme.suffix + "*");
+        }
+
+        return partitions;
+    }
+
+    /*
+     * Parse a date value as epoch milliseconds (UTC): a number of milliseconds, an ISO date or
+     * date-time, or date math (now or date||, then +n, -n or /unit, with units y M w d h H m s).
+     * Return null if not a date.
+     *
+     * Rounding (/d) and date-only values go to the first millisecond of the unit, or to its last one
+     * if roundUp, as ES does for range bounds.
+     */
+    static Long parseTime(Object value, long now, boolean roundUp) {
+        String s = ElseParser.Expression.formatValue(value).trim();
+
+        if (s.matches("-?[0-9]+"))
+            return Long.valueOf(s);
+
+        ZonedDateTime t;
+        String math;
+
+        if (s.startsWith("now")) {
+            t = Instant.ofEpochMilli(now).atZone(ZoneOffset.UTC);
+            math = s.substring(3);
+        } else {
+            int anchor = s.indexOf("||");
+            String date = anchor < 0 ? s : s.substring(0, anchor);
+
+            t = parseDate(date);
+            if (t == null)
+                return null;
+
+            if (date.length() == 10)
+                t = round(t, 'd', roundUp);
+
+            math = anchor < 0 ? "" : s.substring(anchor + 2);
+        }
+
+        Matcher m = DATE_MATH.matcher(math);
+
+        for (int at=0; at < math.length(); at = m.end()) {
+            m.region(at, math.length());
+            if (!m.lookingAt())
+                return null;
+
+            char unit = m.group(2).charAt(0);
+
+            if (m.group(1).equals("/"))
+                t = round(t, unit, roundUp);
+            else
+                t = add(t, Long.parseLong(m.group(1).replace("+", "")), unit);
+        }
+
+        return t.toInstant().toEpochMilli();
+    }
+
+    /*
+     * An ISO date or date-time (UTC if it has no offset), or null
+     */
+    static ZonedDateTime parseDate(String s) {
+        s = s.replace(' ', 'T');
+
+        try {
+            if (s.length() == 10)
+                return LocalDate.parse(s).atStartOfDay(ZoneOffset.UTC);
+
+            if (s.endsWith("Z") || s.matches(".*[+-][0-9][0-9]:?[0-9][0-9]$"))
+                return OffsetDateTime.parse(s).atZoneSameInstant(ZoneOffset.UTC);
+
+            return LocalDateTime.parse(s).atZone(ZoneOffset.UTC);
+        } catch(DateTimeException e) {
+            return null;
+        }
+    }
+
+    static ZonedDateTime add(ZonedDateTime t, long n, char unit) {
+        switch(unit)
+        {
+        case 'y': return t.plusYears(n);
+        case 'M': return t.plusMonths(n);
+        case 'w': return t.plusWeeks(n);
+        case 'd': return t.plusDays(n);
+        case 'm': return t.plusMinutes(n);
+        case 's': return t.plusSeconds(n);
+        default:  return t.plusHours(n); // h or H
+        }
+    }
+
+    /*
+     * The first (or last) millisecond of the unit that contains t (weeks start on Monday)
+     */
+    static ZonedDateTime round(ZonedDateTime t, char unit, boolean up) {
+        ZonedDateTime start;
+        ChronoUnit length;
+
+        switch(unit)
+        {
+        case 'y': start = t.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1); length = ChronoUnit.YEARS; break;
+        case 'M': start = t.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1); length = ChronoUnit.MONTHS; break;
+        case 'w': start = t.truncatedTo(ChronoUnit.DAYS).minusDays(t.getDayOfWeek().getValue() - 1); length = ChronoUnit.WEEKS; break;
+        case 'd': start = t.truncatedTo(ChronoUnit.DAYS); length = ChronoUnit.DAYS; break;
+        case 'm': start = t.truncatedTo(ChronoUnit.MINUTES); length = ChronoUnit.MINUTES; break;
+        case 's': start = t.truncatedTo(ChronoUnit.SECONDS); length = ChronoUnit.SECONDS; break;
+        default:  start = t.truncatedTo(ChronoUnit.HOURS); length = ChronoUnit.HOURS; // h or H
+        }
+
+        return up ? start.plus(1, length).minus(1, ChronoUnit.MILLIS) : start;
+    }
+
+    public String toString() {
+        return schemes.toString();
+    }
+}
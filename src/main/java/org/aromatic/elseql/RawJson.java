@@ -0,0 +1,208 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.util.*;
+
+import com.google.gson.*;
+
+/*
+ * A JSON value as a slice of a UTF-8 encoded response, without decoding it.
+ *
+ * Members and elements are found by scanning the bytes (skipping over the values that are
+ * not needed) and are returned as slices of the same buffer, so that a value can be copied
+ * to the output as-is. Only the values that need to be transformed are decoded (see parse).
+ */
+public class RawJson
+{
+    private final byte buf[];
+    private final int start;
+    private final int end;
+
+    public RawJson(byte buf[]) {
+        this(buf, 0, buf.length);
+    }
+
+    public RawJson(byte buf[], int start, int end) {
+        start = skipSpace(buf, start, end);
+
+        while (end > start && isSpace(buf[end - 1]))
+            end--;
+
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+    }
+
+    public boolean isObject() {
+        return start < end && buf[start] == '{';
+    }
+
+    public boolean isArray() {
+        return start < end && buf[start] == '[';
+    }
+
+    public boolean isNull() {
+        return start == end || buf[start] == 'n';
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public boolean has(String name) {
+        return get(name) != null;
+    }
+
+    /*
+     * Return the value of a member of this object, or null
+     */
+    public RawJson get(String name) {
+        if (!isObject())
+            return null;
+
+        byte key[] = name.getBytes(Util.UTF8);
+
+        for (int i = skipSpace(buf, start + 1, end); i < end && buf[i] != '}'; ) {
+            int keyEnd = skipString(buf, i, end);
+            int value = skipSpace(buf, skipSpace(buf, keyEnd, end) + 1, end); // skip the ':'
+            int valueEnd = skipValue(buf, value, end);
+
+            if (keyEquals(i + 1, keyEnd - 1, key, name))
+                return new RawJson(buf, value, valueEnd);
+
+            i = skipSpace(buf, valueEnd, end);
+            if (i < end && buf[i] == ',')
+                i = skipSpace(buf, i + 1, end);
+        }
+
+        return null;
+    }
+
+    /*
+     * Return the elements of this array (an empty list if this is not an array)
+     */
+    public List<RawJson> elements() {
+        List<RawJson> result = new ArrayList<RawJson>();
+
+        if (!isArray())
+            return result;
+
+        for (int i = skipSpace(buf, start + 1, end); i < end && buf[i] != ']'; ) {
+            int valueEnd = skipValue(buf, i, end);
+            result.add(new RawJson(buf, i, valueEnd));
+
+            i = skipSpace(buf, valueEnd, end);
+            if (i < end && buf[i] == ',')
+                i = skipSpace(buf, i + 1, end);
+        }
+
+        return result;
+    }
+
+    /*
+     * Copy the (encoded) value to out
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, start, end - start);
+    }
+
+    /*
+     * Decode the value
+     */
+    public JsonElement parse() {
+        return new JsonParser().parse(new InputStreamReader(new ByteArrayInputStream(buf, start, end - start), Util.UTF8));
+    }
+
+    public String toString() {
+        return new String(buf, start, end - start, Util.UTF8);
+    }
+
+    /*
+     * Compare the key between from and to (without quotes) with name. Only escaped keys are decoded
+     * (a name spelled as the escaped form of a key is not a match).
+     */
+    private boolean keyEquals(int from, int to, byte key[], String name) {
+        if (to - from == key.length) {
+            int i = 0;
+
+            while (i < key.length && buf[from + i] == key[i] && key[i] != '\\')
+                i++;
+
+            if (i == key.length)
+                return true;
+        }
+
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\\')
+                return name.equals(new JsonParser().parse(new String(buf, from - 1, to - from + 2, Util.UTF8)).getAsString());
+        }
+
+        return false;
+    }
+
+    static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    static int skipSpace(byte buf[], int i, int end) {
+        while (i < end && isSpace(buf[i]))
+            i++;
+
+        return i;
+    }
+
+    /*
+     * i is at the opening quote, return the position after the closing quote
+     */
+    static int skipString(byte buf[], int i, int end) {
+        for (i++; i < end; i++) {
+            if (buf[i] == '\\')
+                i++;
+            else if (buf[i] == '"')
+                return i + 1;
+        }
+
+        return end;
+    }
+
+    /*
+     * i is at the start of a value, return the position after it
+     */
+    static int skipValue(byte buf[], int i, int end) {
+        if (i >= end)
+            return end;
+
+        byte b = buf[i];
+
+        if (b == '"')
+            return skipString(buf, i, end);
+
+        if (b == '{' || b == '[') {
+            int depth = 0;
+
+            while (i < end) {
+                b = buf[i];
+
+                if (b == '"') {
+                    i = skipString(buf, i, end);
+                    continue;
+                }
+
+                if (b == '{' || b == '[')
+                    depth++;
+                else if ((b == '}' || b == ']') && --depth == 0)
+                    return i + 1;
+
+                i++;
+            }
+
+            return end;
+        }
+
+        // number, true, false or null
+        while (i < end && buf[i] != ',' && buf[i] != '}' && buf[i] != ']' && !isSpace(buf[i]))
+            i++;
+
+        return i;
+    }
+}
@@ -0,0 +1,258 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * An interactive session: statements are read from the input and run one at a time on
+ * the same ElseSearch, so that the JIT stays warm, connections are reused (keep-alive),
+ * the tunnel stays open and mappings and parsed statements are cached.
+ *
+ * A line ending with \ continues on the next one, a trailing ; is ignored.
+ * INSERT reads its documents from the following lines, up to a line with \.
+ */
+public class Repl
+{
+    public static final String PROMPT = "elseql> ";
+    public static final String CONTINUE = "   ...> ";
+    public static final int HISTORY_SIZE = 1000;
+    public static final int QUERY_CACHE_SIZE = 256;
+
+    static final String END_OF_DATA = "\\.";
+
+    static final String HELP =
+        "  \\q                      quit\n" +
+        "  \\timing                 toggle printing the time taken by each statement\n" +
+        "  \\format [csv|json|xml|ndjson|native]\n" +
+        "                          show or set the output format\n" +
+        "  \\debug                  toggle printing requests and responses\n" +
+        "  \\fields index [prefix]  list the fields of an index (and their type), from the mapping cache\n" +
+        "  \\refresh                clear the mapping cache\n" +
+        "  \\history                list the previous statements\n" +
+        "  !n, !!                  run statement n of the history, or the last one\n" +
+        "  \\stats                  print the session statistics\n";
+
+    private final ElseSearch search;
+    private Util.Format format;
+    private final boolean streaming;
+    private boolean debug;
+    private boolean timing = false;
+
+    private final List<String> history = new ArrayList<String>();
+    private File historyFile = null;
+
+    public Repl(ElseSearch search, Util.Format format, boolean streaming, boolean debug) {
+        this.search = search;
+        this.format = format;
+        this.streaming = streaming;
+        this.debug = debug;
+
+        search.setQueryCache(QUERY_CACHE_SIZE);
+    }
+
+    /*
+     * Load the history from file and append the new statements to it
+     */
+    public Repl setHistoryFile(File file) {
+        this.historyFile = file;
+
+        if (file.exists()) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Util.UTF8));
+                String line;
+
+                try {
+                    while (null != (line = reader.readLine())) {
+                        if (line.length() > 0)
+                            history.add(line);
+                    }
+                } finally {
+                    reader.close();
+                }
+
+                while (history.size() > HISTORY_SIZE)
+                    history.remove(0);
+            } catch(IOException e) {
+                System.err.println("cannot read history: " + e);
+            }
+        }
+
+        return this;
+    }
+
+    public void run(BufferedReader input) throws Exception {
+        PrintStream out = System.out;
+        StringBuilder statement = new StringBuilder();
+        String line;
+
+        out.print(PROMPT);
+        out.flush();
+
+        while (null != (line = input.readLine())) {
+            if (line.endsWith("\\") && !line.trim().startsWith("\\")) {
+                statement.append(line, 0, line.length() - 1).append(' ');
+                out.print(CONTINUE);
+                out.flush();
+                continue;
+            }
+
+            statement.append(line);
+
+            String s = statement.toString().trim();
+            statement.setLength(0);
+
+            if (s.endsWith(";"))
+                s = s.substring(0, s.length() - 1).trim();
+
+            if (s.equals("\\q") || s.equals("quit") || s.equals("exit"))
+                break;
+
+            if (s.length() > 0) {
+                try {
+                    execute(s, input);
+                } catch(Exception e) {
+                    out.println("ERROR " + e);
+                }
+            }
+
+            out.print(PROMPT);
+            out.flush();
+        }
+
+        out.println();
+    }
+
+    void execute(String s, BufferedReader input) throws Exception {
+        PrintStream out = System.out;
+
+        if (s.startsWith("!")) {
+            int n = s.equals("!!") ? history.size() : Integer.parseInt(s.substring(1));
+
+            if (n < 1 || n > history.size())
+                throw new IllegalArgumentException("no statement " + s.substring(1) + " in the history");
+
+            s = history.get(n - 1);
+            out.println(s);
+        }
+
+        if (s.startsWith("\\")) {
+            command(s);
+            return;
+        }
+
+        addHistory(s);
+
+        boolean insert = s.regionMatches(true, 0, "INSERT", 0, 6);
+
+        if (insert) // the documents follow the statement
+            search.setInput(new BufferedReader(new StringReader(readData(input))));
+
+        long start = System.nanoTime();
+
+        try {
+            search.search(s, format, streaming, debug);
+        } finally {
+            if (insert)
+                search.setInput(null);
+        }
+
+        if (timing)
+            out.println(String.format("time: %.3f ms", (System.nanoTime() - start) / 1e6));
+    }
+
+    /*
+     * Read the lines up to \. (or the end of the input)
+     */
+    static String readData(BufferedReader input) throws IOException {
+        StringBuilder data = new StringBuilder();
+        String line;
+
+        while (null != (line = input.readLine()) && !line.trim().equals(END_OF_DATA))
+            data.append(line).append('\n');
+
+        return data.toString();
+    }
+
+    void command(String s) throws Exception {
+        PrintStream out = System.out;
+        String args[] = s.split("\\s+");
+        String command = args[0];
+
+        if (command.equals("\\timing")) {
+            timing = !timing;
+            out.println("timing is " + (timing ? "on" : "off"));
+        }
+
+        else if (command.equals("\\debug")) {
+            debug = !debug;
+            out.println("debug is " + (debug ? "on" : "off"));
+        }
+
+        else if (command.equals("\\format")) {
+            if (args.length > 1)
+                format = Util.Format.valueOf(args[1].toUpperCase());
+
+            out.println("format is " + format.toString().toLowerCase());
+        }
+
+        else if (command.equals("\\fields")) {
+            if (args.length < 2)
+                throw new IllegalArgumentException("usage: \\fields index [prefix]");
+
+            Map<String, String> fields = search.getFields(args[1]);
+            String prefix = args.length > 2 ? args[2] : "";
+
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                if (field.getKey().startsWith(prefix))
+                    out.println(String.format("  %-40s %s", field.getKey(), field.getValue()));
+            }
+        }
+
+        else if (command.equals("\\refresh")) {
+            search.getMappings().clear();
+        }
+
+        else if (command.equals("\\history")) {
+            for (int i=0; i < history.size(); i++)
+                out.println(String.format("%5d  %s", i + 1, history.get(i)));
+        }
+
+        else if (command.equals("\\stats")) {
+            out.println(search.getStats());
+            out.print(search.getTransportStats());
+        }
+
+        else if (command.equals("\\?") || command.equals("\\help")) {
+            out.print(HELP);
+        }
+
+        else
+            throw new IllegalArgumentException("unknown command " + command + " (\\? for help)");
+    }
+
+    void addHistory(String s) {
+        if (!history.isEmpty() && history.get(history.size() - 1).equals(s))
+            return;
+
+        history.add(s);
+
+        if (history.size() > HISTORY_SIZE)
+            history.remove(0);
+
+        if (historyFile == null)
+            return;
+
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(historyFile, true), Util.UTF8);
+
+            try {
+                writer.write(s);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch(IOException e) {
+            System.err.println("cannot write history: " + e);
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+
+/*
+ * A client-side cache for search results.
+ *
+ * Entries are keyed by (endpoint, index, request body) and hold the raw response body.
+ * The in-memory tier is an LRU bounded by number of entries and (approximate) memory usage,
+ * the optional on-disk tier keeps one memory-mapped file per entry so that results survive
+ * restarts. The disk tier is an LRU bounded by the size of its files: expired and evicted files
+ * are deleted (the files of a previous run are indexed when the directory is set).
+ */
+public class ResultCache
+{
+    public static final int DEFAULT_ENTRIES = 1000;
+    public static final long DEFAULT_MEMORY = 64L * 1024 * 1024;
+    public static final long DEFAULT_TTL = 60 * 1000L;
+    public static final long DEFAULT_DISK_SIZE = 256L * 1024 * 1024;
+
+    static final long PURGE_INTERVAL = 10 * 1000L; // milliseconds between scans for expired files
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0xE15EC0DE;
+
+        /*
+         * A cached response
+         */
+    static class Entry {
+        final String key;
+        final String body;
+        final long expires;
+
+        Entry(String key, String body, long expires) {
+            this.key = key;
+            this.body = body;
+            this.expires = expires;
+        }
+
+        long weight() {
+            // 2 bytes per char plus some overhead for the entry and map node
+            return 2L * (key.length() + body.length()) + 64;
+        }
+    }
+
+        /*
+         * A file of the disk tier
+         */
+    static class DiskEntry {
+        final long size;
+        final long expires;
+
+        DiskEntry(long size, long expires) {
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxMemory;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Map<String, Long> ttls = new HashMap<String, Long>();
+    private long defaultTtl = DEFAULT_TTL;
+    private long memory = 0;
+    private File directory = null;
+
+    private final LinkedHashMap<String, DiskEntry> files = new LinkedHashMap<String, DiskEntry>(16, 0.75f, true);
+    private long maxDisk = DEFAULT_DISK_SIZE;
+    private long disk = 0;
+    private long nextPurge = 0;
+
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long diskEvictions = 0;
+
+    public ResultCache() {
+        this(DEFAULT_ENTRIES, DEFAULT_MEMORY);
+    }
+
+    public ResultCache(int maxEntries, long maxMemory) {
+        this.maxEntries = maxEntries;
+        this.maxMemory = maxMemory;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /*
+     * Set the time-to-live (in milliseconds) for all indices without a specific one
+     */
+    public ResultCache setTtl(long ttl) {
+        this.defaultTtl = ttl;
+        return this;
+    }
+
+    /*
+     * Set the time-to-live (in milliseconds) for a specific index
+     */
+    public ResultCache setTtl(String index, long ttl) {
+        ttls.put(index, ttl);
+        return this;
+    }
+
+    public long getTtl(String index) {
+        Long ttl = ttls.get(index);
+        return ttl == null ? defaultTtl : ttl;
+    }
+
+    /*
+     * Enable the on-disk tier. The files already in the directory are kept (up to the disk size),
+     * expired ones are deleted.
+     */
+    public ResultCache setDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create cache directory " + directory);
+
+        File existing[] = directory.listFiles();
+        long now = System.currentTimeMillis();
+
+        Arrays.sort(existing, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return d < 0 ? -1 : d > 0 ? 1 : 0;
+            }
+        });
+
+        synchronized(files) {
+            this.directory = directory;
+            files.clear();
+            disk = 0;
+
+            for (File file : existing) {
+                if (file.getName().endsWith(".cache.tmp")) {
+                    file.delete(); // left by an interrupted write
+                    continue;
+                }
+
+                if (!file.getName().endsWith(".cache"))
+                    continue;
+
+                long expires = readExpires(file);
+
+                if (expires <= now)
+                    file.delete();
+                else
+                    addFile(file.getName(), file.length(), expires);
+            }
+
+            evictFiles(now);
+        }
+
+        return this;
+    }
+
+    /*
+     * Set the maximum size (in bytes) of the files of the on-disk tier
+     */
+    public ResultCache setDiskSize(long maxDisk) {
+        synchronized(files) {
+            this.maxDisk = maxDisk;
+
+            if (directory != null)
+                evictFiles(System.currentTimeMillis());
+        }
+
+        return this;
+    }
+
+    public static String key(String endpoint, String index, String body) {
+        return endpoint + "\n" + index + "\n" + body;
+    }
+
+    /*
+     * Return the cached response body or null
+     */
+    public String get(String endpoint, String index, String body) {
+        String key = key(endpoint, index, body);
+        long now = System.currentTimeMillis();
+
+        synchronized(this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                if (e.expires > now) {
+                    hits++;
+                    return e.body;
+                }
+
+                remove(key);
+            }
+        }
+
+        Entry e = directory == null ? null : readEntry(key, now);
+
+        synchronized(this) {
+            if (e == null) {
+                misses++;
+                return null;
+            }
+
+            diskHits++;
+            add(e);
+            return e.body;
+        }
+    }
+
+    /*
+     * Cache a response body
+     */
+    public void put(String endpoint, String index, String body, String result) {
+        long ttl = getTtl(index);
+        if (ttl <= 0)
+            return;
+
+        Entry e = new Entry(key(endpoint, index, body), result, System.currentTimeMillis() + ttl);
+
+        synchronized(this) {
+            remove(e.key);
+            add(e);
+        }
+
+        if (directory != null)
+            writeEntry(e);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        memory = 0;
+    }
+
+    private void add(Entry e) {
+        if (e.weight() > maxMemory)
+            return;
+
+        entries.put(e.key, e);
+        memory += e.weight();
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext() && (entries.size() > maxEntries || memory > maxMemory)) {
+            Entry eldest = it.next();
+            it.remove();
+            memory -= eldest.weight();
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null)
+            memory -= e.weight();
+    }
+
+    /*
+     * On-disk tier: one file per entry, named after the digest of the key
+     *
+     * int magic, long expires, int keylen, byte key[keylen], int bodylen, byte body[bodylen]
+     */
+    private File entryFile(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte digest[] = md.digest(key.getBytes(UTF8));
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+            return new File(directory, sb.append(".cache").toString());
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Entry readEntry(String key, long now) {
+        File file = entryFile(key);
+
+        synchronized(files) {
+            DiskEntry d = files.get(file.getName()); // most recently used
+
+            if (d == null)
+                return null; // not written by this cache, or evicted
+
+            if (d.expires <= now) {
+                removeFile(file.getName());
+                return null;
+            }
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            boolean invalid = true; // expired or corrupted: deleted
+
+            try {
+                FileChannel channel = raf.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                if (buffer.getInt() != MAGIC)
+                    return null;
+
+                long expires = buffer.getLong();
+                if (expires <= now)
+                    return null;
+
+                invalid = false;
+
+                byte bkey[] = key.getBytes(UTF8);
+                if (buffer.getInt() != bkey.length)
+                    return null;
+
+                for (byte b : bkey) {
+                    if (buffer.get() != b)
+                        return null; // digest collision
+                }
+
+                int len = buffer.getInt();
+                ByteBuffer body = buffer.slice();
+                body.limit(len);
+
+                return new Entry(key, UTF8.decode(body).toString(), expires);
+            } finally {
+                raf.close();
+
+                if (invalid) {
+                    synchronized(files) {
+                        removeFile(file.getName());
+                    }
+                }
+            }
+        } catch(Exception e) {
+            synchronized(files) {
+                removeFile(file.getName()); // deleted or truncated
+            }
+
+            return null;
+        }
+    }
+
+    private void writeEntry(Entry e) {
+        File file = entryFile(e.key);
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            byte bkey[] = e.key.getBytes(UTF8);
+            byte bbody[] = e.body.getBytes(UTF8);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(e.expires);
+                out.writeInt(bkey.length);
+                out.write(bkey);
+                out.writeInt(bbody.length);
+                out.write(bbody);
+            } finally {
+                out.close();
+            }
+
+            synchronized(files) {
+                if (!tmp.renameTo(file)) {
+                    file.delete();
+                    tmp.renameTo(file);
+                }
+
+                DiskEntry old = files.remove(file.getName());
+                if (old != null)
+                    disk -= old.size;
+
+                if (file.isFile())
+                    addFile(file.getName(), file.length(), e.expires);
+
+                evictFiles(System.currentTimeMillis());
+            }
+        } catch(IOException ex) {
+            tmp.delete(); // the disk tier is best effort
+        }
+    }
+
+    /*
+     * The expiration time in the header of a file (0 if it's not a cache file)
+     */
+    static long readExpires(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+            try {
+                return in.readInt() == MAGIC ? in.readLong() : 0;
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            return 0;
+        }
+    }
+
+    /*
+     * The methods below are called holding the lock on files
+     */
+    private void addFile(String name, long size, long expires) {
+        files.put(name, new DiskEntry(size, expires));
+        disk += size;
+    }
+
+    private void removeFile(String name) {
+        DiskEntry d = files.remove(name);
+
+        if (d != null)
+            disk -= d.size;
+
+        new File(directory, name).delete();
+    }
+
+    /*
+     * Delete the expired files (at most every PURGE_INTERVAL), then the least recently used ones
+     * until the files fit the disk size
+     */
+    private void evictFiles(long now) {
+        if (now >= nextPurge) {
+            nextPurge = now + PURGE_INTERVAL;
+
+            List<String> expired = new ArrayList<String>();
+            for (Map.Entry<String, DiskEntry> f : files.entrySet()) {
+                if (f.getValue().expires <= now)
+                    expired.add(f.getKey());
+            }
+
+            for (String name : expired)
+                removeFile(name);
+        }
+
+        while (disk > maxDisk && !files.isEmpty()) {
+            removeFile(files.keySet().iterator().next());
+            diskEvictions++;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits + diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + diskHits + misses;
+        return total == 0 ? 0.0 : (double) (hits + diskHits) / total;
+    }
+
+    public synchronized String toString() {
+        String files;
+
+        synchronized(this.files) {
+            files = directory == null ? "" : ", files: " + this.files.size() + ", disk: " + disk + ", disk evictions: " + diskEvictions;
+        }
+
+        return "cache hits: " + hits
+            + ", disk hits: " + diskHits
+            + ", misses: " + misses
+            + String.format(", hit rate: %.1f%%", getHitRate() * 100)
+            + ", entries: " + entries.size()
+            + ", memory: " + memory
+            + ", evictions: " + evictions
+            + files;
+    }
+}
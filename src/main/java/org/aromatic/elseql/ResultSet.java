@@ -0,0 +1,719 @@
+package org.aromatic.elseql;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+import com.google.gson.*;
+
+/*
+ * The rows of a query in columns stored outside of the heap, for programs that hold and scan
+ * large results in-process (see ElseSearch.query).
+ *
+ * Every column has a type (from the index mapping, or from its first value) and stores a
+ * long, a double, a boolean (as 0/1) or the id of a string in the column dictionary in 8 bytes
+ * per row, plus a null bit, in direct buffers of CHUNK_ROWS rows. Only the buffers (a few per
+ * 64K rows) are objects on the heap, so that millions of rows don't put pressure on the GC.
+ * The first buffers are sized for the expected rows and doubled up to CHUNK_ROWS, so that small
+ * results stay small.
+ *
+ * A column that gets a value that doesn't fit its type is converted: from long to double, or
+ * to strings (the string form of the values). Objects and arrays are stored as JSON strings.
+ *
+ * A ResultSet is filled by one thread, and can then be read by any number of cursors.
+ */
+public class ResultSet
+{
+    public enum Type {
+        LONG,
+        DOUBLE,
+        BOOLEAN,
+        STRING
+    }
+
+    static final int CHUNK_SHIFT = 16;
+    static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_ROWS - 1;
+    static final int SLOT = 8; // bytes per value
+    static final int MIN_ROWS = 64;
+
+        /*
+         * Moves over the rows of a ResultSet. Columns are numbered from 0, as in the SELECT list;
+         * the value of a null column is 0, false or null.
+         */
+    public interface Cursor {
+        /*
+         * Move to the next row, return false after the last one
+         */
+        boolean next();
+
+        int getRow();
+
+        boolean isNull(int column);
+
+        long getLong(int column);
+
+        double getDouble(int column);
+
+        boolean getBoolean(int column);
+
+        /*
+         * The value of a column of any type as a string (decoded from the dictionary for strings)
+         */
+        String getString(int column);
+
+        /*
+         * The dictionary id of a string column, to compare or group values without decoding them
+         * (-1 if null)
+         */
+        int getStringId(int column);
+    }
+
+        /*
+         * The distinct strings of a column, UTF-8 encoded in a direct buffer, with their ids
+         * in an open addressing hash table (also a direct buffer)
+         */
+    static class Dictionary {
+        ByteBuffer bytes = allocate(4096);
+        ByteBuffer offsets = allocate(256 * 4);  // the start of string i, followed by the end of the last one
+        ByteBuffer table = allocate(256 * 4);    // id + 1 of the string with that hash (0: empty)
+        int count = 0;
+        int used = 0;
+
+        /*
+         * The id of s, added if new
+         */
+        int encode(String s) {
+            byte b[] = s.getBytes(Util.UTF8);
+            int slots = table.capacity() / 4;
+            int h = hash(b);
+
+            for (int i = h & (slots - 1); ; i = (i + 1) & (slots - 1)) {
+                int id = table.getInt(i * 4) - 1;
+
+                if (id < 0) {
+                    id = add(b);
+                    table.putInt(i * 4, id + 1);
+
+                    if (count * 2 > slots)
+                        rehash();
+
+                    return id;
+                }
+
+                if (matches(id, b))
+                    return id;
+            }
+        }
+
+        String get(int id) {
+            int start = offsets.getInt(id * 4);
+            byte b[] = new byte[offsets.getInt(id * 4 + 4) - start];
+
+            for (int i=0; i < b.length; i++)
+                b[i] = bytes.get(start + i);
+
+            return new String(b, Util.UTF8);
+        }
+
+        int size() {
+            return count;
+        }
+
+        long memory() {
+            return bytes.capacity() + offsets.capacity() + table.capacity();
+        }
+
+        private int add(byte b[]) {
+            if (used + b.length > bytes.capacity())
+                bytes = grow(bytes, used + b.length);
+
+            if ((count + 2) * 4 > offsets.capacity())
+                offsets = grow(offsets, (count + 2) * 4);
+
+            for (int i=0; i < b.length; i++)
+                bytes.put(used + i, b[i]);
+
+            offsets.putInt(count * 4, used);
+            used += b.length;
+            offsets.putInt((count + 1) * 4, used);
+
+            return count++;
+        }
+
+        private boolean matches(int id, byte b[]) {
+            int start = offsets.getInt(id * 4);
+
+            if (offsets.getInt(id * 4 + 4) - start != b.length)
+                return false;
+
+            for (int i=0; i < b.length; i++) {
+                if (bytes.get(start + i) != b[i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        private void rehash() {
+            int slots = table.capacity() / 2; // twice the slots
+            table = allocate(slots * 4);
+
+            for (int id=0; id < count; id++) {
+                int start = offsets.getInt(id * 4);
+                int end = offsets.getInt(id * 4 + 4);
+                int h = 0;
+
+                for (int i = start; i < end; i++)
+                    h = 31 * h + bytes.get(i);
+
+                int i = mix(h) & (slots - 1);
+                while (table.getInt(i * 4) != 0)
+                    i = (i + 1) & (slots - 1);
+
+                table.putInt(i * 4, id + 1);
+            }
+        }
+
+        static int hash(byte b[]) {
+            int h = 0;
+
+            for (int i=0; i < b.length; i++)
+                h = 31 * h + b[i];
+
+            return mix(h);
+        }
+
+        static int mix(int h) {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+        /*
+         * A column: its values and null bits, a chunk of rows per buffer
+         */
+    static class Column {
+        final String name;
+        Type type;
+        final List<ByteBuffer> values = new ArrayList<ByteBuffer>();
+        final List<ByteBuffer> nulls = new ArrayList<ByteBuffer>();
+        Dictionary dictionary = null;
+
+        Column(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        /*
+         * Make room for rows: the first chunk is resized up to CHUNK_ROWS rows, then full chunks are added
+         */
+        void reserve(int rows) {
+            if (rows > CHUNK_ROWS) {
+                values.add(allocate(CHUNK_ROWS * SLOT));
+                nulls.add(allocate(CHUNK_ROWS / 8));
+            } else if (values.isEmpty()) {
+                values.add(allocate(rows * SLOT));
+                nulls.add(allocate(rows / 8));
+            } else {
+                values.set(0, grow(values.get(0), rows * SLOT));
+                nulls.set(0, grow(nulls.get(0), rows / 8));
+            }
+        }
+
+        long getBits(int row) {
+            return values.get(row >>> CHUNK_SHIFT).getLong((row & CHUNK_MASK) * SLOT);
+        }
+
+        void setBits(int row, long bits) {
+            values.get(row >>> CHUNK_SHIFT).putLong((row & CHUNK_MASK) * SLOT, bits);
+        }
+
+        boolean isNull(int row) {
+            int bit = row & CHUNK_MASK;
+            return (nulls.get(row >>> CHUNK_SHIFT).get(bit >>> 3) & (1 << (bit & 7))) != 0;
+        }
+
+        void setNull(int row) {
+            ByteBuffer chunk = nulls.get(row >>> CHUNK_SHIFT);
+            int bit = row & CHUNK_MASK;
+
+            chunk.put(bit >>> 3, (byte) (chunk.get(bit >>> 3) | (1 << (bit & 7))));
+        }
+
+        long memory() {
+            long memory = dictionary == null ? 0 : dictionary.memory();
+
+            for (int i=0; i < values.size(); i++)
+                memory += values.get(i).capacity() + nulls.get(i).capacity();
+
+            return memory;
+        }
+    }
+
+    private final Map<String, String> fields;
+    private final int rows;
+    private Column columns[] = null;
+    private Util.Path paths[] = null;
+    private int size = 0;
+    private int capacity = 0;
+    private String info = null;
+    private String error = null;
+
+    /*
+     * fields: the field types from the index mapping (see Mappings), or null to take the type of
+     * every column from its first value
+     */
+    public ResultSet(Map<String, String> fields) {
+        this(fields, MIN_ROWS);
+    }
+
+    /*
+     * rows: the expected number of rows (as the LIMIT), to size the first buffers
+     */
+    public ResultSet(Map<String, String> fields, int rows) {
+        this.fields = fields;
+        this.rows = rows;
+    }
+
+    /*
+     * Set the columns (the SELECT list, or the fields of the first hit)
+     */
+    void setColumns(String names[]) {
+        columns = new Column[names.length];
+        paths = Util.Path.compile(names);
+
+        for (int i=0; i < names.length; i++)
+            columns[i] = new Column(names[i], fields == null ? null : typeOf(fields.get(paths[i].getSourcePath())));
+    }
+
+    boolean hasColumns() {
+        return columns != null;
+    }
+
+    /*
+     * Add a row, with the values of the columns taken from the source (and script fields) of a hit
+     */
+    void add(JsonElement values) {
+        int row = size;
+
+        if (row == capacity) {
+            if (capacity == 0) {
+                for (capacity = MIN_ROWS; capacity < rows && capacity < CHUNK_ROWS; )
+                    capacity *= 2;
+            } else
+                capacity = capacity < CHUNK_ROWS ? capacity * 2 : capacity + CHUNK_ROWS;
+
+            for (Column column : columns)
+                column.reserve(capacity);
+        }
+
+        for (int i=0; i < columns.length; i++)
+            store(columns[i], row, paths[i].resolve(values));
+
+        size++;
+    }
+
+    void setInfo(String info) {
+        this.info = info;
+    }
+
+    /*
+     * The search failed (possibly after some rows were added)
+     */
+    void setError(String error) {
+        this.error = error;
+    }
+
+    String getError() {
+        return error;
+    }
+
+    /*
+     * The search summary (took, total, retrieved...)
+     */
+    public String getInfo() {
+        return info;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumnName(int column) {
+        return columns[column].name;
+    }
+
+    /*
+     * The position of a column, or -1
+     */
+    public int getColumn(String name) {
+        for (int i=0; i < columns.length; i++) {
+            if (columns[i].name.equals(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /*
+     * The type of a column (null if all its values are null)
+     */
+    public Type getType(int column) {
+        return columns[column].type;
+    }
+
+    /*
+     * The number of distinct values of a string column
+     */
+    public int getCardinality(int column) {
+        Dictionary dictionary = columns[column].dictionary;
+        return dictionary == null ? 0 : dictionary.size();
+    }
+
+    /*
+     * The string with the given id in the dictionary of a string column
+     */
+    public String getDictionaryString(int column, int id) {
+        return columns[column].dictionary.get(id);
+    }
+
+    /*
+     * The size of the buffers, in bytes
+     */
+    public long memory() {
+        long memory = 0;
+
+        for (int i=0; columns != null && i < columns.length; i++)
+            memory += columns[i].memory();
+
+        return memory;
+    }
+
+    /*
+     * A cursor before the first row
+     */
+    public Cursor cursor() {
+        return new Cursor() {
+            int row = -1;
+
+            public boolean next() {
+                if (row < size)
+                    row++;
+
+                return row < size;
+            }
+
+            public int getRow() {
+                return row;
+            }
+
+            public boolean isNull(int column) {
+                return ResultSet.this.isNull(column, row);
+            }
+
+            public long getLong(int column) {
+                return ResultSet.this.getLong(column, row);
+            }
+
+            public double getDouble(int column) {
+                return ResultSet.this.getDouble(column, row);
+            }
+
+            public boolean getBoolean(int column) {
+                return ResultSet.this.getBoolean(column, row);
+            }
+
+            public String getString(int column) {
+                return ResultSet.this.getString(column, row);
+            }
+
+            public int getStringId(int column) {
+                return ResultSet.this.getStringId(column, row);
+            }
+        };
+    }
+
+    /*
+     * Release the buffers (their memory is freed when they are collected)
+     */
+    public void close() {
+        if (columns != null) {
+            for (Column column : columns) {
+                column.values.clear();
+                column.nulls.clear();
+                column.dictionary = null;
+            }
+        }
+
+        size = capacity = 0;
+    }
+
+    public boolean isNull(int column, int row) {
+        checkRow(row);
+        return columns[column].isNull(row);
+    }
+
+    public long getLong(int column, int row) {
+        checkRow(row);
+
+        Column c = columns[column];
+        if (c.isNull(row))
+            return 0;
+
+        switch(c.type)
+        {
+        case DOUBLE: return (long) Double.longBitsToDouble(c.getBits(row));
+        case STRING: return Long.parseLong(c.dictionary.get((int) c.getBits(row)));
+        default:     return c.getBits(row); // LONG or BOOLEAN
+        }
+    }
+
+    public double getDouble(int column, int row) {
+        checkRow(row);
+
+        Column c = columns[column];
+        if (c.isNull(row))
+            return 0;
+
+        switch(c.type)
+        {
+        case DOUBLE: return Double.longBitsToDouble(c.getBits(row));
+        case STRING: return Double.parseDouble(c.dictionary.get((int) c.getBits(row)));
+        default:     return c.getBits(row); // LONG or BOOLEAN
+        }
+    }
+
+    public boolean getBoolean(int column, int row) {
+        checkRow(row);
+
+        Column c = columns[column];
+        if (c.isNull(row))
+            return false;
+
+        switch(c.type)
+        {
+        case DOUBLE: return Double.longBitsToDouble(c.getBits(row)) != 0;
+        case STRING: return Boolean.parseBoolean(c.dictionary.get((int) c.getBits(row)));
+        default:     return c.getBits(row) != 0; // LONG or BOOLEAN
+        }
+    }
+
+    public String getString(int column, int row) {
+        checkRow(row);
+
+        Column c = columns[column];
+        return c.isNull(row) ? null : stringValue(c, row);
+    }
+
+    public int getStringId(int column, int row) {
+        checkRow(row);
+
+        Column c = columns[column];
+        if (c.type != Type.STRING)
+            throw new IllegalStateException(c.name + " is not a string column (" + c.type + ")");
+
+        return c.isNull(row) ? -1 : (int) c.getBits(row);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("row " + row + " (" + size + " rows)");
+    }
+
+    /*
+     * Store a value at row, converting the column if the value doesn't fit its type
+     */
+    static void store(Column c, int row, JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            c.setNull(row);
+            return;
+        }
+
+        if (c.type == null)
+            c.type = typeOf(value);
+
+        if (c.type == Type.LONG) {
+            Long l = asLong(value);
+
+            if (l != null) {
+                c.setBits(row, l);
+                return;
+            }
+
+            convert(c, row, asDouble(value) != null ? Type.DOUBLE : Type.STRING);
+        }
+
+        if (c.type == Type.DOUBLE) {
+            Double d = asDouble(value);
+
+            if (d != null) {
+                c.setBits(row, Double.doubleToRawLongBits(d));
+                return;
+            }
+
+            convert(c, row, Type.STRING);
+        }
+
+        if (c.type == Type.BOOLEAN) {
+            Boolean b = asBoolean(value);
+
+            if (b != null) {
+                c.setBits(row, b ? 1 : 0);
+                return;
+            }
+
+            convert(c, row, Type.STRING);
+        }
+
+        if (c.dictionary == null)
+            c.dictionary = new Dictionary();
+
+        c.setBits(row, c.dictionary.encode(value.isJsonPrimitive() ? value.getAsString() : value.toString()));
+    }
+
+    /*
+     * Convert the rows before row to type (DOUBLE from LONG, or STRING)
+     */
+    static void convert(Column c, int row, Type type) {
+        if (type == Type.STRING)
+            c.dictionary = new Dictionary();
+
+        for (int r=0; r < row; r++) {
+            if (c.isNull(r))
+                continue;
+
+            if (type == Type.DOUBLE)
+                c.setBits(r, Double.doubleToRawLongBits(c.getBits(r)));
+            else
+                c.setBits(r, c.dictionary.encode(stringValue(c, r)));
+        }
+
+        c.type = type;
+    }
+
+    static String stringValue(Column c, int row) {
+        long bits = c.getBits(row);
+
+        switch(c.type)
+        {
+        case LONG:    return String.valueOf(bits);
+        case DOUBLE:  return ElseParser.Expression.formatValue(Double.longBitsToDouble(bits));
+        case BOOLEAN: return String.valueOf(bits != 0);
+        default:      return c.dictionary.get((int) bits);
+        }
+    }
+
+    /*
+     * The type of the first value of a column
+     */
+    static Type typeOf(JsonElement value) {
+        if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean())
+            return Type.BOOLEAN;
+
+        if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber())
+            return asLong(value) != null ? Type.LONG : Type.DOUBLE;
+
+        return Type.STRING;
+    }
+
+    /*
+     * The type of a column for a field type in the mapping (null: take it from the values)
+     */
+    static Type typeOf(String fieldType) {
+        if (fieldType == null)
+            return null;
+
+        if (Mappings.isInteger(fieldType))
+            return Type.LONG;
+
+        if (Mappings.isNumber(fieldType))
+            return Type.DOUBLE;
+
+        if ("boolean".equals(fieldType))
+            return Type.BOOLEAN;
+
+        if (Mappings.isText(fieldType) || "keyword".equals(fieldType))
+            return Type.STRING;
+
+        return null; // dates can be strings or numbers
+    }
+
+    /*
+     * A number (or a string with a number, as in _source for a numeric field) as a long, or null
+     */
+    static Long asLong(JsonElement value) {
+        if (!value.isJsonPrimitive() || value.getAsJsonPrimitive().isBoolean())
+            return null;
+
+        try {
+            return Long.valueOf(value.getAsString());
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static Double asDouble(JsonElement value) {
+        if (!value.isJsonPrimitive() || value.getAsJsonPrimitive().isBoolean())
+            return null;
+
+        try {
+            return Double.valueOf(value.getAsString());
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static Boolean asBoolean(JsonElement value) {
+        if (!value.isJsonPrimitive())
+            return null;
+
+        String s = value.getAsString();
+
+        if (s.equals("true") || s.equals("false"))
+            return Boolean.valueOf(s);
+
+        return null;
+    }
+
+    static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /*
+     * A copy of buf with at least the given capacity (doubled)
+     */
+    static ByteBuffer grow(ByteBuffer buf, int needed) {
+        int capacity = buf.capacity();
+
+        while (capacity < needed)
+            capacity *= 2;
+
+        ByteBuffer grown = allocate(capacity);
+
+        ByteBuffer src = buf.duplicate();
+        src.clear();
+        grown.put(src);
+
+        return grown;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("rows: ").append(size).append(", columns: [");
+
+        for (int i=0; columns != null && i < columns.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+
+            sb.append(columns[i].name).append(' ').append(columns[i].type);
+        }
+
+        return sb.append("], memory: ").append(memory()).toString();
+    }
+}
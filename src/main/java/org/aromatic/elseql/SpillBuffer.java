@@ -0,0 +1,318 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/*
+ * A buffer of decoded rows that spills to disk once a heap budget is exceeded.
+ *
+ * Rows are kept in memory until their (estimated) size exceeds the budget, then the batch
+ * is written to a temporary file in a compact binary format (sorted first, if an order is given)
+ * and read back through memory-mapped cursors. With an order the runs are merged (k-way),
+ * otherwise they are returned in insertion order.
+ *
+ * Row format: int count, then for each value int length (-1 for null) and the UTF-8 bytes.
+ *
+ * Rows can be added by one thread and read by another once it's done, and the buffer can be
+ * closed at any time (rows added after that are rejected).
+ */
+public class SpillBuffer implements Iterable<String[]>
+{
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long MAX_RUN = Integer.MAX_VALUE; // a run must fit in a single mapping
+
+    private final long budget;
+    private final Comparator<String[]> order;
+    private final List<String[]> rows = new ArrayList<String[]>();
+    private final List<File> runs = new ArrayList<File>();
+    private long used = 0;
+    private long size = 0;
+    private File directory = null;
+    private boolean closed = false;
+
+    public SpillBuffer() {
+        this(DEFAULT_BUDGET, null);
+    }
+
+    /*
+     * Create a buffer with a heap budget (in bytes) and an optional order for the rows
+     */
+    public SpillBuffer(long budget, Comparator<String[]> order) {
+        this.budget = budget;
+        this.order = order;
+    }
+
+    /*
+     * Write the spill files in directory (the default temporary directory if null)
+     */
+    public SpillBuffer setDirectory(File directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    public synchronized void add(String row[]) throws IOException {
+        if (closed)
+            throw new IOException("spill buffer closed");
+
+        rows.add(row);
+        used += weight(row);
+        size++;
+
+        if (used > budget)
+            spill();
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int getSpilledRuns() {
+        return runs.size();
+    }
+
+    /*
+     * Estimated heap usage of a row
+     */
+    static long weight(String row[]) {
+        long w = 16 + 4L * row.length;
+
+        for (String v : row) {
+            if (v != null)
+                w += 40 + 2L * v.length();
+        }
+
+        return w;
+    }
+
+    /*
+     * Write the in-memory rows as a new run
+     */
+    private void spill() throws IOException {
+        if (rows.isEmpty())
+            return;
+
+        if (order != null)
+            Collections.sort(rows, order);
+
+        File file = File.createTempFile("elseql-", ".spill", directory);
+        file.deleteOnExit();
+        runs.add(file); // deleted by close, even if incomplete
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        long written = 0;
+
+        try {
+            for (String row[] : rows) {
+                out.writeInt(row.length);
+                written += 4;
+
+                for (String v : row) {
+                    if (v == null) {
+                        out.writeInt(-1);
+                        written += 4;
+                    } else {
+                        byte bytes[] = v.getBytes(UTF8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                        written += 4 + bytes.length;
+                    }
+                }
+
+                if (written > MAX_RUN)
+                    throw new IOException("spill run too large, reduce the heap budget");
+            }
+        } finally {
+            out.close();
+        }
+
+        rows.clear();
+        used = 0;
+    }
+
+    /*
+     * Return the rows, merged in order if an order was given.
+     * Adding more rows while iterating is not supported.
+     */
+    public synchronized Iterator<String[]> iterator() {
+        if (order != null)
+            Collections.sort(rows, order);
+
+        List<Iterator<String[]>> sources = new ArrayList<Iterator<String[]>>();
+
+        try {
+            for (File run : runs)
+                sources.add(new RunCursor(run));
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        sources.add(rows.iterator());
+
+        if (order == null)
+            return Iterators.concat(sources);
+        else
+            return Iterators.merge(sources, order);
+    }
+
+    /*
+     * Remove the spill files
+     */
+    public synchronized void close() {
+        for (File run : runs)
+            run.delete();
+
+        runs.clear();
+        rows.clear();
+        used = size = 0;
+        closed = true;
+    }
+
+        /*
+         * A cursor over a spilled run: the file is memory-mapped and rows are decoded
+         * straight from the mapping.
+         */
+    static class RunCursor implements Iterator<String[]> {
+        private final MappedByteBuffer buffer;
+
+        RunCursor(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close(); // the mapping stays valid
+            }
+        }
+
+        public boolean hasNext() {
+            return buffer.hasRemaining();
+        }
+
+        public String[] next() {
+            if (!buffer.hasRemaining())
+                throw new NoSuchElementException();
+
+            String row[] = new String[buffer.getInt()];
+
+            for (int i=0; i < row.length; i++) {
+                int len = buffer.getInt();
+                if (len < 0)
+                    continue;
+
+                ByteBuffer value = buffer.slice();
+                value.limit(len);
+                row[i] = UTF8.decode(value).toString();
+
+                buffer.position(buffer.position() + len);
+            }
+
+            return row;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+        /*
+         * An output stream that is kept in memory up to a budget, then written to a temporary
+         * file. The contents are copied out with writeTo, the file is memory-mapped a segment
+         * at a time.
+         */
+    public static class Output extends OutputStream {
+        private static final int SEGMENT = 1 << 30; // size of a file mapping
+
+        private final long budget;
+        private final File directory;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private OutputStream out = memory;
+        private File file = null;
+
+        /*
+         * Spill to a file in directory (the default temporary directory if null) past budget bytes
+         */
+        public Output(long budget, File directory) {
+            this.budget = budget;
+            this.directory = directory;
+        }
+
+        public synchronized boolean isSpilled() {
+            return file != null;
+        }
+
+        public synchronized void write(int b) throws IOException {
+            out.write(b);
+
+            if (file == null && memory.size() > budget)
+                spill();
+        }
+
+        public synchronized void write(byte b[], int off, int len) throws IOException {
+            out.write(b, off, len);
+
+            if (file == null && memory.size() > budget)
+                spill();
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        private void spill() throws IOException {
+            file = File.createTempFile("elseql-", ".spill", directory);
+            file.deleteOnExit();
+
+            out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            memory.writeTo(out);
+            memory = null;
+        }
+
+        /*
+         * Copy the contents to target (nothing can be written after this)
+         */
+        public synchronized void writeTo(OutputStream target) throws IOException {
+            if (file == null) {
+                memory.writeTo(target);
+                return;
+            }
+
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte chunk[] = new byte[65536];
+
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+
+                for (long position = 0; position < size; position += SEGMENT) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT, size - position));
+
+                    while (buffer.hasRemaining()) {
+                        int n = Math.min(chunk.length, buffer.remaining());
+                        buffer.get(chunk, 0, n);
+                        target.write(chunk, 0, n);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        /*
+         * Remove the spill file
+         */
+        public synchronized void close() throws IOException {
+            if (file != null) {
+                out.close();
+                file.delete();
+            }
+        }
+    }
+}
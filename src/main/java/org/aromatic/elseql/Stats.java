@@ -0,0 +1,218 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+
+/*
+ * Request-level instrumentation: per-phase latency histograms and byte counters
+ */
+public class Stats
+{
+    public enum Phase {
+        PARSE,      // parsing the ElseQL statement
+        BUILD,      // building the ES request
+        REQUEST,    // sending the request and receiving the response (including the tunnel)
+        DECODE,     // decoding the JSON response
+        OUTPUT,     // formatting and writing the results
+        TOTAL       // the whole query
+    }
+
+        /*
+         * A log-linear histogram, in the spirit of HdrHistogram.
+         *
+         * Values are bucketed by power of two and each power of two is split in SUB_BUCKETS
+         * linear sub-buckets, for a relative error below 1/SUB_BUCKETS at any magnitude.
+         */
+    public static class Histogram {
+        static final int SUB_BITS = 5;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long counts[] = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+        private long total = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+
+            int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (exp + 1) * SUB_BUCKETS + (int) (value >>> exp) - SUB_BUCKETS;
+        }
+
+        static long bucketValue(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+
+            int exp = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << exp) - 1; // highest value in the bucket
+        }
+
+        public synchronized void record(long value) {
+            if (value < 0)
+                value = 0;
+
+            counts[bucket(value)]++;
+            total++;
+            sum += value;
+
+            if (value < min)
+                min = value;
+            if (value > max)
+                max = value;
+        }
+
+        public synchronized long count() {
+            return total;
+        }
+
+        public synchronized long sum() {
+            return sum;
+        }
+
+        public synchronized long min() {
+            return total == 0 ? 0 : min;
+        }
+
+        public synchronized long max() {
+            return max;
+        }
+
+        public synchronized double mean() {
+            return total == 0 ? 0.0 : (double) sum / total;
+        }
+
+        /*
+         * Return the value at the given percentile (0-100)
+         */
+        public synchronized long percentile(double p) {
+            if (total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(p / 100.0 * total);
+            if (rank < 1)
+                rank = 1;
+
+            long seen = 0;
+            for (int i=0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(bucketValue(i), max);
+            }
+
+            return max;
+        }
+
+        public synchronized void reset() {
+            Arrays.fill(counts, 0);
+            total = sum = max = 0;
+            min = Long.MAX_VALUE;
+        }
+    }
+
+    private final Histogram phases[] = new Histogram[Phase.values().length];
+    private final Histogram bytesSent = new Histogram();
+    private final Histogram bytesReceived = new Histogram();
+    private long queries = 0;
+    private long cached = 0;
+    private long errors = 0;
+
+    public Stats() {
+        for (int i=0; i < phases.length; i++)
+            phases[i] = new Histogram();
+    }
+
+    /*
+     * Record the time (in nanoseconds) spent in a phase
+     */
+    public void record(Phase phase, long nanos) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    /*
+     * Record the time spent in a phase since start (System.nanoTime()), return the current time
+     */
+    public long since(Phase phase, long start) {
+        long now = System.nanoTime();
+        record(phase, now - start);
+        return now;
+    }
+
+    public void recordBytes(long sent, long received) {
+        bytesSent.record(sent);
+        bytesReceived.record(received);
+    }
+
+    public synchronized void countQuery(boolean fromCache, boolean error) {
+        queries++;
+        if (fromCache)
+            cached++;
+        if (error)
+            errors++;
+    }
+
+    public Histogram get(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    public void reset() {
+        for (Histogram h : phases)
+            h.reset();
+
+        bytesSent.reset();
+        bytesReceived.reset();
+
+        synchronized(this) {
+            queries = cached = errors = 0;
+        }
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    /*
+     * A per-phase summary, with latencies in milliseconds
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        synchronized(this) {
+            sb.append("queries: ").append(queries)
+                .append(", cached: ").append(cached)
+                .append(", errors: ").append(errors)
+                .append('\n');
+        }
+
+        sb.append(String.format("%-8s %8s %10s %10s %10s %10s%n", "phase", "count", "p50(ms)", "p99(ms)", "max(ms)", "total(ms)"));
+
+        for (Phase phase : Phase.values()) {
+            Histogram h = get(phase);
+
+            sb.append(String.format("%-8s %8d %10s %10s %10s %10s%n",
+                phase.toString().toLowerCase(),
+                h.count(),
+                millis(h.percentile(50)),
+                millis(h.percentile(99)),
+                millis(h.max()),
+                millis(h.sum())));
+        }
+
+        sb.append(String.format("%-8s %8s %10s %10s %10s %10s%n", "bytes", "count", "p50", "p99", "max", "total"));
+
+        for (int i=0; i < 2; i++) {
+            Histogram h = i==0 ? bytesSent : bytesReceived;
+
+            sb.append(String.format("%-8s %8d %10d %10d %10d %10d%n",
+                i==0 ? "sent" : "received",
+                h.count(),
+                h.percentile(50),
+                h.percentile(99),
+                h.max(),
+                h.sum()));
+        }
+
+        return sb.toString();
+    }
+}
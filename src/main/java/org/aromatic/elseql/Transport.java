@@ -0,0 +1,412 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * HTTP transport to a cluster reachable through one or more nodes.
+ *
+ * Every request goes to a node picked in round-robin order or by lowest (smoothed) latency,
+ * skipping nodes whose circuit breaker is open. Idempotent requests (searches and counts) that
+ * fail, time out or get a 502/503/504 are retried on another node with exponential backoff,
+ * and can be hedged: if the response takes longer than the p95 latency, the same request is sent
+ * to a second node and the first response wins. Other requests are only retried when the
+ * connection was refused (nothing was sent).
+ */
+public class Transport
+{
+    public enum Balance {
+        ROUND_ROBIN,
+        LEAST_LATENCY
+    }
+
+    public static final int DEFAULT_RETRIES = 2;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;   // milliseconds
+    public static final int DEFAULT_READ_TIMEOUT = 60000;     // milliseconds
+
+    static final int BREAKER_FAILURES = 3;      // consecutive failures that open a breaker
+    static final long BREAKER_COOLDOWN = 10000; // milliseconds before a trial request
+    static final long BACKOFF = 100;            // milliseconds, doubled at every retry
+    static final int HEDGE_SAMPLES = 20;        // latencies needed before hedging
+    static final long MIN_HEDGE_DELAY = 10;     // milliseconds
+
+    static final String JSON = "application/json";
+
+        /*
+         * A node, with its circuit breaker and latency estimate.
+         *
+         * The breaker state is a single long, so that its transitions are atomic:
+         * 0 closed, t > 0 open until t, -t half-open (the trial request, picked at t or later, is in progress)
+         */
+    static class Node {
+        final String url;
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong breaker = new AtomicLong();
+        double latency = 0;     // smoothed latency in nanoseconds
+
+        Node(String url) {
+            this.url = url;
+        }
+
+        boolean isAvailable(long now) {
+            long state = breaker.get();
+            return state == 0 || (state > 0 && now >= state);
+        }
+
+        /*
+         * Pick the node: if its breaker is half-open, only one caller gets the trial request
+         */
+        boolean acquire(long now) {
+            for (;;) {
+                long state = breaker.get();
+
+                if (state == 0)
+                    return true;
+
+                if (state < 0 || now < state)
+                    return false;
+
+                if (breaker.compareAndSet(state, -state))
+                    return true;
+            }
+        }
+
+        void success(long nanos) {
+            failures.set(0);
+            breaker.set(0);
+
+            synchronized (this) {
+                latency = latency == 0 ? nanos : 0.8 * latency + 0.2 * nanos;
+            }
+        }
+
+        /*
+         * Return true if the breaker was opened (not just kept open)
+         */
+        boolean failure(long now) {
+            int count = failures.incrementAndGet();
+
+            for (;;) {
+                long state = breaker.get();
+
+                if (state == 0 && count < BREAKER_FAILURES)
+                    return false;
+
+                if (breaker.compareAndSet(state, now + BREAKER_COOLDOWN))
+                    return state == 0;
+            }
+        }
+
+        synchronized double getLatency() {
+            return latency;
+        }
+
+        long getOpenUntil() {
+            return Math.abs(breaker.get());
+        }
+
+        public String toString() {
+            return url;
+        }
+    }
+
+        /*
+         * A response status that's worth retrying on another node
+         */
+    static class RetryableError extends IOException {
+        RetryableError(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final Node nodes[];
+    private final AtomicInteger next = new AtomicInteger();
+    private final Stats.Histogram latencies = new Stats.Histogram();
+
+    private Balance balance = Balance.ROUND_ROBIN;
+    private int retries = DEFAULT_RETRIES;
+    private boolean hedge = false;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private ExecutorService executor = null;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong breakerOpens = new AtomicLong();
+
+    /*
+     * hosts: comma separated list of node URLs
+     */
+    public Transport(String hosts) {
+        String urls[] = hosts.split(",");
+
+        nodes = new Node[urls.length];
+        for (int i=0; i < urls.length; i++)
+            nodes[i] = new Node(urls[i].trim());
+    }
+
+    public Transport setBalance(Balance balance) {
+        this.balance = balance;
+        return this;
+    }
+
+    public Transport setRetries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    public Transport setHedge(boolean hedge) {
+        this.hedge = hedge;
+        return this;
+    }
+
+    public Transport setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /*
+     * The executor for hedged requests
+     */
+    public Transport setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /*
+     * Pick a node, not in exclude if possible. If all the breakers are open, the one
+     * closest to its trial is used.
+     */
+    Node pick(Set<Node> exclude) {
+        long now = System.currentTimeMillis();
+        Node best = null;
+
+        if (balance == Balance.ROUND_ROBIN) {
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+
+            for (int i=0; i < nodes.length && best == null; i++) {
+                Node node = nodes[(start + i) % nodes.length];
+
+                if (!exclude.contains(node) && node.acquire(now))
+                    best = node;
+            }
+        } else {
+            Set<Node> lost = new HashSet<Node>(); // half-open nodes whose trial went to another request
+
+            for (;;) {
+                best = null;
+
+                for (Node node : nodes) {
+                    if (exclude.contains(node) || lost.contains(node))
+                        continue;
+
+                    if (node.isAvailable(now) && (best == null || node.getLatency() < best.getLatency()))
+                        best = node;
+                }
+
+                if (best == null || best.acquire(now))
+                    break;
+
+                lost.add(best);
+            }
+        }
+
+        if (best != null)
+            return best;
+
+        for (Node node : nodes) {
+            if (best == null || node.getOpenUntil() < best.getOpenUntil())
+                best = node;
+        }
+
+        return best;
+    }
+
+    /*
+     * Send a request (path is relative to the node URL), return the response body.
+     * JSON error responses are returned as the body, as Util.get_body does.
+     */
+    public String request(String method, String path, String data, String contentType, boolean idempotent) throws Exception {
+        byte response[] = requestBytes(method, path, data == null ? null : data.getBytes(Util.UTF8), contentType, idempotent);
+        return new String(response, Util.UTF8);
+    }
+
+    /*
+     * As above, with a UTF-8 encoded body and returning the response undecoded
+     */
+    public byte[] requestBytes(String method, String path, byte data[], String contentType, boolean idempotent) throws Exception {
+        requests.incrementAndGet();
+
+        Set<Node> tried = new HashSet<Node>();
+        Exception last = null;
+
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            if (attempt > 0) {
+                retried.incrementAndGet();
+                Thread.sleep((BACKOFF << (attempt - 1)) + (long) (Math.random() * BACKOFF));
+            }
+
+            if (tried.size() == nodes.length)
+                tried.clear(); // all nodes were tried, start over
+
+            try {
+                if (hedge && idempotent && nodes.length > 1 && executor != null)
+                    return hedged(method, path, data, contentType, tried);
+
+                Node node = pick(tried);
+                tried.add(node);
+                return send(node, method, path, data, contentType, idempotent);
+            } catch(Util.HttpError e) {
+                throw e; // not JSON, not retryable
+            } catch(Exception e) {
+                last = e;
+
+                if (!idempotent && !(e.getCause() instanceof ConnectException || e instanceof ConnectException))
+                    throw e;
+            }
+        }
+
+        throw last;
+    }
+
+    /*
+     * Send a request to a node, recording the outcome for its breaker
+     */
+    byte[] send(Node node, String method, String path, byte data[], String contentType, boolean idempotent) throws Exception {
+        Map<String, String> headers = null;
+
+        if (data != null) {
+            headers = new HashMap<String, String>();
+            headers.put("Content-Type", contentType == null ? JSON : contentType);
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            byte body[] = Util.readBytes(Util.http_stream(method, node.url + "/" + path, data, headers, connectTimeout, readTimeout));
+            success(node, System.nanoTime() - start);
+            return body;
+        } catch(Util.HttpError error) {
+            if (error.code == 502 || error.code == 503 || error.code == 504) {
+                failure(node);
+
+                if (idempotent)
+                    throw new RetryableError(node + ": HTTP " + error.code, error);
+            } else
+                success(node, System.nanoTime() - start); // the node is alive
+
+            if (error.contentType != null && error.contentType.contains("json") && error.body != null)
+                return error.body.getBytes(Util.UTF8);
+
+            throw error;
+        } catch(IOException e) {
+            failure(node);
+            throw new RetryableError(node + ": " + e, e);
+        }
+    }
+
+    void success(Node node, long nanos) {
+        node.success(nanos);
+        latencies.record(nanos);
+    }
+
+    void failure(Node node) {
+        if (node.failure(System.currentTimeMillis()))
+            breakerOpens.incrementAndGet();
+    }
+
+    /*
+     * Send the request to a node and, if it's slower than the p95 latency, to a second node:
+     * return the first successful response
+     */
+    byte[] hedged(final String method, final String path, final byte data[], final String contentType, Set<Node> tried) throws Exception {
+        CompletionService<byte[]> completion = new ExecutorCompletionService<byte[]>(executor);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+
+        final Node first = pick(tried);
+        tried.add(first);
+
+        futures.add(completion.submit(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return send(first, method, path, data, contentType, true);
+            }
+        }));
+
+        try {
+            Future<byte[]> done = null;
+            long delay = hedgeDelay();
+
+            if (delay > 0)
+                done = completion.poll(delay, TimeUnit.MILLISECONDS);
+
+            if (done == null && delay > 0) {
+                final Node second = pick(tried);
+
+                if (second != first) {
+                    tried.add(second);
+                    hedged.incrementAndGet();
+
+                    futures.add(completion.submit(new Callable<byte[]>() {
+                        public byte[] call() throws Exception {
+                            return send(second, method, path, data, contentType, true);
+                        }
+                    }));
+                }
+            }
+
+            Exception last = null;
+
+            for (int n = 0; n < futures.size(); n++) {
+                if (done == null)
+                    done = completion.take();
+
+                try {
+                    byte body[] = ElseSearch.get(done);
+
+                    if (done != futures.get(0))
+                        hedgeWins.incrementAndGet();
+
+                    return body;
+                } catch(Exception e) {
+                    last = e;
+                    done = null;
+                }
+            }
+
+            throw last;
+        } finally {
+            for (Future<byte[]> f : futures)
+                f.cancel(true);
+        }
+    }
+
+    /*
+     * The delay before hedging: the p95 latency (0 if there aren't enough samples yet)
+     */
+    long hedgeDelay() {
+        if (latencies.count() < HEDGE_SAMPLES)
+            return 0;
+
+        return Math.max(MIN_HEDGE_DELAY, latencies.percentile(95) / 1000000);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("nodes: ").append(Arrays.toString(nodes))
+            .append(", requests: ").append(requests.get())
+            .append(", retried: ").append(retried.get())
+            .append(", hedged: ").append(hedged.get())
+            .append(", hedge wins: ").append(hedgeWins.get())
+            .append(", breaker opens: ").append(breakerOpens.get());
+
+        return sb.toString();
+    }
+}
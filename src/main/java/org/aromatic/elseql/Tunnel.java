@@ -0,0 +1,84 @@
+package org.aromatic.elseql;
+
+import java.util.Properties;
+
+import com.jcraft.jsch.*;
+
+/*
+ * SSH tunnel to an ES server that is only reachable through SSH.
+ *
+ * This is the only class that references JSch, so that JSch is only loaded
+ * when a tunnel: host is used.
+ */
+@SuppressWarnings("deprecation")
+public class Tunnel
+{
+    /* the session is kept in Util.tunnelSession, for the callers that still read it */
+
+        /*
+         * Create an SSH Tunnel
+         *
+         * connectionString: [user[:password]@]host:port
+         */
+    public static int start(String connectionString) throws Exception
+    {
+        String parts[];
+
+        String user = System.getProperty("user.name");
+        String password = null;
+
+        parts = connectionString.split("@", 2);
+        if (parts.length > 1) {
+            user = parts[0];
+            connectionString = parts[1];
+
+            parts = user.split(":", 2);
+            if (parts.length > 1) {
+                user = parts[0];
+                password = parts[1];
+            }
+        }
+
+        parts = connectionString.split(":", 2);
+        String host = parts[0];
+        int port = Integer.parseInt(parts[1]);
+
+        return start(user, password, host, port, "127.0.0.1", port);
+    }
+
+        /*
+         * user: ssh user
+         * host: ssh host
+         * lport: local port
+         * rhost: remote host
+         * rport: remote port
+         */
+    public static int start(String user, String password, String host, int lport, String rhost, int rport) throws Exception
+    {
+        stop();
+
+        JSch jsch = new JSch();
+        Session session = jsch.getSession(user, host);
+        session.setPassword(password);
+
+        Properties config = new Properties();
+        config.put("StrictHostKeyChecking","no");
+        session.setConfig(config);
+        session.connect();
+        Util.tunnelSession = session;
+
+        return session.setPortForwardingL(lport, rhost, rport);
+    }
+
+    public static void stop() {
+        Session session = Util.tunnelSession;
+        if (session != null) {
+            Util.tunnelSession = null;
+            session.disconnect();
+        }
+    }
+
+    public static boolean isStarted() {
+        return Util.tunnelSession != null;
+    }
+}
@@ -2,14 +2,17 @@ package org.aromatic.elseql;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
 import com.google.gson.*;
-import com.jcraft.jsch.*;
+import com.jcraft.jsch.Session;
 
 public class Util
 {
-    public static boolean DEBUG = true;
+    public static boolean DEBUG = false;
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
 
         /*
          * A container for name/value pair objects
@@ -123,40 +126,80 @@ public class Util
         }
 
         public String toCSV() {
+            StringBuilder sb = new StringBuilder();
+            appendCSV(sb, jele);
+            return sb.toString();
+        }
+
+        /*
+         * Append the CSV representation of a value
+         */
+        public static void appendCSV(StringBuilder sb, JsonElement jele) {
             //
             // null are empty values
             //
             if (jele==null || jele.isJsonNull())
-                return "";
+                return;
             
             if (jele.isJsonPrimitive()) {
                 //
                 // strings are CSV-escaped
                 //
-                    if (jele.getAsJsonPrimitive().isString())
-                    return "\"" + jele.getAsJsonPrimitive().getAsString().replace("\"", "\"\"") + "\"";
-
+                if (jele.getAsJsonPrimitive().isString())
+                    appendQuoted(sb, jele.getAsJsonPrimitive().getAsString());
 
                 //
                 // other primitives are returned as-id
                 //
                 else
-                    return jele.toString();
+                    sb.append(jele.toString());
+
+                return;
             }
 
             //
             // non-primitives are fully CSV-escaped so they can be converted back to json blobs
             //
-            return "\"" + jele.toString().replace("\"", "\"\"") + "\"";
+            appendQuoted(sb, jele.toString());
+        }
+
+        private static void appendQuoted(StringBuilder sb, String s) {
+            sb.append('"');
+
+            for (int i=0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"')
+                    sb.append('"');
+                sb.append(c);
+            }
+
+            sb.append('"');
         }
 
         public String toCSV(String field_names[]) {
-            ArrayList<String> values = new ArrayList<String>(field_names.length);
+            return toCSV(Path.compile(field_names));
+        }
 
-            for (String name : field_names)
-                values.add(this.get(name).toCSV());
+        public String toCSV(Path paths[]) {
+            StringBuilder sb = new StringBuilder();
+            appendCSV(sb, jele, null, paths);
+            return sb.toString();
+        }
 
-            return join(",", values);
+        /*
+         * Append a CSV row with the values at paths, looked up in source and then in fields (if not null)
+         */
+        public static void appendCSV(StringBuilder sb, JsonElement source, JsonElement fields, Path paths[]) {
+            for (int i=0; i < paths.length; i++) {
+                if (i > 0)
+                    sb.append(',');
+
+                JsonElement value = paths[i].resolve(source);
+                if (value == null && fields != null)
+                    value = paths[i].resolve(fields);
+
+                appendCSV(sb, value);
+            }
         }
 
         public Json putNVList(String name, List<NameValue> value) {
@@ -182,6 +225,14 @@ public class Util
             return this;
         }
 
+        /*
+         * Append a value to an array
+         */
+        public Json add(Json value) {
+            jele.getAsJsonArray().add(value.jele);
+            return this;
+        }
+
         public Json put(String name, Json value) {
             jele.getAsJsonObject().add(name, value.jele);
             return this;
@@ -212,24 +263,100 @@ public class Util
             return this;
         }
 
+        public Json remove(String name) {
+            jele.getAsJsonObject().remove(name);
+            return this;
+        }
+
+        public boolean isObject() {
+            return jele != null && jele.isJsonObject();
+        }
+
+        public long asLong() {
+            return jele.getAsLong();
+        }
+
         public boolean has(String name) {
             return jele.getAsJsonObject().has(name);
         }
 
+        /*
+         * An (insertion) ordered view of the object keys, not a copy
+         */
         public Set<String> keySet() {
-            Set<String> keySet = new HashSet<String>();
+            return keySet(jele);
+        }
 
-            for (Map.Entry<String, JsonElement> e : jele.getAsJsonObject().entrySet()) {
-                keySet.add(e.getKey());
-            }
+        public static Set<String> keySet(JsonElement jele) {
+            final Set<Map.Entry<String, JsonElement>> entries = jele.getAsJsonObject().entrySet();
+
+            return new AbstractSet<String>() {
+                public int size() {
+                    return entries.size();
+                }
+
+                public Iterator<String> iterator() {
+                    final Iterator<Map.Entry<String, JsonElement>> it = entries.iterator();
 
-            return keySet;
+                    return new Iterator<String>() {
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        public String next() {
+                            return it.next().getKey();
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
         }
 
         public Json get(String name) {
             return new Json(jele.getAsJsonObject().get(name));
         }
 
+        /*
+         * Get a (possibly nested) field by dotted name ( a.b.c ).
+         * A field whose name contains the dots (as returned by "fields") has precedence.
+         */
+        public Json getPath(String name) {
+            return new Json(Path.compile(name).resolve(jele));
+        }
+
+        /*
+         * Return the raw element (or null), for accessors that don't want a wrapper per access
+         */
+        public JsonElement element() {
+            return jele;
+        }
+
+        public JsonElement element(String name) {
+            return jele.getAsJsonObject().get(name);
+        }
+
+        public JsonElement element(int index) {
+            return jele.getAsJsonArray().get(index);
+        }
+
+        /*
+         * Return a new object with the properties of this object and other
+         */
+        public Json merge(Json other) {
+            JsonObject obj = new JsonObject();
+
+            for (Map.Entry<String, JsonElement> e : jele.getAsJsonObject().entrySet())
+                obj.add(e.getKey(), e.getValue());
+
+            for (Map.Entry<String, JsonElement> e : other.jele.getAsJsonObject().entrySet())
+                obj.add(e.getKey(), e.getValue());
+
+            return new Json(obj);
+        }
+
         public boolean getBoolean(String name) {
             return jele.getAsJsonObject().get(name).getAsBoolean();
         }
@@ -259,6 +386,154 @@ public class Util
         }
     }
 
+        /*
+         * A field path ( a.b.c, a.b[0].c ), compiled once and resolved against many objects.
+         *
+         * Arrays met along the path without an index are flattened: the rest of the path
+         * is resolved against each element and the results are collected in a new array.
+         * Other lookups don't allocate.
+         */
+    public static class Path {
+        final String name;
+        final String parts[];
+        final int indexes[];
+
+        private Path(String name) {
+            this.name = name;
+
+            if (name.indexOf('.') < 0 && name.indexOf('[') < 0) {
+                this.parts = null;
+                this.indexes = null;
+                return;
+            }
+
+            List<String> parts = new ArrayList<String>();
+            List<Integer> indexes = new ArrayList<Integer>();
+
+            for (String part : name.split("\\.")) {
+                int bracket = part.indexOf('[');
+
+                if (bracket < 0) {
+                    parts.add(part);
+                    indexes.add(-1);
+                    continue;
+                }
+
+                parts.add(part.substring(0, bracket));
+                indexes.add(-1);
+
+                // one or more [n]
+                while (bracket >= 0) {
+                    int end = part.indexOf(']', bracket);
+                    int index = Integer.parseInt(part.substring(bracket+1, end));
+
+                    if (indexes.get(indexes.size()-1) < 0)
+                        indexes.set(indexes.size()-1, index);
+                    else {
+                        parts.add(null); // index into the previous array
+                        indexes.add(index);
+                    }
+
+                    bracket = part.indexOf('[', end);
+                }
+            }
+
+            this.parts = parts.toArray(new String[0]);
+            this.indexes = new int[indexes.size()];
+
+            for (int i=0; i < this.indexes.length; i++)
+                this.indexes[i] = indexes.get(i);
+        }
+
+        public static Path compile(String name) {
+            return new Path(name);
+        }
+
+        public static Path[] compile(String names[]) {
+            Path paths[] = new Path[names.length];
+
+            for (int i=0; i < names.length; i++)
+                paths[i] = new Path(names[i]);
+
+            return paths;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /*
+         * The path as a _source filter (without array indexes)
+         */
+        public String getSourcePath() {
+            return name.replaceAll("\\[[0-9]+\\]", "");
+        }
+
+        /*
+         * Return the value at this path in root, or null.
+         * A field whose name contains the dots (as returned by "fields") has precedence.
+         */
+        public JsonElement resolve(JsonElement root) {
+            if (root == null || !root.isJsonObject())
+                return null;
+
+            JsonElement e = root.getAsJsonObject().get(name);
+
+            if (e != null || parts == null)
+                return e;
+
+            return resolve(root, 0);
+        }
+
+        private JsonElement resolve(JsonElement e, int i) {
+            for (; i < parts.length; i++) {
+                if (e == null)
+                    return null;
+
+                if (parts[i] != null) {
+                    if (e.isJsonArray())
+                        return flatten(e.getAsJsonArray(), i);
+
+                    if (!e.isJsonObject())
+                        return null;
+
+                    e = e.getAsJsonObject().get(parts[i]);
+                }
+
+                if (indexes[i] >= 0) {
+                    if (e == null || !e.isJsonArray() || indexes[i] >= e.getAsJsonArray().size())
+                        return null;
+
+                    e = e.getAsJsonArray().get(indexes[i]);
+                }
+            }
+
+            return e;
+        }
+
+        private JsonElement flatten(JsonArray array, int i) {
+            JsonArray result = new JsonArray();
+
+            for (JsonElement item : array) {
+                JsonElement value = resolve(item, i);
+
+                if (value == null)
+                    continue;
+
+                if (value.isJsonArray())
+                    result.addAll(value.getAsJsonArray());
+                else
+                    result.add(value);
+            }
+
+            return result.size() == 0 ? null : result;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
     /*
      * An exception class for HTTP errors where the body may be meaningful
      */
@@ -278,7 +553,7 @@ public class Util
 
     public static final String readStream(InputStream stream) throws Exception
     {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, UTF8));
 
         StringBuilder sb = new StringBuilder();
         String line;
@@ -289,14 +564,74 @@ public class Util
         return sb.toString();
     }
 
+    public static final String readStream(Reader stream) throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        char buffer[] = new char[8192];
+        int n;
+
+        try {
+            while ((n = stream.read(buffer)) > 0)
+                sb.append(buffer, 0, n);
+        } finally {
+            stream.close();
+        }
+
+        return sb.toString();
+    }
+
+    /*
+     * Read a stream to the end, without decoding it
+     */
+    public static final byte[] readBytes(InputStream stream) throws IOException
+    {
+        byte buffer[] = new byte[8192];
+        int len = 0;
+        int n;
+
+        try {
+            while ((n = stream.read(buffer, len, buffer.length - len)) >= 0) {
+                len += n;
+
+                if (len == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return len == buffer.length ? buffer : Arrays.copyOf(buffer, len);
+    }
+
     public static final String GET = "GET";
     public static final String POST = "POST";
+    public static final String DELETE = "DELETE";
 
     public static Reader http_request(String method, String url, String data, Map<String, String> headers)
         throws Exception
+    {
+        return http_request(method, url, data, headers, 0, 0);
+    }
+
+    /*
+     * As above, with connect and read timeouts in milliseconds (0: no timeout)
+     */
+    public static Reader http_request(String method, String url, String data, Map<String, String> headers, int connectTimeout, int readTimeout)
+        throws Exception
+    {
+        return new InputStreamReader(http_stream(method, url, data == null ? null : data.getBytes(UTF8), headers, connectTimeout, readTimeout), UTF8);
+    }
+
+    /*
+     * Send a request with a UTF-8 encoded body, return the (undecoded) response stream
+     */
+    public static InputStream http_stream(String method, String url, byte data[], Map<String, String> headers, int connectTimeout, int readTimeout)
+        throws Exception
     {
         URL req = new URL(url);
         HttpURLConnection connection = (HttpURLConnection) req.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
 
         if (headers != null) {
             for (Map.Entry<String, String> header : headers.entrySet())
@@ -310,10 +645,10 @@ public class Util
 
         if (data != null) {
             connection.setDoOutput(true);
-            Writer writer = new OutputStreamWriter(connection.getOutputStream());
-            writer.write(data);
-            writer.flush();
-            writer.close();
+            connection.setFixedLengthStreamingMode(data.length); // no copy in the connection
+            OutputStream stream = connection.getOutputStream();
+            stream.write(data);
+            stream.close();
         }
 
         if (DEBUG)
@@ -326,9 +661,10 @@ public class Util
             System.out.println("DEBUG response " + connection);
 
         if (responseCode == 200)
-            return new InputStreamReader(connection.getInputStream());
+            return connection.getInputStream();
 
-        throw new HttpError(responseCode, connection.getContentType(), readStream(connection.getErrorStream()));
+        InputStream error = connection.getErrorStream();
+        throw new HttpError(responseCode, connection.getContentType(), error == null ? null : readStream(error));
     }
 
     public static Reader http_get(String url) throws Exception {
@@ -343,13 +679,35 @@ public class Util
         return http_request(POST, url, data, null);
     }
 
+    public static Reader http_delete(String url, String data) throws Exception {
+        return http_request(DELETE, url, data, null);
+    }
+
     public static Json get_json(String url, String data) throws Exception {
+        return parse_json(get_body(url, data));
+    }
+
+    /*
+     * Return the response body as a string (JSON error responses are returned as the body)
+     */
+    public static String get_body(String url, String data) throws Exception {
+        return request_body(GET, url, data, null);
+    }
+
+    /*
+     * POST data with the given content type, return the response body as get_body
+     */
+    public static String post_body(String url, String data, String contentType) throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", contentType);
+
+        return request_body(POST, url, data, headers);
+    }
 
-        JsonParser parser = new JsonParser();
+    static String request_body(String method, String url, String data, Map<String, String> headers) throws Exception {
 
         try {
-            Reader reader = http_get(url, data);
-            return new Json(parser.parse(reader).getAsJsonObject());
+            return readStream(http_request(method, url, data, headers));
         } catch(HttpError error) {
             if (DEBUG) {
                 System.out.println("ERROR code " + error.code);
@@ -358,12 +716,53 @@ public class Util
             }
 
             if (error.contentType != null && error.contentType.contains("json") && error.body != null)
-                return new Json(parser.parse(error.body).getAsJsonObject());
+                return error.body;
 
             throw error;
         }
     }
 
+    public static Json parse_json(String body) {
+        return new Json(new JsonParser().parse(body).getAsJsonObject());
+    }
+
+    /*
+     * Parse a UTF-8 encoded JSON object, without decoding it to a string first
+     */
+    public static Json parse_json(byte body[]) {
+        return new Json(new JsonParser().parse(new InputStreamReader(new ByteArrayInputStream(body), UTF8)).getAsJsonObject());
+    }
+
+    /*
+     * Parse any JSON value (object, array or primitive)
+     */
+    public static Json parse(String body) {
+        return new Json(new JsonParser().parse(body));
+    }
+
+    /*
+     * Return the length of the UTF-8 encoding of a string, without encoding it
+     */
+    public static long utf8Length(String s) {
+        long len = 0;
+
+        for (int i=0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80)
+                len += 1;
+            else if (c < 0x800)
+                len += 2;
+            else if (Character.isHighSurrogate(c)) {
+                len += 4;
+                i++;
+            } else
+                len += 3;
+        }
+
+        return len;
+    }
+
     public static String join(String sep, Collection<String> args) {
             return join(sep, args.toArray(new String[0]), 0);
     }
@@ -388,7 +787,7 @@ public class Util
     }
 
     public enum Format {
-        NATIVE, CSV, JSON, XML
+        NATIVE, CSV, JSON, XML, NDJSON
     }
 
     public static String startList(Format format) {
@@ -419,65 +818,23 @@ public class Util
         }
     }
 
-        /*
-         * Create an SSH Tunnel
-         * 
-         * user: ssh user
-         * host: ssh host
-         * lport: local port
-         * rhost: remote host
-         * rport: remote port
-         */
-
+    /*
+     * Create an SSH tunnel (see Tunnel, kept separate so that JSch is only loaded when needed)
+     */
+    @Deprecated // use Tunnel.isStarted(), the session is managed by Tunnel
     public static Session tunnelSession = null;
 
-        // user@host:port
-    public static int startTunnel(String connectionString) throws Exception
-    {
-        String parts[];
-
-        String user = System.getProperty("user.name");
-        String password = null;
-
-        parts = connectionString.split("@", 2);
-        if (parts.length > 1) {
-            user = parts[0];
-            connectionString = parts[1];
-
-            parts = user.split(":", 2);
-            if (parts.length > 1) {
-                user = parts[0];
-                password = parts[1];
-            }
-        }
-        
-        parts = connectionString.split(":", 2);
-        String host = parts[0];
-        int port = Integer.parseInt(parts[1]);
-
-        return startTunnel(user, password, host, port, "127.0.0.1", port);
+    public static int startTunnel(String connectionString) throws Exception {
+        return Tunnel.start(connectionString);
     }
 
-    public static int startTunnel(String user, String password, String host, int lport, String rhost, int rport) throws Exception
-    {
-        stopTunnel();
-
-        JSch jsch = new JSch();
-        Session tunnelSession = jsch.getSession(user, host);
-        tunnelSession.setPassword(password);
-
-        Properties config = new Properties();
-        config.put("StrictHostKeyChecking","no");
-        tunnelSession.setConfig(config);
-        tunnelSession.connect();
-
-        return tunnelSession.setPortForwardingL(lport, rhost, rport);
+    @Deprecated // use startTunnel(connectionString) or Tunnel.start
+    public static int startTunnel(String user, String password, String host, int lport, String rhost, int rport) throws Exception {
+        return Tunnel.start(user, password, host, lport, rhost, rport);
     }
 
     public static void stopTunnel() {
-        if (tunnelSession != null) {
-            tunnelSession.disconnect();
-            tunnelSession = null;
-        }
+        if (tunnelSession != null)
+            Tunnel.stop(); // without a tunnel, don't load it (and JSch)
     }
 }
@@ -0,0 +1,127 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * The statements of the grammar, and the keyword lookup
+ */
+public class ElseParserTest
+{
+    static ElseParser.Query parse(String query) throws Exception {
+        return new ElseParser(query).getQuery();
+    }
+
+    static void assertInvalid(String query) {
+        try {
+            parse(query);
+            fail("parsed: " + query);
+        } catch(Exception e) {
+            assertTrue(e.getClass().getName(), e instanceof ElseParser.ParseException);
+        }
+    }
+
+    @Test
+    public void keywordsAreCaseInsensitive() {
+        assertNotNull(ElseParser.lookupKeyword("select"));
+        assertNotNull(ElseParser.lookupKeyword("SeLeCt"));
+        assertNotNull(ElseParser.lookupKeyword("BETWEEN"));
+        assertNull(ElseParser.lookupKeyword("selected"));
+        assertNull(ElseParser.lookupKeyword("sel"));
+        assertNull(ElseParser.lookupKeyword("a_field_name_longer_than_any_keyword"));
+        assertNull(ElseParser.lookupKeyword(""));
+        assertNull(ElseParser.lookupKeyword(null));
+        assertNotNull(ElseParser.lookupOperator("and"));
+        assertNull(ElseParser.lookupOperator("select"));
+    }
+
+    @Test
+    public void contextualKeywordsAreNotReserved() throws Exception {
+        assertTrue(ElseParser.isReserved("where"));
+        assertTrue(ElseParser.isReserved("From"));
+        assertFalse(ElseParser.isReserved("count"));
+        assertFalse(ElseParser.isReserved("sample"));
+        assertFalse(ElseParser.isReserved("timestamp"));
+
+        ElseParser.Query query = parse("select count, exists, join, sample from update where set = 1");
+        assertEquals(Arrays.asList("count", "exists", "join", "sample"), query.selectList);
+        assertEquals(Arrays.asList("update"), query.indexList);
+        assertEquals("set:1", query.whereExpr.toQueryString());
+
+        assertInvalid("select from from a");
+    }
+
+    @Test
+    public void select() throws Exception {
+        ElseParser.Query query = parse("SELECT a, b FROM idx WHERE x = 1 ORDER BY a DESC LIMIT 5, 10");
+
+        assertEquals(ElseParser.Command.SELECT, query.command);
+        assertEquals(Arrays.asList("a", "b"), query.selectList);
+        assertEquals("x:1", query.whereExpr.toQueryString());
+        assertEquals(1, query.orderList.size());
+        assertEquals(5, query.from);
+        assertEquals(10, query.size);
+
+        assertEquals(Arrays.asList("c1:i1", "c2:i2"), parse("select a from c1:i1, c2:i2").indexList);
+        assertTrue(parse("select count(*) from a").countOnly);
+        assertTrue(parse("SELECT EXISTS(*) FROM a").existsOnly);
+
+        assertInvalid("select * from a limit x");
+    }
+
+    @Test
+    public void join() throws Exception {
+        ElseParser.Query query = parse("select * from a join b on x = y");
+
+        assertEquals("b", query.joinIndex);
+        assertEquals("x", query.joinOn.name);
+        assertEquals("y", query.joinOn.value);
+    }
+
+    @Test
+    public void sampleAndApprox() throws Exception {
+        ElseParser.Query query = parse("select * from a sample 5 approx");
+
+        assertEquals(5, query.sample);
+        assertEquals(ElseParser.DEFAULT_APPROX, query.approx);
+        assertEquals(100, parse("select * from a approx 100").approx);
+
+        assertInvalid("select * from a sample 5 order by x");
+    }
+
+    @Test
+    public void insertUpdateDelete() throws Exception {
+        ElseParser.Query insert = parse("insert into idx");
+        assertEquals(ElseParser.Command.INSERT, insert.command);
+        assertEquals("idx", insert.index);
+
+        ElseParser.Query update = parse("update idx set a = 'x', b.c = 1, d = true where e = 2");
+        assertEquals(ElseParser.Command.UPDATE, update.command);
+        assertEquals(3, update.setList.size());
+        assertEquals("x", update.setList.get(0).value);
+        assertEquals("b.c", update.setList.get(1).name);
+        assertEquals(Boolean.TRUE, update.setList.get(2).value);
+        assertEquals("e:2", update.whereExpr.toQueryString());
+
+        ElseParser.Query delete = parse("delete from idx where a = 1");
+        assertEquals(ElseParser.Command.DELETE, delete.command);
+        assertEquals("a:1", delete.whereExpr.toQueryString());
+
+        assertInvalid("delete from idx");
+        assertInvalid("update idx set a");
+        assertInvalid("update idx where a = 1");
+    }
+
+    @Test
+    public void explainAndProfile() throws Exception {
+        ElseParser.Query explain = parse("explain select * from a");
+        assertTrue(explain.explain);
+        assertFalse(explain.profile);
+
+        ElseParser.Query profile = parse("PROFILE select * from a");
+        assertTrue(profile.profile);
+        assertFalse(profile.explain);
+    }
+}
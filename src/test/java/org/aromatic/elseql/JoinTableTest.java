@@ -0,0 +1,95 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * The build side of the client-side join
+ */
+public class JoinTableTest
+{
+    @Test
+    public void integerKeys() {
+        assertEquals(Long.valueOf(0), JoinTable.integerKey("0"));
+        assertEquals(Long.valueOf(-42), JoinTable.integerKey("-42"));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), JoinTable.integerKey("9223372036854775807"));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), JoinTable.integerKey("-9223372036854775808"));
+    }
+
+    @Test
+    public void keysThatAreNotCanonicalLongsAreStrings() {
+        assertNull(JoinTable.integerKey("9223372036854775808"));
+        assertNull(JoinTable.integerKey("-9223372036854775809"));
+        assertNull(JoinTable.integerKey("99999999999999999999"));
+        assertNull(JoinTable.integerKey("007"));
+        assertNull(JoinTable.integerKey("-0"));
+        assertNull(JoinTable.integerKey("-"));
+        assertNull(JoinTable.integerKey(""));
+        assertNull(JoinTable.integerKey("1e3"));
+    }
+
+    @Test
+    public void keysOutOfTheLongRangeDontMatchOtherKeys() throws Exception {
+        JoinTable table = new JoinTable();
+
+        table.add("9223372036854775808", "a");
+        table.add("-9223372036854775808", "b");
+        table.add("18446744073709551616", "c");
+        table.add("0", "d");
+        table.add("-9999999999999999999", "e");
+        table.add("8446744073709551617", "f"); // -9999999999999999999 wrapped around
+
+        assertEquals(Arrays.asList("a"), table.get("9223372036854775808"));
+        assertEquals(Arrays.asList("b"), table.get("-9223372036854775808"));
+        assertEquals(Arrays.asList("c"), table.get("18446744073709551616"));
+        assertEquals(Arrays.asList("d"), table.get("0"));
+        assertEquals(Arrays.asList("e"), table.get("-9999999999999999999"));
+        assertEquals(Arrays.asList("f"), table.get("8446744073709551617"));
+        assertEquals(6, table.distinctKeys());
+
+        // the keys of the semi-join filter
+        assertEquals(new HashSet<String>(Arrays.asList("9223372036854775808", "-9223372036854775808", "18446744073709551616",
+            "0", "-9999999999999999999", "8446744073709551617")), new HashSet<String>(table.keys()));
+
+        table.close();
+    }
+
+    @Test
+    public void rowsWithTheSameKeyAreReturnedInOrder() throws Exception {
+        JoinTable table = new JoinTable();
+
+        table.add("1", "x");
+        table.add("k", "y");
+        table.add("1", "z");
+
+        assertEquals(Arrays.asList("x", "z"), table.get("1"));
+        assertEquals(Arrays.asList("y"), table.get("k"));
+        assertEquals(Collections.<String>emptyList(), table.get("2"));
+
+        Set<String> keys = new HashSet<String>(table.keys());
+        assertEquals(new HashSet<String>(Arrays.asList("1", "k")), keys);
+
+        table.close();
+    }
+
+    @Test
+    public void spilledPayloadsAreReadBack() throws Exception {
+        JoinTable table = new JoinTable(1024);
+
+        for (int i=0; i < 1000; i++)
+            table.add(String.valueOf(i % 100), "{\"row\":" + i + ",\"v\":\"\u00e9\"}");
+
+        assertTrue(table.isSpilled());
+        assertEquals(1000, table.size());
+        assertEquals(100, table.distinctKeys());
+
+        List<String> rows = table.get("7");
+        assertEquals(10, rows.size());
+        assertEquals("{\"row\":7,\"v\":\"\u00e9\"}", rows.get(0));
+        assertEquals("{\"row\":907,\"v\":\"\u00e9\"}", rows.get(9));
+
+        table.close();
+    }
+}
@@ -0,0 +1,113 @@
+package org.aromatic.elseql;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.google.gson.*;
+
+/*
+ * JsonEncoder writes the same bytes as JsonElement.toString
+ */
+public class JsonEncoderTest
+{
+    static void assertSameAsGson(JsonElement e) {
+        assertArrayEquals(e.toString(), e.toString().getBytes(Util.UTF8), JsonEncoder.encode(e));
+    }
+
+    static JsonElement string(String s) {
+        return new JsonPrimitive(s);
+    }
+
+    @Test
+    public void escapes() {
+        assertSameAsGson(string(""));
+        assertSameAsGson(string("plain ascii ~ \u007f"));
+        assertSameAsGson(string("quote \" backslash \\ slash /"));
+        assertSameAsGson(string("\t\b\n\r\f"));
+        assertSameAsGson(string("\u0000\u0001\u001f"));
+        assertSameAsGson(string("<html> & 'single' ="));
+        assertSameAsGson(string("line\u2028paragraph\u2029"));
+    }
+
+    @Test
+    public void utf8() {
+        assertSameAsGson(string("\u00e9\u07ff\u0800\u65e5\uffff"));
+        assertSameAsGson(string("\ud83d\ude00 surrogate pair"));
+        assertSameAsGson(string("unpaired \ud83d high"));
+        assertSameAsGson(string("unpaired \ude00 low"));
+        assertSameAsGson(string("reversed \ude00\ud83d"));
+        assertSameAsGson(string("\ud83d"));
+    }
+
+    @Test
+    public void numbers() {
+        Number numbers[] = {
+            0, -1, Integer.MAX_VALUE, Long.MIN_VALUE, 1.5, -0.0, 0.1, 1e20, 1e-7, 123456789.0,
+            Double.MAX_VALUE, Double.MIN_VALUE, 2.5f, (short) 7, (byte) -8,
+            new BigInteger("123456789012345678901234567890"), new BigDecimal("1.50"),
+        };
+
+        for (Number n : numbers)
+            assertSameAsGson(new JsonPrimitive(n));
+
+        assertSameAsGson(new JsonParser().parse("[1.50, 1e3, -0, 10000000000000000000000]"));
+    }
+
+    @Test
+    public void trees() {
+        assertSameAsGson(new JsonObject());
+        assertSameAsGson(new JsonArray());
+        assertSameAsGson(JsonNull.INSTANCE);
+        assertSameAsGson(new JsonParser().parse(
+            "{\"a\":[1,true,false,null,{},[],\"x\"],\"b\":{\"c\":{\"d\":[[]]}},\"\\u00e9\\n\":null,\"\":\"\"}"));
+    }
+
+    @Test
+    public void constantsAreCopied() {
+        JsonObject constant = new JsonObject();
+        constant.addProperty("terms", "f\u00e9");
+
+        JsonObject tree = new JsonObject();
+        JsonArray array = new JsonArray();
+        array.add(constant);
+        array.add(constant);
+        tree.add("a", constant);
+        tree.add("b", array);
+        tree.addProperty("c", 1);
+
+        JsonEncoder.constant(constant);
+
+        try {
+            assertSameAsGson(tree);
+            assertSameAsGson(constant);
+
+            // the bytes encoded when it was registered are copied (so constants must not be modified)
+            constant.addProperty("late", 1);
+            String encoded = new String(JsonEncoder.encode(tree), Util.UTF8);
+            assertTrue(encoded, encoded.startsWith("{\"a\":{\"terms\":\"f\u00e9\"},\"b\":[{\"terms\":\"f\u00e9\"},"));
+        } finally {
+            JsonEncoder.release(constant);
+        }
+
+        assertSameAsGson(tree);
+    }
+
+    @Test
+    public void requestsAreEncodedAsByGson() throws Exception {
+        ElseSearch search = new ElseSearch("http://localhost:9200");
+        String queries[] = {
+            "SELECT * FROM test",
+            "SELECT a, b[0].c FACETS b, c FROM test WHERE a = '\u00e9\u2028' ORDER BY a DESC LIMIT 5, 10",
+            "SELECT * EXCEPT (x) FACETS b, c FROM test SAMPLE 3 APPROX",
+            "SELECT * FROM test FILTER b > 2",
+        };
+
+        for (String q : queries) {
+            Util.Json request = search.buildRequest(new ElseParser(q).getQuery());
+            assertSameAsGson(request.element());
+        }
+    }
+}
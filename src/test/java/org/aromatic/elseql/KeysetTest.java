@@ -0,0 +1,85 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * Keyset pagination against a server whose second page fails
+ */
+public class KeysetTest
+{
+    static final String PAGE = "{\"took\":1,\"timed_out\":false,\"hits\":{\"total\":10,\"hits\":["
+        + "{\"_id\":\"1\",\"_source\":{\"a\":1},\"sort\":[1,\"1\"]},"
+        + "{\"_id\":\"2\",\"_source\":{\"a\":2},\"sort\":[2,\"2\"]}]}}";
+
+    static final String ERROR = "{\"error\":\"search_phase_execution_exception\",\"status\":500}";
+
+    HttpServer server;
+    final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Util.readBytes(exchange.getRequestBody());
+
+                boolean first = requests.incrementAndGet() == 1;
+                byte body[] = (first ? PAGE : ERROR).getBytes(Util.UTF8);
+
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(first ? 200 : 500, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    ElseSearch search() {
+        ElseSearch search = new ElseSearch("http://127.0.0.1:" + server.getAddress().getPort());
+        search.setKeyset(true, "_id");
+        search.setPageSizing(2, 2, 4194304, 500);
+        return search;
+    }
+
+    @Test
+    public void rowsBeforeAFailedPageArePrinted() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true, "UTF-8");
+
+        search().submit("select a from idx order by a limit 10", Util.Format.CSV, false, false, out).get();
+
+        String output = buffer.toString("UTF-8");
+
+        assertEquals(2, requests.get());
+        assertTrue(output, output.contains("a\n1\n2\n"));
+        assertTrue(output, output.contains("retrieved: 2"));
+        assertTrue(output, output.contains("incomplete: true"));
+        assertTrue(output, output.contains("search_phase_execution_exception"));
+    }
+
+    @Test
+    public void aFailedPageIsAnError() throws Exception {
+        try {
+            search().query("select a from idx order by a limit 10");
+            fail("no error");
+        } catch(IOException e) {
+            assertEquals(2, requests.get());
+            assertTrue(e.getMessage(), e.getMessage().contains("search_phase_execution_exception"));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.aromatic.elseql;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * Values typed with the field type from the mapping
+ */
+public class MappingsTest
+{
+    @Test
+    public void integerFields() {
+        assertEquals(Long.valueOf(5), Mappings.typedValue("integer", Double.valueOf(5)));
+        assertEquals(Long.valueOf(-5), Mappings.typedValue("long", "-5"));
+        assertEquals(Long.valueOf(5), Mappings.typedValue("short", "5.0"));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), Mappings.typedValue("long", "9223372036854775807"));
+        assertEquals(Double.valueOf(5.5), Mappings.typedValue("integer", Double.valueOf(5.5)));
+        assertEquals("five", Mappings.typedValue("integer", "five"));
+    }
+
+    @Test
+    public void integersOutOfTheLongRangeAreNotClamped() {
+        assertEquals(Double.valueOf(1e20), Mappings.typedValue("long", Double.valueOf(1e20)));
+        assertEquals(Double.valueOf(0x1p63), Mappings.typedValue("long", Double.valueOf(0x1p63)));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), Mappings.typedValue("long", Double.valueOf(-0x1p63)));
+        assertEquals(Double.valueOf(Double.POSITIVE_INFINITY), Mappings.typedValue("long", Double.valueOf(Double.POSITIVE_INFINITY)));
+        assertEquals("100000000000000000000", Mappings.typedValue("long", "100000000000000000000"));
+    }
+
+    @Test
+    public void floatingPointFields() {
+        assertEquals(Double.valueOf(5), Mappings.typedValue("double", Double.valueOf(5)));
+        assertEquals(Double.valueOf(2.5), Mappings.typedValue("float", "2.5"));
+        assertEquals("x", Mappings.typedValue("scaled_float", "x"));
+    }
+
+    @Test
+    public void otherFields() {
+        assertEquals(Long.valueOf(1700000000000L), Mappings.typedValue("date", Double.valueOf(1.7e12)));
+        assertEquals("2024-01-15", Mappings.typedValue("date", "2024-01-15"));
+        assertEquals(Boolean.TRUE, Mappings.typedValue("boolean", "TRUE"));
+        assertEquals("yes", Mappings.typedValue("boolean", "yes"));
+        assertEquals("5", Mappings.typedValue("keyword", Double.valueOf(5)));
+        assertEquals("5.5", Mappings.typedValue("text", Double.valueOf(5.5)));
+        assertEquals(Double.valueOf(5), Mappings.typedValue(null, Double.valueOf(5)));
+    }
+}
@@ -0,0 +1,85 @@
+package org.aromatic.elseql;
+
+import java.time.Instant;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * Date math and partition pruning of time-partitioned indices
+ */
+public class PartitionsTest
+{
+    static final long NOW = time("2024-03-15T12:34:56.789Z"); // a Friday
+
+    static long time(String iso) {
+        return Instant.parse(iso).toEpochMilli();
+    }
+
+    static List<String> partitions(Partitions partitions, String query) throws Exception {
+        Partitions.Scheme scheme = new Partitions.Scheme("logs-", "yyyy.MM.dd", "", "ts");
+        return partitions.partitions(scheme, new ElseParser(query).getQuery(), NOW);
+    }
+
+    @Test
+    public void epochMillisecondsAndDates() {
+        assertEquals(Long.valueOf(1700000000000L), Partitions.parseTime("1700000000000", NOW, false));
+        assertEquals(Long.valueOf(time("2024-01-15T00:00:00Z")), Partitions.parseTime("2024-01-15", NOW, false));
+        assertEquals(Long.valueOf(time("2024-01-15T23:59:59.999Z")), Partitions.parseTime("2024-01-15", NOW, true));
+        assertEquals(Long.valueOf(time("2024-01-15T10:30:00Z")), Partitions.parseTime("2024-01-15T10:30:00", NOW, true));
+        assertEquals(Long.valueOf(time("2024-01-15T08:00:00Z")), Partitions.parseTime("2024-01-15T10:00:00+02:00", NOW, false));
+        assertNull(Partitions.parseTime("yesterday", NOW, false));
+    }
+
+    @Test
+    public void dateMathIsRoundedAsInES() {
+        assertEquals(Long.valueOf(NOW), Partitions.parseTime("now", NOW, true));
+        assertEquals(Long.valueOf(time("2024-03-14T12:34:56.789Z")), Partitions.parseTime("now-1d", NOW, false));
+        assertEquals(Long.valueOf(time("2024-03-14T00:00:00Z")), Partitions.parseTime("now-1d/d", NOW, false));
+        assertEquals(Long.valueOf(time("2024-03-14T23:59:59.999Z")), Partitions.parseTime("now-1d/d", NOW, true));
+        assertEquals(Long.valueOf(time("2024-02-01T00:00:00Z")), Partitions.parseTime("now-1M/M", NOW, false));
+        assertEquals(Long.valueOf(time("2024-03-11T00:00:00Z")), Partitions.parseTime("now/w", NOW, false));
+        assertEquals(Long.valueOf(time("2024-03-15T13:00:00Z")), Partitions.parseTime("now+1h/h", NOW, false));
+        assertEquals(Long.valueOf(time("2024-02-29T23:59:59.999Z")), Partitions.parseTime("2024-01-15||+1M/M", NOW, true));
+        assertNull(Partitions.parseTime("now-1x", NOW, false));
+        assertNull(Partitions.parseTime("now-d", NOW, false));
+    }
+
+    @Test
+    public void closedRangesArePruned() throws Exception {
+        assertEquals(Arrays.asList("logs-2024.03.13*", "logs-2024.03.14*"),
+            partitions(new Partitions(), "SELECT * FROM logs-* WHERE ts >= '2024-03-13' AND ts < '2024-03-15'"));
+
+        // gt rounds up: the whole day is excluded
+        assertEquals(Arrays.asList("logs-2024.03.14*", "logs-2024.03.15*"),
+            partitions(new Partitions(), "SELECT * FROM logs-* WHERE ts > '2024-03-13' AND ts <= '2024-03-15'"));
+
+        assertEquals(Arrays.asList("logs-2024.03.15*"),
+            partitions(new Partitions(), "SELECT * FROM logs-* WHERE ts = '2024-03-15'"));
+    }
+
+    @Test
+    public void openRangesAreNotPrunedUnlessUntilNow() throws Exception {
+        String query = "SELECT * FROM logs-* WHERE ts >= 'now-2d/d'";
+
+        assertNull(partitions(new Partitions(), query));
+        assertNull(partitions(new Partitions().setUntilNow(true), "SELECT * FROM logs-* WHERE ts < 'now'"));
+
+        assertEquals(Arrays.asList("logs-2024.03.13*", "logs-2024.03.14*", "logs-2024.03.15*"),
+            partitions(new Partitions().setUntilNow(true), query));
+    }
+
+    @Test
+    public void tooManyPartitionsAreNotPruned() throws Exception {
+        assertNull(partitions(new Partitions(), "SELECT * FROM logs-* WHERE ts >= '2023-01-01' AND ts < '2024-01-01'"));
+    }
+
+    @Test
+    public void fromIsRewritten() throws Exception {
+        Partitions partitions = new Partitions().add("logs-{yyyy.MM}=ts");
+        ElseParser.Query query = new ElseParser("SELECT * FROM logs-*, other WHERE ts >= '2024-01-15' AND ts <= '2024-03-01'").getQuery();
+
+        assertEquals(Arrays.asList("logs-2024.01*", "logs-2024.02*", "logs-2024.03*", "other"), partitions.prune(query).indexList);
+    }
+}
@@ -0,0 +1,70 @@
+package org.aromatic.elseql;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.google.gson.*;
+
+/*
+ * Column paths: nested fields, array indexes and flattening
+ */
+public class PathTest
+{
+    static final JsonElement SOURCE = new JsonParser().parse(
+        "{\"a\":1,\"b.c\":2,\"b\":{\"c\":3,\"d\":{\"e\":4}},"
+        + "\"tags\":[{\"t\":\"p\"},{\"t\":\"q\",\"u\":[5,6]},{\"x\":0}],"
+        + "\"m\":[[1,2],[3]],\"n\":null}");
+
+    static String resolve(String path) {
+        JsonElement e = Util.Path.compile(path).resolve(SOURCE);
+        return e == null ? null : e.toString();
+    }
+
+    @Test
+    public void fields() {
+        assertEquals("1", resolve("a"));
+        assertEquals("4", resolve("b.d.e"));
+        assertEquals("{\"e\":4}", resolve("b.d"));
+        assertNull(resolve("b.x"));
+        assertNull(resolve("a.b"));
+        assertNull(resolve("z"));
+        assertEquals("null", resolve("n"));
+        assertNull(resolve("n.x"));
+    }
+
+    @Test
+    public void dottedNamesHavePrecedence() {
+        assertEquals("2", resolve("b.c"));
+    }
+
+    @Test
+    public void arrayIndexes() {
+        assertEquals("{\"t\":\"p\"}", resolve("tags[0]"));
+        assertEquals("\"q\"", resolve("tags[1].t"));
+        assertEquals("6", resolve("tags[1].u[1]"));
+        assertEquals("3", resolve("m[1][0]"));
+        assertNull(resolve("tags[3]"));
+        assertNull(resolve("a[0]"));
+        assertNull(resolve("m[0][2]"));
+    }
+
+    @Test
+    public void arraysAreFlattened() {
+        assertEquals("[\"p\",\"q\"]", resolve("tags.t"));
+        assertEquals("[5,6]", resolve("tags.u"));
+        assertNull(resolve("tags.y"));
+    }
+
+    @Test
+    public void sourcePaths() {
+        assertEquals("tags.u", Util.Path.compile("tags[1].u[0]").getSourcePath());
+        assertEquals("m", Util.Path.compile("m[1][0]").getSourcePath());
+        assertEquals("b.d.e", Util.Path.compile("b.d.e").getSourcePath());
+    }
+
+    @Test
+    public void onlyObjectsAreResolved() {
+        assertNull(Util.Path.compile("a").resolve(null));
+        assertNull(Util.Path.compile("a").resolve(new JsonPrimitive(1)));
+    }
+}
@@ -0,0 +1,71 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * Scanning UTF-8 encoded JSON without decoding it
+ */
+public class RawJsonTest
+{
+    static RawJson json(String s) {
+        return new RawJson(s.getBytes(Util.UTF8));
+    }
+
+    @Test
+    public void members() {
+        RawJson json = json(" { \"a\" : 1 , \"b\":\"x,}]\\\"y\", \"c\":{\"d\":[1,{\"e\":\"]\"}]}, \"f\":null,\"g\":true } ");
+
+        assertTrue(json.isObject());
+        assertEquals("1", json.get("a").toString());
+        assertEquals("\"x,}]\\\"y\"", json.get("b").toString());
+        assertEquals("x,}]\"y", json.get("b").parse().getAsString());
+        assertEquals("{\"d\":[1,{\"e\":\"]\"}]}", json.get("c").toString());
+        assertEquals("\"]\"", json.get("c").get("d").elements().get(1).get("e").toString());
+        assertTrue(json.get("f").isNull());
+        assertEquals("true", json.get("g").toString());
+        assertNull(json.get("h"));
+        assertFalse(json.has("d"));
+        assertNull(json.get("a").get("x"));
+    }
+
+    @Test
+    public void escapedAndNonAsciiKeys() {
+        RawJson json = json("{\"\\u0061b\":1,\"\u00e9t\u00e9\":2,\"q\\\"\":3}");
+
+        assertEquals("1", json.get("ab").toString());
+        assertEquals("2", json.get("\u00e9t\u00e9").toString());
+        assertEquals("3", json.get("q\"").toString());
+        assertNull(json.get("\\u0061b"));
+    }
+
+    @Test
+    public void elements() {
+        List<RawJson> elements = json("[ 1, \"a\" ,[2,3], {\"b\":[]}, null ]").elements();
+
+        assertEquals(5, elements.size());
+        assertEquals("1", elements.get(0).toString());
+        assertEquals("\"a\"", elements.get(1).toString());
+        assertEquals(2, elements.get(2).elements().size());
+        assertEquals(0, elements.get(3).get("b").elements().size());
+        assertTrue(elements.get(4).isNull());
+
+        assertEquals(0, json("[]").elements().size());
+        assertEquals(0, json("{}").elements().size());
+        assertNull(json("[]").get("a"));
+    }
+
+    @Test
+    public void valuesAreCopiedAsEncoded() throws Exception {
+        String value = "{\"s\":\"\u00e9\u65e5\\u00e9\",\"n\":1.50}";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        json("{\"hit\":" + value + "}").get("hit").writeTo(out);
+
+        assertArrayEquals(value.getBytes(Util.UTF8), out.toByteArray());
+        assertEquals(value.getBytes(Util.UTF8).length, json(value).length());
+    }
+}
@@ -0,0 +1,111 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * The memory and disk tiers of the result cache
+ */
+public class ResultCacheTest
+{
+    File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("elseql-cache", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles())
+            file.delete();
+
+        directory.delete();
+    }
+
+    int files() {
+        return directory.listFiles().length;
+    }
+
+    static String body(int i) {
+        StringBuilder sb = new StringBuilder("{\"hits\":\"");
+
+        for (int n=0; n < 100; n++)
+            sb.append((char) ('a' + i));
+
+        return sb.append("\"}").toString();
+    }
+
+    @Test
+    public void resultsSurviveRestarts() throws Exception {
+        ResultCache cache = new ResultCache().setDirectory(directory);
+        cache.put("http://es", "idx", "{}", body(0));
+        assertEquals(body(0), cache.get("http://es", "idx", "{}"));
+
+        ResultCache restarted = new ResultCache().setDirectory(directory);
+        assertEquals(body(0), restarted.get("http://es", "idx", "{}"));
+        assertNull(restarted.get("http://es", "idx", "{\"size\":1}"));
+        assertEquals(1, restarted.getHits());
+    }
+
+    @Test
+    public void expiredFilesAreDeleted() throws Exception {
+        ResultCache cache = new ResultCache().setTtl(1).setDirectory(directory);
+        cache.put("http://es", "idx", "{}", body(0));
+        assertEquals(1, files());
+
+        Thread.sleep(20);
+
+        cache.clear(); // not in memory: read from disk
+        assertNull(cache.get("http://es", "idx", "{}"));
+        assertEquals(0, files());
+
+        cache.put("http://es", "idx", "{}", body(1));
+        Thread.sleep(20);
+
+        new ResultCache().setDirectory(directory); // expired files of a previous run
+        assertEquals(0, files());
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesAreEvicted() throws Exception {
+        ResultCache cache = new ResultCache().setDirectory(directory);
+        cache.put("http://es", "idx", "q0", body(0));
+
+        long size = directory.listFiles()[0].length();
+        cache.setDiskSize(3 * size);
+
+        cache.put("http://es", "idx", "q1", body(1));
+        cache.put("http://es", "idx", "q2", body(2));
+        cache.clear();
+        assertEquals(body(0), cache.get("http://es", "idx", "q0")); // q1 is now the least recently used
+
+        cache.put("http://es", "idx", "q3", body(3));
+        assertEquals(3, files());
+
+        cache.clear();
+        assertNull(cache.get("http://es", "idx", "q1"));
+        assertEquals(body(0), cache.get("http://es", "idx", "q0"));
+        assertEquals(body(2), cache.get("http://es", "idx", "q2"));
+        assertEquals(body(3), cache.get("http://es", "idx", "q3"));
+        assertTrue(cache.toString(), cache.toString().endsWith(", files: 3, disk: " + 3 * size + ", disk evictions: 1"));
+
+        new ResultCache().setDiskSize(size).setDirectory(directory); // the most recent file of a previous run is kept
+        assertEquals(1, files());
+    }
+
+    @Test
+    public void rewrittenEntriesAreCountedOnce() throws Exception {
+        ResultCache cache = new ResultCache().setDirectory(directory);
+
+        for (int i=0; i < 3; i++)
+            cache.put("http://es", "idx", "q", body(i));
+
+        assertEquals(1, files());
+        assertTrue(cache.toString(), cache.toString().contains(", files: 1, disk: " + directory.listFiles()[0].length() + ","));
+    }
+}
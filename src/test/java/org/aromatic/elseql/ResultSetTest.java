@@ -0,0 +1,163 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import com.google.gson.*;
+
+/*
+ * The columns of a ResultSet: types, conversions, dictionaries and buffers
+ */
+public class ResultSetTest
+{
+    static ResultSet resultSet(Map<String, String> fields, String columns, String... rows) {
+        ResultSet rs = new ResultSet(fields);
+        rs.setColumns(columns.split(","));
+
+        for (String row : rows)
+            rs.add(new JsonParser().parse(row));
+
+        return rs;
+    }
+
+    @Test
+    public void typesComeFromTheFirstValue() {
+        ResultSet rs = resultSet(null, "l,d,b,s,o", "{\"l\":1,\"d\":1.5,\"b\":true,\"s\":\"x\",\"o\":{\"k\":[1]}}");
+
+        assertEquals(ResultSet.Type.LONG, rs.getType(0));
+        assertEquals(ResultSet.Type.DOUBLE, rs.getType(1));
+        assertEquals(ResultSet.Type.BOOLEAN, rs.getType(2));
+        assertEquals(ResultSet.Type.STRING, rs.getType(3));
+        assertEquals(ResultSet.Type.STRING, rs.getType(4));
+        assertEquals("{\"k\":[1]}", rs.getString(4, 0));
+    }
+
+    @Test
+    public void typesComeFromTheMapping() {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("n", "float");
+        fields.put("k", "keyword");
+
+        ResultSet rs = resultSet(fields, "n,k", "{\"n\":2,\"k\":7}");
+
+        assertEquals(ResultSet.Type.DOUBLE, rs.getType(0));
+        assertEquals(2.0, rs.getDouble(0, 0), 0);
+        assertEquals(ResultSet.Type.STRING, rs.getType(1));
+        assertEquals("7", rs.getString(1, 0));
+    }
+
+    @Test
+    public void longColumnsAreConvertedToDouble() {
+        ResultSet rs = resultSet(null, "a", "{\"a\":1}", "{}", "{\"a\":2.5}");
+
+        assertEquals(ResultSet.Type.DOUBLE, rs.getType(0));
+        assertEquals(1.0, rs.getDouble(0, 0), 0);
+        assertTrue(rs.isNull(0, 1));
+        assertEquals(2.5, rs.getDouble(0, 2), 0);
+        assertEquals(2, rs.getLong(0, 2));
+    }
+
+    @Test
+    public void columnsAreConvertedToStrings() {
+        ResultSet rs = resultSet(null, "a,b", "{\"a\":1,\"b\":true}", "{\"a\":null,\"b\":false}", "{\"a\":\"x\",\"b\":\"maybe\"}");
+
+        assertEquals(ResultSet.Type.STRING, rs.getType(0));
+        assertEquals("1", rs.getString(0, 0));
+        assertNull(rs.getString(0, 1));
+        assertEquals(-1, rs.getStringId(0, 1));
+        assertEquals("x", rs.getString(0, 2));
+        assertEquals(1, rs.getLong(0, 0));
+
+        assertEquals(ResultSet.Type.STRING, rs.getType(1));
+        assertEquals("true", rs.getString(1, 0));
+        assertFalse(rs.getBoolean(1, 1));
+        assertEquals("maybe", rs.getString(1, 2));
+        assertEquals(3, rs.getCardinality(1));
+    }
+
+    @Test
+    public void nullsAreZeroFalseOrNull() {
+        ResultSet rs = resultSet(null, "a,b", "{\"a\":5}", "{\"b\":\"y\"}");
+
+        assertTrue(rs.isNull(0, 1));
+        assertEquals(0, rs.getLong(0, 1));
+        assertFalse(rs.getBoolean(0, 1));
+        assertNull(rs.getString(0, 1));
+        assertTrue(rs.isNull(1, 0));
+        assertEquals(ResultSet.Type.STRING, rs.getType(1));
+    }
+
+    @Test
+    public void dictionariesAreRehashed() {
+        ResultSet rs = new ResultSet(null);
+        rs.setColumns(new String[] { "s" });
+
+        // more distinct strings than half of the initial slots, and each one twice
+        for (int i=0; i < 2000; i++)
+            rs.add(new JsonParser().parse("{\"s\":\"value " + (i % 1000) + " \\u00e9\"}"));
+
+        assertEquals(1000, rs.getCardinality(0));
+
+        for (int i=0; i < 2000; i++) {
+            assertEquals("value " + (i % 1000) + " \u00e9", rs.getString(0, i));
+            assertEquals(rs.getStringId(0, i % 1000), rs.getStringId(0, i));
+        }
+
+        assertEquals("value 999 \u00e9", rs.getDictionaryString(0, rs.getStringId(0, 999)));
+    }
+
+    @Test
+    public void buffersGrowPastAChunk() {
+        ResultSet rs = new ResultSet(null);
+        rs.setColumns(new String[] { "n" });
+
+        long small = 0;
+        int rows = ResultSet.CHUNK_ROWS * 2 + 10;
+
+        for (int i=0; i < rows; i++) {
+            JsonObject row = new JsonObject();
+            row.addProperty("n", i);
+            rs.add(row);
+
+            if (i == 0)
+                small = rs.memory();
+        }
+
+        assertEquals(ResultSet.MIN_ROWS * ResultSet.SLOT + ResultSet.MIN_ROWS / 8, small);
+        assertEquals(3L * (ResultSet.CHUNK_ROWS * ResultSet.SLOT + ResultSet.CHUNK_ROWS / 8), rs.memory());
+
+        ResultSet.Cursor cursor = rs.cursor();
+        for (int i=0; i < rows; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getLong(0));
+        }
+
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void buffersAreSizedForTheExpectedRows() {
+        ResultSet rs = new ResultSet(null, 1000);
+        rs.setColumns(new String[] { "n" });
+        rs.add(new JsonParser().parse("{\"n\":1}"));
+
+        assertEquals(1024 * ResultSet.SLOT + 1024 / 8, rs.memory());
+
+        rs.close();
+        assertEquals(0, rs.size());
+        assertEquals(0, rs.memory());
+    }
+
+    @Test
+    public void rowsOutOfRangeAreRejected() {
+        ResultSet rs = resultSet(null, "a", "{\"a\":1}");
+
+        try {
+            rs.getLong(0, 1);
+            fail("row 1 of 1");
+        } catch(IndexOutOfBoundsException e) {
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.aromatic.elseql;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * Rows and outputs that spill to memory-mapped files past a heap budget
+ */
+public class SpillBufferTest
+{
+    File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("elseql-spill", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles())
+            file.delete();
+
+        directory.delete();
+    }
+
+    int files() {
+        return directory.listFiles().length;
+    }
+
+    static final Comparator<String[]> BY_KEY = new Comparator<String[]>() {
+        public int compare(String a[], String b[]) {
+            return Integer.parseInt(a[0]) - Integer.parseInt(b[0]);
+        }
+    };
+
+    @Test
+    public void rowsAreReadBackInInsertionOrder() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(1024, null).setDirectory(directory);
+
+        for (int i=0; i < 1000; i++)
+            buffer.add(new String[] { String.valueOf(i), i % 3 == 0 ? null : "\u00e9\u65e5\ud83d\ude00", "" });
+
+        assertTrue(String.valueOf(buffer.getSpilledRuns()), buffer.getSpilledRuns() > 1);
+        assertEquals(buffer.getSpilledRuns(), files());
+        assertEquals(1000, buffer.size());
+
+        int i = 0;
+
+        for (String row[] : buffer) {
+            assertEquals(String.valueOf(i), row[0]);
+            assertEquals(i % 3 == 0 ? null : "\u00e9\u65e5\ud83d\ude00", row[1]);
+            assertEquals("", row[2]);
+            i++;
+        }
+
+        assertEquals(1000, i);
+
+        buffer.close();
+        assertEquals(0, files());
+    }
+
+    @Test
+    public void runsAreMergedInOrder() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(512, BY_KEY).setDirectory(directory);
+
+        for (int i=0; i < 500; i++)
+            buffer.add(new String[] { String.valueOf((i * 7) % 50), String.valueOf(i) });
+
+        assertTrue(buffer.getSpilledRuns() > 1);
+
+        String previous[] = null;
+        int n = 0;
+
+        for (String row[] : buffer) {
+            if (previous != null) {
+                assertTrue(previous[0] + " <= " + row[0], BY_KEY.compare(previous, row) <= 0);
+
+                // ties keep their insertion order (sorts are stable, runs are merged in order)
+                if (BY_KEY.compare(previous, row) == 0)
+                    assertTrue(previous[1] + " < " + row[1], Integer.parseInt(previous[1]) < Integer.parseInt(row[1]));
+            }
+
+            previous = row;
+            n++;
+        }
+
+        assertEquals(500, n);
+        buffer.close();
+    }
+
+    @Test
+    public void smallBuffersStayInMemory() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(1024 * 1024, BY_KEY).setDirectory(directory);
+
+        buffer.add(new String[] { "2" });
+        buffer.add(new String[] { "1" });
+
+        Iterator<String[]> rows = buffer.iterator();
+        assertEquals("1", rows.next()[0]);
+        assertEquals("2", rows.next()[0]);
+        assertFalse(rows.hasNext());
+
+        assertEquals(0, buffer.getSpilledRuns());
+        assertEquals(0, files());
+    }
+
+    @Test
+    public void rowsAreRejectedOnceClosed() throws Exception {
+        SpillBuffer buffer = new SpillBuffer(16, null).setDirectory(directory);
+        buffer.add(new String[] { "a" });
+        buffer.close();
+
+        try {
+            buffer.add(new String[] { "b" });
+            fail("added to a closed buffer");
+        } catch(IOException e) {
+            // expected
+        }
+
+        assertEquals(0, files());
+        assertFalse(buffer.iterator().hasNext());
+    }
+
+    @Test
+    public void outputsSpillPastTheBudget() throws Exception {
+        SpillBuffer.Output small = new SpillBuffer.Output(1024, directory);
+        SpillBuffer.Output large = new SpillBuffer.Output(1024, directory);
+        PrintStream out = new PrintStream(large, false, "UTF-8");
+
+        small.write("small \u00e9".getBytes(Util.UTF8));
+
+        StringBuilder expected = new StringBuilder();
+
+        for (int i=0; i < 1000; i++) {
+            out.println(i + " \u00e9\u65e5");
+            expected.append(i + " \u00e9\u65e5\n");
+        }
+
+        out.flush();
+
+        assertFalse(small.isSpilled());
+        assertTrue(large.isSpilled());
+        assertEquals(1, files());
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        small.writeTo(copy);
+        assertEquals("small \u00e9", new String(copy.toByteArray(), Util.UTF8));
+
+        copy = new ByteArrayOutputStream();
+        large.writeTo(copy);
+        assertEquals(expected.toString().replace("\n", System.getProperty("line.separator")), new String(copy.toByteArray(), Util.UTF8));
+
+        small.close();
+        large.close();
+        assertEquals(0, files());
+    }
+}
@@ -0,0 +1,91 @@
+package org.aromatic.elseql;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * Latency histograms and the per-phase summary
+ */
+public class StatsTest
+{
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (long v = 0; v < Stats.Histogram.SUB_BUCKETS * 2; v++)
+            assertEquals(v, Stats.Histogram.bucketValue(Stats.Histogram.bucket(v)));
+    }
+
+    @Test
+    public void bucketsHaveABoundedRelativeError() {
+        for (long v = 1; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+            for (long value = v; value <= v + 2; value++) {
+                long high = Stats.Histogram.bucketValue(Stats.Histogram.bucket(value));
+
+                assertTrue(value + " <= " + high, value <= high);
+                assertTrue(value + " ~ " + high, (high - value) * Stats.Histogram.SUB_BUCKETS <= value);
+            }
+        }
+
+        assertEquals(Long.MAX_VALUE, Stats.Histogram.bucketValue(Stats.Histogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        Stats.Histogram h = new Stats.Histogram();
+
+        for (long v = 1; v <= 1000; v++)
+            h.record(v);
+
+        assertEquals(1000, h.count());
+        assertEquals(500500, h.sum());
+        assertEquals(1, h.min());
+        assertEquals(1000, h.max());
+        assertEquals(500.5, h.mean(), 1e-9);
+
+        assertEquals(1, h.percentile(0));
+        assertEquals(1000, h.percentile(100));
+
+        long p50 = h.percentile(50);
+        long p99 = h.percentile(99);
+        assertTrue(String.valueOf(p50), p50 >= 500 && p50 <= 500 + 500 / Stats.Histogram.SUB_BUCKETS);
+        assertTrue(String.valueOf(p99), p99 >= 990 && p99 <= 1000);
+    }
+
+    @Test
+    public void emptyAndReset() {
+        Stats.Histogram h = new Stats.Histogram();
+
+        assertEquals(0, h.percentile(50));
+        assertEquals(0, h.min());
+        assertEquals(0.0, h.mean(), 0);
+
+        h.record(-5); // clock skew: counted as 0
+        h.record(7);
+        assertEquals(0, h.min());
+        assertEquals(7, h.max());
+
+        h.reset();
+        assertEquals(0, h.count());
+        assertEquals(0, h.max());
+        assertEquals(0, h.min());
+    }
+
+    @Test
+    public void phasesAndQueries() {
+        Stats stats = new Stats();
+
+        stats.record(Stats.Phase.REQUEST, 2000000);
+        stats.record(Stats.Phase.REQUEST, 4000000);
+        stats.recordBytes(100, 5000);
+        stats.countQuery(false, false);
+        stats.countQuery(true, false);
+        stats.countQuery(false, true);
+
+        assertEquals(2, stats.get(Stats.Phase.REQUEST).count());
+        assertEquals(0, stats.get(Stats.Phase.PARSE).count());
+        assertTrue(stats.toString(), stats.toString().startsWith("queries: 3, cached: 1, errors: 1\n"));
+
+        stats.reset();
+        assertEquals(0, stats.get(Stats.Phase.REQUEST).count());
+        assertTrue(stats.toString(), stats.toString().startsWith("queries: 0, cached: 0, errors: 0\n"));
+    }
+}
@@ -0,0 +1,101 @@
+package org.aromatic.elseql;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/*
+ * The circuit breaker of a node
+ */
+public class TransportTest
+{
+    static final long NOW = 1000000;
+
+    static Transport.Node openNode() {
+        Transport.Node node = new Transport.Node("http://localhost:9200");
+
+        for (int i=0; i < Transport.BREAKER_FAILURES - 1; i++)
+            assertFalse(node.failure(NOW));
+
+        assertTrue(node.failure(NOW));
+        return node;
+    }
+
+    @Test
+    public void failuresOpenTheBreaker() {
+        Transport.Node node = openNode();
+
+        assertFalse(node.isAvailable(NOW));
+        assertFalse(node.acquire(NOW + Transport.BREAKER_COOLDOWN - 1));
+        assertEquals(NOW + Transport.BREAKER_COOLDOWN, node.getOpenUntil());
+    }
+
+    @Test
+    public void onlyOneTrialWhenHalfOpen() {
+        Transport.Node node = openNode();
+        long later = NOW + Transport.BREAKER_COOLDOWN;
+
+        assertTrue(node.isAvailable(later));
+        assertTrue(node.acquire(later));
+        assertFalse(node.isAvailable(later));
+        assertFalse(node.acquire(later));
+
+        assertFalse(node.failure(later)); // the trial failed: open again, not a new opening
+        assertFalse(node.acquire(later + 1));
+        assertTrue(node.acquire(later + Transport.BREAKER_COOLDOWN));
+
+        node.success(1000);
+        assertTrue(node.acquire(later));
+        assertTrue(node.acquire(later));
+    }
+
+    @Test
+    public void concurrentRequestsGetOneTrial() throws Exception {
+        final int THREADS = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        try {
+            for (int round = 0; round < 100; round++) {
+                final Transport.Node node = openNode();
+                final CountDownLatch start = new CountDownLatch(1);
+                final AtomicInteger trials = new AtomicInteger();
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+
+                for (int i=0; i < THREADS; i++) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            start.await();
+                            if (node.acquire(NOW + Transport.BREAKER_COOLDOWN))
+                                trials.incrementAndGet();
+                            return null;
+                        }
+                    }));
+                }
+
+                start.countDown();
+                for (Future<?> f : futures)
+                    f.get();
+
+                assertEquals(1, trials.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void halfOpenNodesArePickedOnce() {
+        Transport transport = new Transport("http://a:9200,http://b:9200").setBalance(Transport.Balance.LEAST_LATENCY);
+        Set<Transport.Node> none = Collections.emptySet();
+
+        Transport.Node first = transport.pick(none);
+        for (int i=0; i < Transport.BREAKER_FAILURES; i++)
+            first.failure(System.currentTimeMillis() - Transport.BREAKER_COOLDOWN);
+
+        assertTrue(transport.pick(none) == first); // the trial
+        assertTrue(transport.pick(none) != first);
+    }
+}